@@ -6,6 +6,10 @@
 #include <assert.h>
 #include <stdarg.h>
 #include <netinet/in.h>
+#include <arpa/inet.h>
+#include <sys/socket.h>
+#include <pthread.h>
+#include <unistd.h>
 #include <glib.h>
 
 //#define DEBUG_ARG_SCANNER 1
@@ -181,13 +185,217 @@ FILE *pipe_file = NULL;
 static char *project_root = NULL;
 static int catch_only_every_n_call = 1;
 
+/**
+ * Binary protocol (enabled by --binary-protocol) is an alternative to json lines.
+ * The stream starts with BINARY_PROTOCOL_MAGIC followed by protocol version byte.
+ * Then every record is written as varint payload length followed by payload:
+ *   varint pid, byte record kind, and then depending on the kind
+ *   RECORD_SYMBOL: varint symbol id, string bytes (up to the end of the payload)
+ *   RECORD_CALL:   varint method_name, zigzag varint explicit_argc, varint args_info, byte visibility,
+ *                  varint path, varint lineno, varint receiver_name, varint return_type_name
+ *   RECORD_EXIT:   nothing
+ * Every string is sent once as RECORD_SYMBOL and is referenced by its id afterwards.
+ * Symbol ids are numbered per process (pid), so forked children which share the pipe don't clash.
+ * Must be kept in sync with BinaryCallRecordReader in contract-creator.
+ */
+static const char BINARY_PROTOCOL_MAGIC[] = {0, 'R', 'T', 'I'};
+static const char BINARY_PROTOCOL_VERSION = 1;
+enum { RECORD_SYMBOL = 1, RECORD_CALL = 2, RECORD_EXIT = 3 };
+enum { VISIBILITY_PUBLIC = 2 }; // RVisibility.PUBLIC ordinal
+
+static int binary_protocol = 0;
+/**
+ * Maps strings already sent via RECORD_SYMBOL to (their id + 1)
+ */
+static GHashTable *symbol_ids = NULL;
+static pid_t symbol_ids_owner = 0;
+
+static void write_varint(GByteArray *buf, guint64 value) {
+    guint8 byte;
+    while (value >= 0x80) {
+        byte = (guint8) (value | 0x80);
+        g_byte_array_append(buf, &byte, 1);
+        value >>= 7;
+    }
+    byte = (guint8) value;
+    g_byte_array_append(buf, &byte, 1);
+}
+
+static void write_zigzag(GByteArray *buf, gint64 value) {
+    write_varint(buf, ((guint64) value << 1) ^ (guint64) (value >> 63));
+}
+
+static void begin_record(GByteArray *payload, guint8 kind) {
+    g_byte_array_set_size(payload, 0);
+    write_varint(payload, (guint64) getpid());
+    g_byte_array_append(payload, &kind, 1);
+}
+
+// Appends length prefixed payload to out
+static void end_record(GByteArray *out, GByteArray *payload) {
+    write_varint(out, payload->len);
+    g_byte_array_append(out, payload->data, payload->len);
+}
+
+// Returns id of the string. If string wasn't sent yet RECORD_SYMBOL is appended to out
+static guint64 symbol_id(GByteArray *out, const char *str) {
+    if (symbol_ids_owner != getpid()) {
+        // Forked child: the server knows nothing about our parent's symbols under our pid
+        g_hash_table_remove_all(symbol_ids);
+        symbol_ids_owner = getpid();
+    }
+
+    gpointer found = g_hash_table_lookup(symbol_ids, str);
+    if (found != NULL) {
+        return GPOINTER_TO_SIZE(found) - 1;
+    }
+
+    guint64 id = g_hash_table_size(symbol_ids);
+    g_hash_table_insert(symbol_ids, g_strdup(str), GSIZE_TO_POINTER(id + 1));
+
+    GByteArray *payload = g_byte_array_new();
+    begin_record(payload, RECORD_SYMBOL);
+    write_varint(payload, id);
+    g_byte_array_append(payload, (const guint8 *) str, strlen(str));
+    end_record(out, payload);
+    g_byte_array_unref(payload);
+    return id;
+}
+
+static void write_binary_call(const signature_t *sign) {
+    // Symbols and the call are written with one fwrite so that records of different processes don't interleave
+    GByteArray *out = g_byte_array_new();
+    guint64 method_name = symbol_id(out, sign->method_name);
+    guint64 args_info = symbol_id(out, sign->args_info != NULL ? sign->args_info : EMPTY_VALUE);
+    guint64 path = symbol_id(out, sign->path);
+    guint64 receiver_name = symbol_id(out, sign->receiver_name);
+    guint64 return_type_name = symbol_id(out, sign->return_type_name);
+
+    GByteArray *payload = g_byte_array_new();
+    guint8 visibility = VISIBILITY_PUBLIC;
+    begin_record(payload, RECORD_CALL);
+    write_varint(payload, method_name);
+    write_zigzag(payload, sign->explicit_argc);
+    write_varint(payload, args_info);
+    g_byte_array_append(payload, &visibility, 1);
+    write_varint(payload, path);
+    write_varint(payload, (guint64) sign->lineno);
+    write_varint(payload, receiver_name);
+    write_varint(payload, return_type_name);
+    end_record(out, payload);
+
+    fwrite(out->data, 1, out->len, pipe_file);
+    g_byte_array_unref(payload);
+    g_byte_array_unref(out);
+}
+
+static void write_binary_exit() {
+    GByteArray *out = g_byte_array_new();
+    GByteArray *payload = g_byte_array_new();
+    begin_record(payload, RECORD_EXIT);
+    end_record(out, payload);
+    fwrite(out->data, 1, out->len, pipe_file);
+    g_byte_array_unref(payload);
+    g_byte_array_unref(out);
+}
+
 static int file_exists(const char *file_path) {
     return access(file_path, F_OK) != -1;
 }
 
+/**
+ * When --server-port is given every process (including forked children) sends its calls through its own
+ * connection instead of sharing one pipe, so the server reads them independently.
+ */
+static int server_port = 0;
+// Sent as the first line of every connection, the server closes connections without it
+static char *server_token = NULL;
+static pid_t connection_owner = 0;
+static int buffering_disabled = 1;
+
+// Applies buffering option and writes the handshake to just opened pipe_file
+static void start_stream() {
+    if (buffering_disabled) {
+        setbuf(pipe_file, NULL);
+    }
+    if (binary_protocol) {
+        fwrite(BINARY_PROTOCOL_MAGIC, 1, sizeof(BINARY_PROTOCOL_MAGIC), pipe_file);
+        fwrite(&BINARY_PROTOCOL_VERSION, 1, 1, pipe_file);
+    }
+}
+
+// Sets pipe_file to a new connection to the server or to NULL if connection failed
+static void connect_to_server() {
+    connection_owner = getpid();
+    pipe_file = NULL;
+
+    int fd = socket(AF_INET, SOCK_STREAM, 0);
+    if (fd < 0) {
+        return;
+    }
+    struct sockaddr_in address;
+    memset(&address, 0, sizeof(address));
+    address.sin_family = AF_INET;
+    address.sin_port = htons((uint16_t) server_port);
+    address.sin_addr.s_addr = htonl(INADDR_LOOPBACK);
+    if (connect(fd, (struct sockaddr *) &address, sizeof(address)) != 0 || (pipe_file = fdopen(fd, "w")) == NULL) {
+        close(fd);
+        return;
+    }
+    fputs(server_token, pipe_file);
+    fputc('\n', pipe_file);
+    start_stream();
+}
+
+// Forked child must not write into its parent's connection
+static void ensure_own_connection() {
+    if (server_port == 0 || connection_owner == getpid()) {
+        return;
+    }
+    if (pipe_file != NULL) {
+        // Buffer is empty thanks to flush_before_fork, so closing our copy of the socket doesn't send anything
+        fclose(pipe_file);
+    }
+    connect_to_server();
+    if (pipe_file == NULL) {
+        fprintf(stderr, "arg-scanner: cannot connect to server on port %d, calls of process %d are not sent\n",
+                server_port, (int) getpid());
+    }
+}
+
+// Otherwise child inherits buffered data of its parent and sends it once again
+static void flush_before_fork() {
+    if (pipe_file != NULL) {
+        fflush(pipe_file);
+    }
+}
+
 static VALUE init(VALUE self, VALUE pipe_file_path, VALUE buffering,
-                  VALUE project_root_local, VALUE catch_only_every_n_call_local) {
-    if (pipe_file_path != Qnil) {
+                  VALUE project_root_local, VALUE catch_only_every_n_call_local,
+                  VALUE binary_protocol_local, VALUE server_port_local, VALUE server_token_local) {
+    buffering_disabled = buffering == Qnil;
+    if (binary_protocol_local != Qnil) {
+        binary_protocol = 1;
+        symbol_ids = g_hash_table_new_full(g_str_hash, g_str_equal, g_free, NULL);
+        symbol_ids_owner = getpid();
+    }
+
+    if (server_port_local != Qnil) {
+        if (sscanf(StringValueCStr(server_port_local), "%d", &server_port) != 1 || server_port <= 0) {
+            fprintf(stderr, "Please specify port number in --server-port arg\n");
+            exit(1);
+        }
+        if (server_token_local == Qnil) {
+            fprintf(stderr, "ARG_SCANNER_SERVER_TOKEN environment variable must be set when --server-port is used\n");
+            exit(1);
+        }
+        server_token = strdup(StringValueCStr(server_token_local));
+        connect_to_server();
+        if (pipe_file == NULL) {
+            fprintf(stderr, "Cannot connect to server on port %d\n", server_port);
+            exit(1);
+        }
+    } else if (pipe_file_path != Qnil) {
         pipe_file_path = rb_file_s_expand_path(1, &pipe_file_path); // https://ruby-doc.org/core-2.2.0/File.html#method-c-expand_path
         const char *pipe_file_path_c = StringValueCStr(pipe_file_path);
         if (!file_exists(pipe_file_path_c)) {
@@ -199,12 +407,10 @@ static VALUE init(VALUE self, VALUE pipe_file_path, VALUE buffering,
             fprintf(stderr, "Cannot open pipe file \"%s\" with write access\n", pipe_file_path_c);
             exit(1);
         }
-
-        int buffering_disabled = buffering == Qnil;
-        if (buffering_disabled) {
-            setbuf(pipe_file, NULL);
-        }
+        start_stream();
     }
+    pthread_atfork(flush_before_fork, NULL, NULL);
+
     if (project_root_local != Qnil) {
         project_root = strdup(StringValueCStr(project_root_local));
     }
@@ -226,7 +432,7 @@ void Init_arg_scanner() {
     rb_define_module_function(mArgScanner, "get_call_info", get_call_info_rb, 0);
     rb_define_module_function(mArgScanner, "destructor", destructor, 0);
     rb_define_module_function(mArgScanner, "check_if_arg_scanner_ready", check_if_arg_scanner_ready, 0);
-    rb_define_module_function(mArgScanner, "init", init, 4);
+    rb_define_module_function(mArgScanner, "init", init, 7);
 
     sent_to_server_tree = g_tree_new_full(/*key_compare_func =*/sent_to_server_tree_comparator,
                                           /*key_compare_data =*/NULL,
@@ -381,7 +587,10 @@ handle_return(VALUE self, VALUE tp)
         // GTree will free memory allocated by sign by itself
         g_tree_insert(sent_to_server_tree, /*key = */sign, /*value = */sign);
 
-        if (pipe_file != NULL) {
+        ensure_own_connection();
+        if (pipe_file != NULL && binary_protocol) {
+            write_binary_call(sign);
+        } else if (pipe_file != NULL) {
             fprintf(pipe_file,
                 "{\"method_name\":\"%s\",\"call_info_argc\":\"%d\",\"args_info\":\"%s\",\"visibility\":\"%s\","
                 "\"path\":\"%s\",\"lineno\":\"%d\",\"receiver_name\":\"%s\",\"return_type_name\":\"%s\"}\n",
@@ -850,8 +1059,21 @@ static VALUE
 destructor(VALUE self) {
     g_tree_destroy(sent_to_server_tree);
     g_tree_destroy(number_missed_calls_tree);
-    fprintf(pipe_file, "%s\n", ARG_SCANNER_EXIT_COMMAND);
-    fclose(pipe_file);
+    // Forked child which hasn't sent anything doesn't have its own connection and must not close parent's one
+    int owns_connection = server_port == 0 || connection_owner == getpid();
+    if (pipe_file != NULL && owns_connection) {
+        if (binary_protocol) {
+            write_binary_exit();
+        } else {
+            fprintf(pipe_file, "%s\n", ARG_SCANNER_EXIT_COMMAND);
+        }
+    }
+    if (binary_protocol) {
+        g_hash_table_destroy(symbol_ids);
+    }
+    if (pipe_file != NULL) {
+        fclose(pipe_file);
+    }
     free(project_root);
     return Qnil;
 }
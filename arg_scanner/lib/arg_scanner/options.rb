@@ -8,7 +8,11 @@ module ArgScanner
       :catch_only_every_n_call => ENV['ARG_SCANNER_CATCH_ONLY_EVERY_N_CALL'] || 1,
       :project_root => ENV['ARG_SCANNER_PROJECT_ROOT'],
       :pipe_file_path => ENV['ARG_SCANNER_PIPE_FILE_PATH'] || '',
-      :buffering => ENV['ARG_SCANNER_BUFFERING']
+      :buffering => ENV['ARG_SCANNER_BUFFERING'],
+      :binary_protocol => ENV['ARG_SCANNER_BINARY_PROTOCOL'],
+      :server_port => ENV['ARG_SCANNER_SERVER_PORT'],
+      # not a command line option: command lines are visible to other users
+      :server_token => ENV['ARG_SCANNER_SERVER_TOKEN']
   )
 
   def OPTIONS.set_env
@@ -19,5 +23,8 @@ module ArgScanner
     ENV['ARG_SCANNER_PROJECT_ROOT'] = self.project_root
     ENV['ARG_SCANNER_PIPE_FILE_PATH'] = self.pipe_file_path
     ENV['ARG_SCANNER_BUFFERING'] = self.buffering ? "1" : nil
+    ENV['ARG_SCANNER_BINARY_PROTOCOL'] = self.binary_protocol ? "1" : nil
+    ENV['ARG_SCANNER_SERVER_PORT'] = self.server_port ? self.server_port.to_s : nil
+    ENV['ARG_SCANNER_SERVER_TOKEN'] = self.server_token
   end
 end
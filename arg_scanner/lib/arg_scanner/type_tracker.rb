@@ -53,7 +53,9 @@ module ArgScanner
 
     def initialize
       ArgScanner.init(ENV['ARG_SCANNER_PIPE_FILE_PATH'], ENV['ARG_SCANNER_BUFFERING'],
-                      ENV['ARG_SCANNER_PROJECT_ROOT'], ENV['ARG_SCANNER_CATCH_ONLY_EVERY_N_CALL'])
+                      ENV['ARG_SCANNER_PROJECT_ROOT'], ENV['ARG_SCANNER_CATCH_ONLY_EVERY_N_CALL'],
+                      ENV['ARG_SCANNER_BINARY_PROTOCOL'], ENV['ARG_SCANNER_SERVER_PORT'],
+                      ENV['ARG_SCANNER_SERVER_TOKEN'])
 
       @enable_debug = ENV["ARG_SCANNER_DEBUG"]
       @performance_monitor = if @enable_debug then TypeTrackerPerformanceMonitor.new else nil end
@@ -0,0 +1,82 @@
+package org.jetbrains.ruby.codeInsight.types.signature.benchmarks;
+
+import org.jetbrains.ruby.codeInsight.types.signature.RSignatureContract;
+import org.jetbrains.ruby.codeInsight.types.signature.RTuple;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building contracts from tuples: {@link RSignatureContract#addRTuple}, {@link RSignatureContract#minimize}
+ * and {@link RSignatureContract#mergeWith}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContractBuildBenchmark {
+    @Param({"MONOMORPHIC", "POLYMORPHIC", "REFERENCE_HEAVY"})
+    public TupleGenerator.Shape shape;
+
+    @Param({"100", "1000"})
+    public int tuplesCount;
+
+    @Param({"2", "5"})
+    public int argsCount;
+
+    private List<RTuple> myTuples;
+
+    private RSignatureContract myLeft;
+
+    private RSignatureContract myRight;
+
+    @Setup
+    public void setUp() {
+        myTuples = new TupleGenerator(shape, argsCount, 42).generate(tuplesCount);
+        myLeft = build(myTuples.subList(0, tuplesCount / 2));
+        myLeft.minimize();
+        myRight = build(myTuples.subList(tuplesCount / 2, tuplesCount));
+        myRight.minimize();
+    }
+
+    private static RSignatureContract build(List<RTuple> tuples) {
+        RSignatureContract contract = new RSignatureContract(tuples.get(0));
+        for (int i = 1; i < tuples.size(); i++) {
+            contract.addRTuple(tuples.get(i));
+        }
+        return contract;
+    }
+
+    @Benchmark
+    public RSignatureContract addRTuples() {
+        return build(myTuples);
+    }
+
+    /**
+     * Subtract {@link #addRTuples} to get the cost of the minimization
+     */
+    @Benchmark
+    public RSignatureContract addRTuplesAndMinimize() {
+        RSignatureContract contract = build(myTuples);
+        contract.minimize();
+        return contract;
+    }
+
+    /**
+     * Subtract {@link #copy} to get the cost of the merge
+     */
+    @Benchmark
+    public RSignatureContract mergeWith() {
+        RSignatureContract contract = RSignatureContract.minimizedCopy(myLeft);
+        contract.mergeWith(myRight);
+        return contract;
+    }
+
+    @Benchmark
+    public RSignatureContract copy() {
+        return RSignatureContract.minimizedCopy(myLeft);
+    }
+}
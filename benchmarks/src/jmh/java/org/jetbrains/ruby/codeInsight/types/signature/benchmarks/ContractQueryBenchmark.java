@@ -0,0 +1,73 @@
+package org.jetbrains.ruby.codeInsight.types.signature.benchmarks;
+
+import org.jetbrains.ruby.codeInsight.types.signature.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Querying contracts: {@link SignatureContract.Companion#accept} and
+ * {@link SignatureContract.Companion#getAllReturnTypes} for every in-memory representation of a contract
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContractQueryBenchmark {
+    private static final int PROBES_COUNT = 256;
+
+    @Param({"MONOMORPHIC", "POLYMORPHIC", "REFERENCE_HEAVY"})
+    public TupleGenerator.Shape shape;
+
+    @Param({"1000"})
+    public int tuplesCount;
+
+    @Param({"2", "5"})
+    public int argsCount;
+
+    @Param({"R_SIGNATURE", "PACKED", "MAPPED"})
+    public ContractRepresentation representation;
+
+    private SignatureContract myContract;
+
+    private List<RTuple> myProbes;
+
+    @Setup
+    public void setUp() {
+        TupleGenerator generator = new TupleGenerator(shape, argsCount, 42);
+        List<RTuple> tuples = generator.generate(tuplesCount);
+        RSignatureContract contract = new RSignatureContract(tuples.get(0));
+        for (RTuple tuple : tuples) {
+            contract.addRTuple(tuple);
+        }
+        contract.minimize();
+        myContract = representation.of(contract);
+
+        // half of the probes are known tuples, the rest are mostly rejected
+        myProbes = new ArrayList<>(PROBES_COUNT);
+        myProbes.addAll(tuples.subList(0, Math.min(PROBES_COUNT / 2, tuples.size())));
+        myProbes.addAll(new TupleGenerator(shape, argsCount, 7).generate(PROBES_COUNT - myProbes.size()));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PROBES_COUNT)
+    public void accept(Blackhole blackhole) {
+        for (RTuple probe : myProbes) {
+            blackhole.consume(SignatureContract.Companion.accept(myContract, probe));
+        }
+    }
+
+    /**
+     * The query is built every time, otherwise the cached result would be measured
+     */
+    @Benchmark
+    public Set<String> getAllReturnTypes() {
+        return new ReturnTypeQuery(myContract).getAllReturnTypes();
+    }
+}
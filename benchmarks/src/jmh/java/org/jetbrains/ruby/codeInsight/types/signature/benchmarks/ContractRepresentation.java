@@ -0,0 +1,49 @@
+package org.jetbrains.ruby.codeInsight.types.signature.benchmarks;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.ruby.codeInsight.types.signature.MappedSignatureContract;
+import org.jetbrains.ruby.codeInsight.types.signature.PackedSignatureContract;
+import org.jetbrains.ruby.codeInsight.types.signature.RSignatureContract;
+import org.jetbrains.ruby.codeInsight.types.signature.SignatureContract;
+import org.jetbrains.ruby.codeInsight.types.signature.serialization.SignatureContractSerializationKt;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+public enum ContractRepresentation {
+    R_SIGNATURE {
+        @NotNull
+        @Override
+        SignatureContract of(@NotNull RSignatureContract contract) {
+            return contract;
+        }
+    },
+    PACKED {
+        @NotNull
+        @Override
+        SignatureContract of(@NotNull RSignatureContract contract) {
+            return PackedSignatureContract.read(new DataInputStream(new ByteArrayInputStream(serialize(contract))));
+        }
+    },
+    MAPPED {
+        @NotNull
+        @Override
+        SignatureContract of(@NotNull RSignatureContract contract) {
+            return MappedSignatureContract.wrap(ByteBuffer.wrap(serialize(contract)));
+        }
+    };
+
+    @NotNull
+    abstract SignatureContract of(@NotNull RSignatureContract contract);
+
+    @NotNull
+    static byte[] serialize(@NotNull SignatureContract contract) {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        try (DataOutputStream stream = new DataOutputStream(outputStream)) {
+            SignatureContractSerializationKt.serialize(contract, stream);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return outputStream.toByteArray();
+    }
+}
@@ -0,0 +1,76 @@
+package org.jetbrains.ruby.codeInsight.types.signature.benchmarks;
+
+import org.jetbrains.ruby.codeInsight.types.signature.*;
+import org.jetbrains.ruby.codeInsight.types.signature.serialization.SignatureContractSerializationKt;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writing contracts and reading them back into each in-memory representation
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+    @Param({"MONOMORPHIC", "POLYMORPHIC", "REFERENCE_HEAVY"})
+    public TupleGenerator.Shape shape;
+
+    @Param({"1000"})
+    public int tuplesCount;
+
+    @Param({"2", "5"})
+    public int argsCount;
+
+    private RSignatureContract myContract;
+
+    private byte[] myBytes;
+
+    private final ByteArrayOutputStream myOutputStream = new ByteArrayOutputStream();
+
+    @Setup
+    public void setUp() {
+        List<RTuple> tuples = new TupleGenerator(shape, argsCount, 42).generate(tuplesCount);
+        myContract = new RSignatureContract(tuples.get(0));
+        for (RTuple tuple : tuples) {
+            myContract.addRTuple(tuple);
+        }
+        myContract.minimize();
+        myBytes = ContractRepresentation.serialize(myContract);
+    }
+
+    @Benchmark
+    public int serialize() {
+        myOutputStream.reset();
+        SignatureContractSerializationKt.serialize(myContract, new DataOutputStream(myOutputStream));
+        return myOutputStream.size();
+    }
+
+    @Benchmark
+    public SignatureContract deserialize() {
+        return SignatureContractSerializationKt.SignatureContract(
+                new DataInputStream(new ByteArrayInputStream(myBytes)));
+    }
+
+    @Benchmark
+    public SignatureContract readPacked() {
+        return PackedSignatureContract.read(new DataInputStream(new ByteArrayInputStream(myBytes)));
+    }
+
+    /**
+     * Mapping is lazy, so the node count is asked to build the index of the buffer
+     */
+    @Benchmark
+    public int readMapped() {
+        return SignatureContractSerializationKt.SignatureContract(ByteBuffer.wrap(myBytes)).getNodeCount();
+    }
+}
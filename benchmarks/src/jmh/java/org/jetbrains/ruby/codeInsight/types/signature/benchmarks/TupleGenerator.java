@@ -0,0 +1,111 @@
+package org.jetbrains.ruby.codeInsight.types.signature.benchmarks;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.ruby.codeInsight.types.signature.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates reproducible synthetic call tuples of a single method
+ */
+public class TupleGenerator {
+    public enum Shape {
+        /**
+         * Every position always reads the same type, like most of the methods called in practice
+         */
+        MONOMORPHIC,
+        /**
+         * Positions read types from a wide pool with a skewed distribution; the return type depends on the first argument
+         */
+        POLYMORPHIC,
+        /**
+         * Arguments mostly repeat types of the previous arguments and the return type is one of them,
+         * so most of the transitions are references
+         */
+        REFERENCE_HEAVY
+    }
+
+    private static final String[] CORE_TYPES = {
+            "Integer", "String", "Symbol", "Float", "Array", "Hash", "NilClass", "TrueClass", "FalseClass",
+            "Proc", "Range", "Regexp", "Time", "Rational", "Set", "StandardError"
+    };
+
+    private static final int POLYMORPHIC_TYPES_COUNT = 64;
+
+    private static final MethodInfo METHOD_INFO = MethodInfoKt.MethodInfo(
+            ClassInfoKt.ClassInfo(GemInfoKt.GemInfo("bench_gem", "1.0.0"), "Bench::Target"),
+            "call", RVisibility.PUBLIC, new Location("bench/target.rb", 1));
+
+    @NotNull
+    private final Shape myShape;
+    @NotNull
+    private final List<ParameterInfo> myArgsInfo;
+    @NotNull
+    private final Random myRandom;
+
+    public TupleGenerator(@NotNull Shape shape, int argsCount, long seed) {
+        myShape = shape;
+        myRandom = new Random(seed);
+        List<ParameterInfo> argsInfo = new ArrayList<>(argsCount);
+        for (int i = 0; i < argsCount; i++) {
+            argsInfo.add(new ParameterInfo("arg" + i, ParameterInfo.Type.REQ));
+        }
+        myArgsInfo = Collections.unmodifiableList(argsInfo);
+    }
+
+    @NotNull
+    public List<RTuple> generate(int count) {
+        List<RTuple> result = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            result.add(next());
+        }
+        return result;
+    }
+
+    @NotNull
+    public RTuple next() {
+        List<String> argsTypes = new ArrayList<>(myArgsInfo.size());
+        String returnType;
+        switch (myShape) {
+            case MONOMORPHIC:
+                for (int i = 0; i < myArgsInfo.size(); i++) {
+                    argsTypes.add(CORE_TYPES[i % CORE_TYPES.length]);
+                }
+                returnType = "String";
+                break;
+            case POLYMORPHIC:
+                for (int i = 0; i < myArgsInfo.size(); i++) {
+                    argsTypes.add(skewedType());
+                }
+                returnType = argsTypes.isEmpty()
+                        ? skewedType()
+                        : "Result" + (Math.abs(argsTypes.get(0).hashCode()) % 8);
+                break;
+            case REFERENCE_HEAVY:
+                for (int i = 0; i < myArgsInfo.size(); i++) {
+                    argsTypes.add(i > 0 && myRandom.nextInt(4) != 0
+                            ? argsTypes.get(myRandom.nextInt(i))
+                            : CORE_TYPES[myRandom.nextInt(CORE_TYPES.length)]);
+                }
+                returnType = argsTypes.isEmpty() || myRandom.nextInt(8) == 0
+                        ? "NilClass"
+                        : argsTypes.get(myRandom.nextInt(argsTypes.size()));
+                break;
+            default:
+                throw new IllegalStateException("Unknown shape: " + myShape);
+        }
+        return new RTuple(METHOD_INFO, myArgsInfo, argsTypes, returnType);
+    }
+
+    /**
+     * @return one of {@link #POLYMORPHIC_TYPES_COUNT} types, lower indices are much more likely
+     */
+    @NotNull
+    private String skewedType() {
+        int index = (int) (POLYMORPHIC_TYPES_COUNT * Math.pow(myRandom.nextDouble(), 3));
+        return index < CORE_TYPES.length ? CORE_TYPES[index] : "Bench::Type" + index;
+    }
+}
@@ -0,0 +1,240 @@
+package org.jetbrains.ruby.runtime.signature.server
+
+import org.jetbrains.ruby.codeInsight.types.signature.ArgumentNameAndType
+import org.jetbrains.ruby.codeInsight.types.signature.CallInfo
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * Remembers [CallInfo]s which were already passed to the database, so repeated ones (e.g. sent by
+ * forked processes or by parallel test runs, each of which dedupes calls only by itself) are dropped early.
+ *
+ * [CallInfo]s are remembered as two independent 64-bit hashes: one chooses a bucket of [BUCKET_SIZE] slots and
+ * the other one is stored in a slot. When a bucket is full one of its slots is overwritten, so memory is fixed
+ * ([capacity] longs) and forgotten [CallInfo]s are simply passed to the database once again,
+ * where they are deduplicated by [org.jetbrains.ruby.codeInsight.types.storage.server.impl.CallInfoTable].
+ *
+ * The database doesn't keep every call info it received: a call info with another number of unnamed arguments
+ * removes the stored call infos of its method. So every method has an epoch, which is changed whenever the number
+ * of unnamed arguments of its call infos changes, and call infos are remembered together with the epoch of their
+ * method. After such a change all call infos of the method are new again. Epochs are taken from a global counter,
+ * so a method whose epoch was forgotten (methods are remembered in a fixed size table too) gets a new one rather
+ * than an old one. Call infos removed from the database otherwise must be forgotten with [clear].
+ *
+ * Thread safe and lock free
+ */
+class CallInfoDeduplicator(capacity: Int) {
+    companion object {
+        private const val BUCKET_SIZE = 8
+        private const val EMPTY = 0L
+
+        private const val METHOD_BUCKET_SIZE = 4
+        private const val EPOCH_BITS = 24
+        private const val ARITY_BITS = 8
+        private const val MAX_ARITY = (1 shl ARITY_BITS) - 1
+    }
+
+    private val slots: AtomicLongArray
+    private val bucketMask: Int
+
+    /**
+     * Method entries: 32 bits of method hash, [EPOCH_BITS] of epoch and [ARITY_BITS] of number of unnamed arguments
+     */
+    private val methodSlots: AtomicLongArray
+    private val methodBucketMask: Int
+
+    private val lastEpoch = AtomicInteger(0)
+
+    init {
+        require(capacity >= BUCKET_SIZE) { "Capacity must be at least $BUCKET_SIZE" }
+        val bucketsCount = Integer.highestOneBit(capacity / BUCKET_SIZE)
+        slots = AtomicLongArray(bucketsCount * BUCKET_SIZE)
+        bucketMask = bucketsCount - 1
+        // a method has BUCKET_SIZE call infos on average at most
+        val methodBucketsCount = Math.max(1, bucketsCount / METHOD_BUCKET_SIZE)
+        methodSlots = AtomicLongArray(methodBucketsCount * METHOD_BUCKET_SIZE)
+        methodBucketMask = methodBucketsCount - 1
+    }
+
+    private val checked = AtomicLong(0)
+    private val duplicates = AtomicLong(0)
+
+    val checkedCount: Long
+        get() = checked.get()
+
+    val duplicatesCount: Long
+        get() = duplicates.get()
+
+    /**
+     * Share of checked [CallInfo]s which turned out to be duplicates
+     */
+    val hitRate: Double
+        get() = checked.get().let { if (it == 0L) 0.0 else duplicates.get().toDouble() / it }
+
+    /**
+     * @return true if [callInfo] is seen for the first time (or was forgotten) and should be stored
+     */
+    fun add(callInfo: CallInfo): Boolean {
+        checked.incrementAndGet()
+
+        val hasher = Hasher()
+        hasher.putMethod(callInfo)
+        val epoch = methodEpoch(hasher.methodHash, callInfo.unnamedArguments.size)
+        hasher.put(callInfo, epoch)
+        // 0 marks empty slot
+        val fingerprint = hasher.first.let { if (it == EMPTY) 1L else it }
+        val bucketStart = (hasher.second.toInt() and bucketMask) * BUCKET_SIZE
+
+        for (i in bucketStart until bucketStart + BUCKET_SIZE) {
+            while (true) {
+                val current = slots.get(i)
+                if (current == fingerprint) {
+                    duplicates.incrementAndGet()
+                    return false
+                }
+                if (current != EMPTY) {
+                    break
+                }
+                if (slots.compareAndSet(i, EMPTY, fingerprint)) {
+                    return true
+                }
+                // somebody has taken the slot meanwhile, maybe with the same fingerprint
+            }
+        }
+        // Bucket is full. Evicted slot is chosen by fingerprint bits not used for the bucket choice
+        slots.set(bucketStart + (fingerprint ushr 61).toInt(), fingerprint)
+        return true
+    }
+
+    /**
+     * Forgets all [CallInfo]s, e.g. when they are removed from the database
+     */
+    fun clear() {
+        for (i in 0 until slots.length()) {
+            slots.set(i, EMPTY)
+        }
+    }
+
+    /**
+     * @return epoch of the method with [methodHash], changed if its last call info had another [arity]
+     */
+    private fun methodEpoch(methodHash: Long, arity: Int): Int {
+        val bucketStart = (methodHash.toInt() and methodBucketMask) * METHOD_BUCKET_SIZE
+        val tag = methodHash ushr 32
+        val cappedArity = Math.min(arity, MAX_ARITY).toLong()
+        while (true) {
+            // slot of the method if it's remembered, otherwise an empty one or the one to evict
+            var slot = bucketStart + (tag and (METHOD_BUCKET_SIZE - 1).toLong()).toInt()
+            var current = methodSlots.get(slot)
+            for (i in bucketStart until bucketStart + METHOD_BUCKET_SIZE) {
+                val entry = methodSlots.get(i)
+                if (entry != EMPTY && entry ushr 32 == tag) {
+                    if (entry and MAX_ARITY.toLong() == cappedArity) {
+                        return (entry ushr ARITY_BITS).toInt() and ((1 shl EPOCH_BITS) - 1)
+                    }
+                    slot = i
+                    current = entry
+                    break
+                }
+                if (entry == EMPTY && current != EMPTY) {
+                    slot = i
+                    current = entry
+                }
+            }
+            // new method, forgotten one or another number of unnamed arguments. 0 epoch is skipped, so that
+            // no entry equals EMPTY
+            val epoch = (lastEpoch.incrementAndGet() and ((1 shl EPOCH_BITS) - 1)).let { if (it == 0) 1 else it }
+            if (methodSlots.compareAndSet(slot, current, (tag shl 32) or (epoch.toLong() shl ARITY_BITS) or cappedArity)) {
+                return epoch
+            }
+        }
+    }
+
+    /**
+     * Calculates FNV-1a and polynomial hashes of all [CallInfo] fields in one pass
+     */
+    private class Hasher {
+        var first = -0x340d631b7bdddcdbL // FNV-1a offset basis
+            private set
+        var second = 17L
+            private set
+
+        /**
+         * Hash of the fields put by [putMethod]
+         */
+        val methodHash: Long
+            get() = mix(first)
+
+        /**
+         * Hashes fields identifying the method in the database (see [methodHash])
+         */
+        fun putMethod(callInfo: CallInfo) {
+            val methodInfo = callInfo.methodInfo
+            val classInfo = methodInfo.classInfo
+            val gemInfo = classInfo.gemInfo
+            if (gemInfo != null) {
+                put(gemInfo.name)
+                put(gemInfo.version)
+            } else {
+                put(0)
+            }
+            put(classInfo.classFQN)
+            put(methodInfo.name)
+        }
+
+        /**
+         * Hashes the rest of [callInfo] fields and [epoch] after [putMethod]
+         */
+        fun put(callInfo: CallInfo, epoch: Int) {
+            val methodInfo = callInfo.methodInfo
+            put(methodInfo.visibility.ordinal)
+            val location = methodInfo.location
+            if (location != null) {
+                put(location.path)
+                put(location.lineno)
+            } else {
+                put(0)
+            }
+            put(callInfo.unnamedArguments)
+            put(callInfo.namedArguments)
+            put(callInfo.returnType)
+            put(epoch)
+            first = mix(first)
+            second = mix(second)
+        }
+
+        private fun put(arguments: List<ArgumentNameAndType>) {
+            put(arguments.size)
+            for (argument in arguments) {
+                put(argument.name)
+                put(argument.type)
+            }
+        }
+
+        /**
+         * Strings are prefixed with their length, so different splits of the same characters hash differently
+         */
+        private fun put(string: String) {
+            put(string.length)
+            for (ch in string) {
+                put(ch.toInt())
+            }
+        }
+
+        private fun put(value: Int) {
+            first = (first xor value.toLong()) * 0x100000001b3L // FNV-1a prime
+            second = second * 1000003L + value
+        }
+
+        /**
+         * Finalizer of MurmurHash3, makes every bit of the result depend on all bits of [hash]
+         */
+        private fun mix(hash: Long): Long {
+            var h = hash
+            h = (h xor (h ushr 33)) * -0xae502812aa7333L
+            h = (h xor (h ushr 33)) * -0x3b314601e57a13adL
+            return h xor (h ushr 33)
+        }
+    }
+}
@@ -7,15 +7,30 @@ import org.jetbrains.ruby.codeInsight.initInjector
 import org.jetbrains.ruby.codeInsight.types.signature.CallInfo
 import org.jetbrains.ruby.codeInsight.types.storage.server.DatabaseProvider
 import org.jetbrains.ruby.codeInsight.types.storage.server.impl.CallInfoTable
+import org.jetbrains.ruby.runtime.signature.server.serialisation.BinaryCallRecordReader
+import org.jetbrains.ruby.runtime.signature.server.serialisation.CallInfoDecoder
 import org.jetbrains.ruby.runtime.signature.server.serialisation.ServerResponseBean
 import org.jetbrains.ruby.runtime.signature.server.serialisation.toCallInfo
+import java.io.BufferedInputStream
 import java.io.File
 import java.io.FileInputStream
+import java.io.FilterInputStream
 import java.io.IOException
+import java.io.InputStream
+import java.net.InetAddress
+import java.net.ServerSocket
+import java.net.Socket
+import java.net.SocketTimeoutException
 import java.nio.file.Paths
+import java.security.MessageDigest
+import java.security.SecureRandom
 import java.util.*
 import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.BlockingQueue
+import java.util.concurrent.Exchanger
+import java.util.concurrent.TimeUnit
 import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
 import java.util.concurrent.atomic.AtomicLong
 import java.util.logging.Logger
 import kotlin.concurrent.thread
@@ -50,9 +65,30 @@ private fun parseArgs(args: Array<String>): ParsedArgs {
     return ParsedArgs(args.single())
 }
 
-class SignatureServer {
+class SignatureServer @JvmOverloads constructor(
+        /**
+         * Number of threads which decode lines received from arg-scanner into [CallInfo]s
+         */
+        private val decodeWorkersCount: Int = DEFAULT_DECODE_WORKERS_COUNT,
+        /**
+         * Decoded [CallInfo]s are committed to the database at most this number of milliseconds after they were
+         * received, even if the batch isn't full
+         */
+        private val maxFlushDelayMillis: Long = DEFAULT_MAX_FLUSH_DELAY_MILLIS,
+        /**
+         * Number of distinct [CallInfo]s remembered to drop repeated ones before they reach the database.
+         * 0 turns deduplication off
+         */
+        dedupCapacity: Int = DEFAULT_DEDUP_CAPACITY) {
     companion object {
         private const val LOCAL_STORAGE_SIZE_LIMIT = 128
+        private const val DEFAULT_MAX_FLUSH_DELAY_MILLIS = 50L
+        private const val DEFAULT_DEDUP_CAPACITY = 1 shl 20
+        private const val QUEUE_CAPACITY = 10024
+        private const val SOCKET_BACKLOG = 50
+        private const val CONNECTION_TOKEN_BYTES = 16
+        private const val CONNECTION_TOKEN_TIMEOUT_MILLIS = 10_000
+        private val DEFAULT_DECODE_WORKERS_COUNT = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1))
 
         @Suppress("ObjectPropertyName")
         private val _runningServers: MutableList<SignatureServer> = Collections.synchronizedList(mutableListOf())
@@ -61,19 +97,87 @@ class SignatureServer {
     }
     private val LOGGER = Logger.getLogger("SignatureServer")
 
-    private val callInfoContainer = LinkedList<CallInfo>()
+    init {
+        require(decodeWorkersCount > 0) { "At least one decode worker is required" }
+        require(maxFlushDelayMillis >= 0) { "Flush delay can't be negative" }
+        require(dedupCapacity >= 0) { "Dedup capacity can't be negative" }
+    }
+
+    /**
+     * Secret every connection to the socket server must start with, followed by `\n` (see [runSocketServerAsync]).
+     * The loopback port is open to every local user, so only processes the token was passed to can write calls.
+     * It should be given to arg-scanner via `ARG_SCANNER_SERVER_TOKEN` environment variable rather than command
+     * line, which is visible to other users
+     */
+    val connectionToken: String = ByteArray(CONNECTION_TOKEN_BYTES)
+            .also { SecureRandom().nextBytes(it) }
+            .joinToString("") { String.format("%02x", it) }
+
+    /**
+     * `null` if deduplication is turned off. See [CallInfoDeduplicator.hitRate] for the share of dropped [CallInfo]s
+     */
+    val deduplicator: CallInfoDeduplicator? = if (dedupCapacity > 0) CallInfoDeduplicator(dedupCapacity) else null
 
     private val gson = Gson()
-    private val queue = ArrayBlockingQueue<String>(10024)
+    private val decodedQueue = ArrayBlockingQueue<DecodeResult>(QUEUE_CAPACITY)
     private val isReady = AtomicBoolean(true)
-    private var previousPollEndedWithFlush = false
+    private val busyDecodeWorkers = AtomicInteger(0)
 
+    /**
+     * Time spent on reading from the pipe. For binary protocol it includes decoding of [CallInfo]s
+     */
     val readTime = AtomicLong(0)
-    val jsonTime = AtomicLong(0)
-    val addTime = AtomicLong(0)
 
-    private val signatureHandler = SignatureHandler()
+    /**
+     * Time spent on json parsing summed over all decode workers. See [decodeWorkersStatistics] for per worker values
+     */
+    val jsonTime: Long
+        get() = decodeWorkersStatistics.fold(0L) { acc, it -> acc + it.jsonTime.get() }
+
+    /**
+     * Time spent on passing decoded [CallInfo]s to flush stage summed over all decode workers.
+     * See [decodeWorkersStatistics] for per worker values
+     */
+    val addTime: Long
+        get() = decodeWorkersStatistics.fold(0L) { acc, it -> acc + it.addTime.get() }
+
+    /**
+     * Number of decode workers which are decoding some line right now
+     */
+    val busyDecodeWorkersCount: Int
+        get() = busyDecodeWorkers.get()
+
+    @Volatile
+    private var socketAcceptor: SocketAcceptor? = null
+    private val decodeWorkers = List(decodeWorkersCount) { DecodeWorker(it) }
     private val pollJsonThread = PollJsonThread()
+    private val batchWriter = BatchWriter()
+
+    /**
+     * Durations of recent database commits of [CallInfo] batches
+     */
+    val commitLatencies = LatencyStatistics()
+
+    val decodeWorkersStatistics: List<DecodeWorkerStatistics> = decodeWorkers.map { it.statistics }
+
+    private val _connectionsStatistics: MutableList<ConnectionStatistics> = Collections.synchronizedList(ArrayList())
+    private val connectionsCounter = AtomicInteger(0)
+
+    /**
+     * Statistics of all connections (or pipe reopenings) accepted so far, both open and closed
+     */
+    val connectionsStatistics: List<ConnectionStatistics>
+        get() = synchronized(_connectionsStatistics) { ArrayList(_connectionsStatistics) }
+
+    val openConnectionsCount: Int
+        get() = connectionsStatistics.count { it.isOpen }
+
+    /**
+     * Number of [CallInfo]s decoded but not yet taken to a batch. When it stays near [QUEUE_CAPACITY]
+     * database writes are the bottleneck and readers are blocked, see [ConnectionStatistics.blockedTime]
+     */
+    val pendingCallInfosCount: Int
+        get() = decodedQueue.size
 
     fun isProcessingRequests() = !isReady.get()
 
@@ -96,100 +200,216 @@ class SignatureServer {
             throw RuntimeException("Cannot create pipe file")
         }
 
-        signatureHandler.pipeFilePath = pipeFileName
+        val signatureHandler = SignatureHandler(pipeFileName)
         signatureHandler.isDaemon = isDaemon
         signatureHandler.start()
 
-        pollJsonThread.isDaemon = isDaemon
-        pollJsonThread.start()
+        startPipeline(isDaemon)
         return pipeFileName
     }
 
-    var afterFlushListener: (() -> Unit)? = null
+    /**
+     * Starts server which accepts any number of simultaneous arg-scanner connections on a loopback socket.
+     * Unlike [runServerAsync] EXIT received from arg-scanner closes only its connection, the server works
+     * until [shutdown] is called. Connections which don't start with [connectionToken] are closed
+     *
+     * @return port which should be passed to arg-scanner via `--server-port`
+     */
+    fun runSocketServerAsync(isDaemon: Boolean): Int {
+        isReady.set(false)
+        _runningServers.add(this)
+        LOGGER.info("Starting socket server")
 
-    var afterExitListener: (() -> Unit)? = null
+        val acceptor = SocketAcceptor(ServerSocket(0, SOCKET_BACKLOG, InetAddress.getLoopbackAddress()), isDaemon)
+        socketAcceptor = acceptor
+        acceptor.isDaemon = isDaemon
+        acceptor.start()
+
+        startPipeline(isDaemon)
+        return acceptor.port
+    }
 
     /**
-     * @return true when client won't send data anymore
+     * Stops server started by [runSocketServerAsync]: new connections are no longer accepted, the server
+     * finishes after all open connections are closed by arg-scanner
      */
-    private fun pollJson(): Boolean {
-        val jsonString by lazy { if (previousPollEndedWithFlush) queue.take() else queue.poll() }
-        if (callInfoContainer.size > LOCAL_STORAGE_SIZE_LIMIT || jsonString == null || jsonString == EXIT_COMMAND) {
-            flushNewTuplesToMainStorage()
-            previousPollEndedWithFlush = true
-            return jsonString == EXIT_COMMAND
+    fun shutdown() {
+        val acceptor = socketAcceptor ?: throw IllegalStateException("Socket server isn't running")
+        acceptor.close()
+    }
+
+    private fun startPipeline(isDaemon: Boolean) {
+        for (decodeWorker in decodeWorkers) {
+            decodeWorker.isDaemon = isDaemon
+            decodeWorker.start()
         }
-        previousPollEndedWithFlush = false
 
-        parseJson(jsonString)
-        return false
+        pollJsonThread.isDaemon = isDaemon
+        pollJsonThread.start()
+
+        batchWriter.isDaemon = isDaemon
+        batchWriter.start()
     }
 
-    private fun parseJson(jsonString: String) {
-        val currCallInfo = ben(jsonTime) {
-            try {
-                return@ben gson.fromJson(jsonString, ServerResponseBean::class.java)?.toCallInfo()
-            } catch (ex: Throwable) {
-                when (ex) {
-                    is JsonSyntaxException, is JsonParseException -> {
-                        // Sometimes it's possible that some json fields contain quotation mark and we got JsonSyntaxException
-                        LOGGER.severe("Cannot parse: $jsonString")
-                    }
-                    is IllegalStateException -> {
-                        LOGGER.severe(ex.message)
-                    }
-                    else -> throw ex
+    /**
+     * Called after every flush with the call infos passed to [CallInfoTable.insertInfosIfNotContains],
+     * so listeners can invalidate data of these methods only
+     */
+    var afterFlushListener: ((flushed: List<CallInfo>) -> Unit)? = null
+
+    var afterExitListener: (() -> Unit)? = null
+
+    private fun parseJson(jsonString: String, decoder: CallInfoDecoder): CallInfo? {
+        try {
+            // decoder recognizes only the exact format arg-scanner writes, everything else goes through gson
+            return decoder.decode(jsonString)
+                    ?: gson.fromJson(jsonString, ServerResponseBean::class.java)?.toCallInfo()
+        } catch (ex: Throwable) {
+            when (ex) {
+                is JsonSyntaxException, is JsonParseException -> {
+                    // Sometimes it's possible that some json fields contain quotation mark and we got JsonSyntaxException
+                    LOGGER.severe("Cannot parse: $jsonString")
                 }
-                return@ben null
+                is IllegalStateException -> {
+                    LOGGER.severe(ex.message)
+                }
+                else -> throw ex
             }
+            return null
         }
+    }
+
+    // filter, for example, such things #<Class:DidYouMean::Jaro>, and calls which are already stored
+    private fun isFiltered(callInfo: CallInfo) = callInfo.methodInfo.classInfo.classFQN.startsWith("#<") ||
+            deduplicator?.add(callInfo) == false
 
-        // filter, for example, such things #<Class:DidYouMean::Jaro>
-        if (currCallInfo?.methodInfo?.classInfo?.classFQN?.startsWith("#<") == true) {
-            return
+    private fun flushNewTuplesToMainStorage(callInfos: List<CallInfo>) {
+        if (callInfos.isNotEmpty()) {
+            val start = System.nanoTime()
+            DatabaseProvider.defaultDatabaseTransaction {
+                CallInfoTable.insertInfosIfNotContains(callInfos)
+            }
+            commitLatencies.record(System.nanoTime() - start)
         }
+        afterFlushListener?.invoke(callInfos)
+    }
 
-        if (currCallInfo != null) {
-            ben(addTime) { callInfoContainer.add(currCallInfo) }
+    /**
+     * Lines describing calls of the same method must be decoded by the same worker. Otherwise [CallInfo]s of
+     * this method could reach [CallInfoTable] in a different order than arg-scanner sent them.
+     * Method name is the first field of the json object so we hash only the part of the line before first comma.
+     */
+    private fun chooseDecodeWorker(jsonString: String): DecodeWorker {
+        if (decodeWorkersCount == 1) {
+            return decodeWorkers[0]
+        }
+        var hash = 0
+        for (ch in jsonString) {
+            if (ch == ',') {
+                break
+            }
+            hash = 31 * hash + ch.toInt()
         }
+        return decodeWorkers[Math.floorMod(hash, decodeWorkersCount)]
     }
 
-    private fun flushNewTuplesToMainStorage() {
-        DatabaseProvider.defaultDatabaseTransaction {
-            for (callInfo in callInfoContainer) {
-                CallInfoTable.insertInfoIfNotContains(callInfo)
+    private fun newConnectionStatistics(description: String): ConnectionStatistics {
+        return ConnectionStatistics(connectionsCounter.getAndIncrement(), description)
+                .also { _connectionsStatistics.add(it) }
+    }
+
+    private fun <T> put(queue: BlockingQueue<T>, element: T, statistics: ConnectionStatistics) {
+        if (!queue.offer(element)) {
+            ben(statistics.blockedTime) { queue.put(element) }
+        }
+    }
+
+    /**
+     * Reads one arg-scanner connection in either text or binary protocol and passes what is read
+     * to decode workers or directly to [PollJsonThread]
+     */
+    private inner class ConnectionReader(input: InputStream, private val statistics: ConnectionStatistics) {
+        private val input = BufferedInputStream(CountingInputStream(input, statistics.bytesRead))
+
+        /**
+         * @return true if arg-scanner sent EXIT, false if connection was closed without it
+         */
+        fun read(decoder: CallInfoDecoder): Boolean {
+            statistics.isOpen = true
+            try {
+                return if (BinaryCallRecordReader.readHandshake(input)) readBinary(decoder) else readText()
+            } finally {
+                statistics.isOpen = false
+                statistics.closedAt = System.nanoTime()
             }
         }
-        callInfoContainer.clear()
-        afterFlushListener?.invoke()
+
+        private fun readText(): Boolean {
+            val br = input.bufferedReader()
+            while (true) {
+                val currString = ben(readTime) { br.readLine() } ?: return false
+                if (currString == EXIT_COMMAND) {
+                    return true
+                }
+                statistics.records.incrementAndGet()
+                put(chooseDecodeWorker(currString).queue, currString, statistics)
+            }
+        }
+
+        /**
+         * Binary records are cheap to decode so they are decoded right here without passing them to [DecodeWorker]s
+         */
+        private fun readBinary(decoder: CallInfoDecoder): Boolean {
+            val reader = BinaryCallRecordReader(input, decoder)
+            while (true) {
+                val callInfo = try {
+                    ben(readTime) { reader.next() }
+                } catch (e: IllegalStateException) {
+                    LOGGER.severe(e.message)
+                    continue
+                } catch (e: BinaryCallRecordReader.MalformedRecordException) {
+                    LOGGER.severe(e.message)
+                    continue
+                } ?: return reader.exitReceived
+
+                statistics.records.incrementAndGet()
+                if (!isFiltered(callInfo)) {
+                    put(decodedQueue, DecodeResult.Decoded(callInfo), statistics)
+                }
+            }
+        }
+    }
+
+    private fun stopDecodeWorkers() {
+        decodeWorkers.forEach { it.queue.put(EXIT_COMMAND) }
     }
 
-    private inner class SignatureHandler internal constructor() : Thread() {
-        var pipeFilePath: String = ""
+    private inner class SignatureHandler internal constructor(private val pipeFilePath: String) : Thread() {
+        private val decoder = CallInfoDecoder()
 
         override fun run() {
             try {
+                var exitReceived = false
                 var missed = 0
-                var br = FileInputStream(pipeFilePath).bufferedReader()
-                var currString: String? = ""
                 do {
                     // continue when EOF is reached because EOF doesn't mean that program
                     // traced by arg-scanner is died. Program could simply call `Kernel.exec`
                     // See CallStatCompletionTest.testRubyExecWithBuffering and
                     // CallStatCompletionTest.testRubyExecWithoutBuffering
-                    currString = ben(readTime) { br.readLine() }
-
-                    if (currString != null) {
-                        queue.put(currString)
-                    } else {
+                    // If don't reopen the pipe then reading will always hit EOF
+                    val statistics = newConnectionStatistics(pipeFilePath)
+                    FileInputStream(pipeFilePath).use {
+                        exitReceived = ConnectionReader(it, statistics).read(decoder)
+                    }
+                    if (!exitReceived) {
                         missed++
-                        br.close()
-                        // If don't reassign reader then `readLine` will always return `null`
-                        br = FileInputStream(pipeFilePath).bufferedReader()
                     }
 
                     // 1000 is just threshold for safety
-                } while (currString != EXIT_COMMAND && missed < 1000)
+                } while (!exitReceived && missed < 1000)
+                if (exitReceived) {
+                    stopDecodeWorkers()
+                }
             } catch (e: IOException) {
                 LOGGER.severe("Error in SignatureHandler")
             } finally {
@@ -198,10 +418,202 @@ class SignatureServer {
         }
     }
 
+    /**
+     * Accepts arg-scanner connections and starts [SocketConnectionHandler] for each of them
+     */
+    private inner class SocketAcceptor(private val serverSocket: ServerSocket,
+                                       private val daemonHandlers: Boolean) : Thread("SignatureServer socket acceptor") {
+        private val handlers = ArrayList<SocketConnectionHandler>()
+
+        val port: Int
+            get() = serverSocket.localPort
+
+        fun close() {
+            serverSocket.close()
+        }
+
+        override fun run() {
+            try {
+                while (true) {
+                    val socket = serverSocket.accept()
+                    val statistics = newConnectionStatistics(socket.remoteSocketAddress.toString())
+                    val handler = SocketConnectionHandler(socket, statistics)
+                    handler.isDaemon = daemonHandlers
+                    handler.start()
+                    handlers.add(handler)
+                    handlers.removeAll { !it.isAlive }
+                }
+            } catch (e: IOException) {
+                if (!serverSocket.isClosed) {
+                    LOGGER.severe("Error in SocketAcceptor: ${e.message}")
+                }
+            } finally {
+                serverSocket.close()
+                // Data read by connections which are still open must reach decode workers before EXIT
+                handlers.forEach { it.join() }
+                stopDecodeWorkers()
+            }
+        }
+    }
+
+    private inner class SocketConnectionHandler(private val socket: Socket,
+                                                private val statistics: ConnectionStatistics)
+        : Thread("SignatureServer connection #${statistics.connectionIndex}") {
+
+        override fun run() {
+            try {
+                socket.use {
+                    val input = it.getInputStream()
+                    if (!readConnectionToken(it, input)) {
+                        LOGGER.warning("Connection #${statistics.connectionIndex} closed: wrong token")
+                        return
+                    }
+                    ConnectionReader(input, statistics).read(CallInfoDecoder())
+                }
+            } catch (e: IOException) {
+                LOGGER.severe("Error in connection #${statistics.connectionIndex}: ${e.message}")
+            }
+        }
+    }
+
+    /**
+     * Reads the first line of the connection byte by byte, so nothing after it is consumed
+     * @return true if it is [connectionToken]
+     */
+    private fun readConnectionToken(socket: Socket, input: InputStream): Boolean {
+        val expected = (connectionToken + "\n").toByteArray(Charsets.US_ASCII)
+        val actual = ByteArray(expected.size)
+        socket.soTimeout = CONNECTION_TOKEN_TIMEOUT_MILLIS
+        try {
+            for (i in actual.indices) {
+                val byte = input.read()
+                if (byte < 0) {
+                    return false
+                }
+                actual[i] = byte.toByte()
+                if (byte == '\n'.toInt()) {
+                    break
+                }
+            }
+        } catch (e: SocketTimeoutException) {
+            return false
+        }
+        socket.soTimeout = 0
+        return MessageDigest.isEqual(expected, actual)
+    }
+
+    /**
+     * Decodes lines received from arg-scanner into [CallInfo]s and passes them to [PollJsonThread]
+     */
+    private inner class DecodeWorker(index: Int) : Thread("SignatureServer decode worker #$index") {
+        val queue = ArrayBlockingQueue<String>(QUEUE_CAPACITY)
+        val statistics = DecodeWorkerStatistics(index)
+        private val decoder = CallInfoDecoder()
+
+        override fun run() {
+            while (true) {
+                val jsonString = queue.take()
+                if (jsonString == EXIT_COMMAND) {
+                    decodedQueue.put(DecodeResult.WorkerFinished)
+                    break
+                }
+
+                busyDecodeWorkers.incrementAndGet()
+                try {
+                    decode(jsonString)
+                } finally {
+                    busyDecodeWorkers.decrementAndGet()
+                }
+            }
+        }
+
+        private fun decode(jsonString: String) {
+            val currCallInfo = ben(statistics.jsonTime) { parseJson(jsonString, decoder) } ?: return
+            statistics.decodedLines.incrementAndGet()
+
+            if (isFiltered(currCallInfo)) {
+                return
+            }
+
+            ben(statistics.addTime) { decodedQueue.put(DecodeResult.Decoded(currCallInfo)) }
+        }
+    }
+
+    /**
+     * Collects decoded [CallInfo]s into batches and passes them to [BatchWriter]. A batch is passed when it's full
+     * or when its first [CallInfo] waits for [maxFlushDelayMillis]
+     */
     private inner class PollJsonThread : Thread() {
+        private var batch = Batch()
+
         override fun run() {
+            val maxFlushDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxFlushDelayMillis)
+            var finishedDecodeWorkersCount = 0
+            var deadline = 0L
             while (true) {
-                if (pollJson()) {
+                val decodeResult = if (batch.callInfos.isEmpty()) {
+                    decodedQueue.take()
+                } else {
+                    decodedQueue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)
+                }
+
+                when (decodeResult) {
+                    is DecodeResult.Decoded -> {
+                        if (batch.callInfos.isEmpty()) {
+                            deadline = System.nanoTime() + maxFlushDelayNanos
+                        }
+                        batch.callInfos.add(decodeResult.callInfo)
+                    }
+                    is DecodeResult.WorkerFinished -> if (++finishedDecodeWorkersCount == decodeWorkersCount) {
+                        batchWriter.finish(batch)
+                        return
+                    }
+                }
+
+                if (batch.callInfos.size >= LOCAL_STORAGE_SIZE_LIMIT ||
+                        batch.callInfos.isNotEmpty() && System.nanoTime() - deadline >= 0) {
+                    batch = batchWriter.submit(batch)
+                }
+            }
+        }
+    }
+
+    /**
+     * @param isLast set by [PollJsonThread] on the batch after which nothing else is submitted. It travels with
+     * the batch through the exchange, so the writer can't take an earlier batch for the last one
+     */
+    private class Batch(val callInfos: ArrayList<CallInfo> = ArrayList(), var isLast: Boolean = false)
+
+    /**
+     * Commits batches collected by [PollJsonThread], so decoding isn't blocked by the database.
+     * Batches are swapped through [exchanger]: while one is committed the other one is being filled
+     */
+    private inner class BatchWriter : Thread("SignatureServer batch writer") {
+        private val exchanger = Exchanger<Batch>()
+
+        /**
+         * Waits until the previous batch is committed and passes [batch] to the writer
+         * @return empty batch to fill next
+         */
+        fun submit(batch: Batch): Batch = exchanger.exchange(batch)
+
+        /**
+         * Passes the last [batch]. The writer stops after committing it
+         */
+        fun finish(batch: Batch) {
+            batch.isLast = true
+            exchanger.exchange(batch)
+        }
+
+        override fun run() {
+            var batch = Batch()
+            while (true) {
+                batch = exchanger.exchange(batch)
+                val isLastBatch = batch.isLast
+                flushNewTuplesToMainStorage(batch.callInfos)
+                batch.callInfos.clear()
+
+                if (isLastBatch) {
                     isReady.set(true)
                     afterExitListener?.invoke()
                     _runningServers.remove(this@SignatureServer)
@@ -210,6 +622,99 @@ class SignatureServer {
             }
         }
     }
+
+    private sealed class DecodeResult {
+        class Decoded(val callInfo: CallInfo) : DecodeResult()
+        object WorkerFinished : DecodeResult()
+    }
+}
+
+/**
+ * Time counters of one [SignatureServer] decode worker
+ */
+class DecodeWorkerStatistics(val workerIndex: Int) {
+    val jsonTime = AtomicLong(0)
+    val addTime = AtomicLong(0)
+    val decodedLines = AtomicLong(0)
+}
+
+/**
+ * Counters of one arg-scanner connection (or one opening of the pipe) of [SignatureServer]
+ */
+class ConnectionStatistics(val connectionIndex: Int, val description: String) {
+    val openedAt = System.nanoTime()
+    @Volatile
+    var closedAt = 0L
+        internal set
+    @Volatile
+    var isOpen = false
+        internal set
+
+    val bytesRead = AtomicLong(0)
+
+    /**
+     * Number of received calls (json lines or binary call records)
+     */
+    val records = AtomicLong(0)
+
+    /**
+     * Time this connection was blocked because decode workers or database writes couldn't keep up
+     */
+    val blockedTime = AtomicLong(0)
+
+    /**
+     * Received records per second over the lifetime of the connection
+     */
+    val recordsPerSecond: Double
+        get() {
+            val end = if (closedAt != 0L) closedAt else System.nanoTime()
+            val seconds = (end - openedAt) / 1e9
+            return if (seconds > 0) records.get() / seconds else 0.0
+        }
+}
+
+private class CountingInputStream(input: InputStream, private val counter: AtomicLong) : FilterInputStream(input) {
+    override fun read(): Int = super.read().also { if (it >= 0) counter.incrementAndGet() }
+
+    override fun read(b: ByteArray, off: Int, len: Int): Int =
+            super.read(b, off, len).also { if (it > 0) counter.addAndGet(it.toLong()) }
+
+    override fun skip(n: Long): Long = super.skip(n).also { counter.addAndGet(it) }
+}
+
+/**
+ * Keeps last [capacity] recorded durations and calculates percentiles over them
+ */
+class LatencyStatistics(private val capacity: Int = 1024) {
+    private val samples = LongArray(capacity)
+    private var recorded = 0L
+
+    @Synchronized
+    fun record(nanos: Long) {
+        samples[(recorded % capacity).toInt()] = nanos
+        recorded++
+    }
+
+    /**
+     * Number of durations recorded since the start, including the ones which don't fit into [capacity]
+     */
+    val count: Long
+        @Synchronized get() = recorded
+
+    /**
+     * @param percentile in range `(0, 100]`, e.g. 50 for median or 99
+     * @return duration in nanoseconds or 0 if nothing is recorded yet
+     */
+    @Synchronized
+    fun percentileNanos(percentile: Double): Long {
+        require(percentile > 0 && percentile <= 100) { "Percentile must be in (0, 100]" }
+        val size = Math.min(recorded, capacity.toLong()).toInt()
+        if (size == 0) {
+            return 0
+        }
+        val sorted = samples.copyOf(size).apply { sort() }
+        return sorted[Math.ceil(percentile / 100 * size).toInt() - 1]
+    }
 }
 
 fun <T> ben(x: AtomicLong, F: ()->T): T {
@@ -0,0 +1,219 @@
+package org.jetbrains.ruby.runtime.signature.server.serialisation
+
+import org.jetbrains.ruby.codeInsight.types.signature.CallInfo
+import org.jetbrains.ruby.codeInsight.types.signature.RVisibility
+import java.io.EOFException
+import java.io.IOException
+import java.io.InputStream
+
+/**
+ * Reads arg-scanner's binary protocol (enabled with `--binary-protocol`, see `arg_scanner.c` for
+ * the writer side). After the handshake every record is a varint payload length followed by payload:
+ *
+ *     varint pid, byte kind, then depending on kind:
+ *     RECORD_SYMBOL: varint id, UTF-8 bytes up to the end of the payload
+ *     RECORD_CALL:   varint method_name, zigzag varint argc, varint args_info, byte visibility,
+ *                    varint path, varint lineno, varint receiver_name, varint return_type_name
+ *     RECORD_EXIT
+ *
+ * Strings are sent once as symbols and referenced by id afterwards. Symbol ids are numbered
+ * per writing process, because forked children share the pipe with their parent.
+ *
+ * One reader should be created per pipe connection. Not thread safe.
+ */
+class BinaryCallRecordReader(private val input: InputStream, private val decoder: CallInfoDecoder) {
+    companion object {
+        private val MAGIC = byteArrayOf(0, 'R'.toByte(), 'T'.toByte(), 'I'.toByte())
+        private const val PROTOCOL_VERSION = 1
+
+        private const val RECORD_SYMBOL = 1
+        private const val RECORD_CALL = 2
+        private const val RECORD_EXIT = 3
+
+        /**
+         * All varints hold 32-bit values
+         */
+        private const val MAX_VARINT_BYTES = 5
+
+        /**
+         * Consumes binary protocol handshake if [input] starts with it. Otherwise [input] is left untouched
+         *
+         * @param input must support [InputStream.mark]
+         * @return true if [input] uses binary protocol
+         */
+        fun readHandshake(input: InputStream): Boolean {
+            input.mark(MAGIC.size + 1)
+            for (expected in MAGIC) {
+                if (input.read() != expected.toInt()) {
+                    input.reset()
+                    return false
+                }
+            }
+            readVersion(input)
+            return true
+        }
+
+        private fun readVersion(input: InputStream) {
+            val version = input.read()
+            if (version != PROTOCOL_VERSION) {
+                throw IOException("Unsupported arg-scanner binary protocol version: $version")
+            }
+        }
+    }
+
+    /**
+     * Thrown when a record doesn't fit into its frame. Only that frame is dropped, reading can be continued
+     */
+    class MalformedRecordException(message: String) : IOException(message)
+
+    private val symbolsByProcess = HashMap<Int, MutableList<String>>()
+    private val visibilities = RVisibility.values()
+
+    private var payload = ByteArray(256)
+    private var payloadPos = 0
+    private var payloadEnd = 0
+
+    /**
+     * true if the last [next] call stopped because of EXIT record rather than end of stream
+     */
+    var exitReceived = false
+        private set
+
+    /**
+     * @return next call or `null` when EXIT record or end of stream is reached
+     * @throws IllegalStateException if the call record refers to unknown symbols or its arguments are inconsistent.
+     * Reading can be continued after that
+     * @throws MalformedRecordException if the record is truncated. Reading can be continued after that
+     */
+    fun next(): CallInfo? {
+        while (true) {
+            if (!readFrame()) {
+                return null
+            }
+            val symbols = symbolsByProcess.getOrPut(readVarInt()) { ArrayList() }
+            when (readByte()) {
+                RECORD_SYMBOL -> {
+                    val id = readVarInt()
+                    val symbol = String(payload, payloadPos, payloadEnd - payloadPos, Charsets.UTF_8)
+                    if (id == symbols.size) {
+                        symbols.add(symbol)
+                    } else {
+                        // Process replaced by `Kernel.exec` keeps its pid but numbers symbols from scratch
+                        check(id < symbols.size) { "Symbol $id is defined before symbol ${symbols.size}" }
+                        symbols[id] = symbol
+                    }
+                }
+                RECORD_CALL -> readCall(symbols)?.let { return it }
+                RECORD_EXIT -> {
+                    exitReceived = true
+                    return null
+                }
+                // Unknown records are skipped because their length is known
+            }
+        }
+    }
+
+    /**
+     * @return `null` if [CallInfoDecoder] rejects the call
+     */
+    private fun readCall(symbols: List<String>): CallInfo? {
+        val methodName = symbol(symbols, readVarInt())
+        val argc = readZigZag()
+        val argsInfo = symbol(symbols, readVarInt())
+        val visibility = visibilities.getOrNull(readByte())
+                ?: throw IllegalStateException("Unknown visibility in call of $methodName")
+        val path = symbol(symbols, readVarInt())
+        val lineno = readVarInt()
+        val receiverName = symbol(symbols, readVarInt())
+        val returnTypeName = symbol(symbols, readVarInt())
+
+        return decoder.decode(methodName, argc, argsInfo, visibility, path, lineno, receiverName, returnTypeName)
+    }
+
+    private fun symbol(symbols: List<String>, id: Int): String =
+            symbols.getOrNull(id) ?: throw IllegalStateException("Unknown symbol: $id")
+
+    /**
+     * Reads the next length prefixed frame into [payload]
+     * @return false if the stream ended
+     */
+    private fun readFrame(): Boolean {
+        var length: Int
+        do {
+            length = try {
+                readVarInt(input) ?: return false
+            } catch (e: EOFException) {
+                return false
+            }
+            if (length < 0) {
+                throw IOException("Corrupted arg-scanner binary stream")
+            }
+            // Records are never empty, so zero length is the first byte of a repeated handshake. It's written
+            // by a traced process which called `Kernel.exec` while other writers kept the pipe open
+            if (length == 0) {
+                for (i in 1 until MAGIC.size) {
+                    if (input.read() != MAGIC[i].toInt()) {
+                        throw IOException("Corrupted arg-scanner binary stream")
+                    }
+                }
+                readVersion(input)
+            }
+        } while (length == 0)
+        if (payload.size < length) {
+            payload = ByteArray(Math.max(length, payload.size * 2))
+        }
+        var read = 0
+        while (read < length) {
+            val count = input.read(payload, read, length - read)
+            if (count < 0) {
+                return false
+            }
+            read += count
+        }
+        payloadPos = 0
+        payloadEnd = length
+        return true
+    }
+
+    /**
+     * @return varint read from [stream] or `null` if stream ended before the first byte
+     */
+    private fun readVarInt(stream: InputStream): Int? {
+        var result = 0
+        for (i in 0 until MAX_VARINT_BYTES) {
+            val byte = stream.read()
+            if (byte < 0) {
+                if (i == 0) return null else throw EOFException()
+            }
+            result = result or ((byte and 0x7f) shl (7 * i))
+            if (byte and 0x80 == 0) {
+                return result
+            }
+        }
+        throw IOException("Corrupted arg-scanner binary stream")
+    }
+
+    private fun readByte(): Int {
+        if (payloadPos >= payloadEnd) {
+            throw MalformedRecordException("Truncated binary record")
+        }
+        return payload[payloadPos++].toInt()
+    }
+
+    private fun readVarInt(): Int {
+        var result = 0
+        for (i in 0 until MAX_VARINT_BYTES) {
+            val byte = readByte()
+            result = result or ((byte and 0x7f) shl (7 * i))
+            if (byte and 0x80 == 0) {
+                return result
+            }
+        }
+        throw MalformedRecordException("Varint is longer than $MAX_VARINT_BYTES bytes")
+    }
+
+    private fun readZigZag(): Int {
+        val raw = readVarInt()
+        return (raw ushr 1) xor -(raw and 1)
+    }
+}
@@ -0,0 +1,376 @@
+package org.jetbrains.ruby.runtime.signature.server.serialisation
+
+import org.jetbrains.ruby.codeInsight.types.signature.*
+
+private const val MAX_INTERNED_STRINGS = 1 shl 16
+private const val INITIAL_INTERNER_CAPACITY = 1 shl 8
+private const val MAX_CACHED_GEM_INFOS = 1 shl 12
+private const val NOT_A_NUMBER = Int.MIN_VALUE
+
+/**
+ * Decodes json objects written by arg-scanner's `handle_return` into [CallInfo]s without building
+ * intermediate [ServerResponseBean] and without splitting `args_info` into temporary strings.
+ *
+ * Only the exact format arg-scanner produces is recognized: the eight fields in their fixed order with
+ * all values (numbers included) written as strings without escape sequences. For any other input
+ * [decode] returns `null` and the caller should fall back to [ServerResponseBean] parsing.
+ *
+ * Repeated strings (receiver names, method names, paths, types and parameter names) are interned,
+ * so decoding a line that was already seen allocates only the resulting [CallInfo] objects.
+ * Type names are additionally interned in [TypeNameDictionary.SHARED], so they are shared with contracts
+ * and with other decoders.
+ *
+ * Not thread safe: every decoding thread should own its decoder.
+ */
+class CallInfoDecoder {
+    private val interner = StringInterner(MAX_INTERNED_STRINGS)
+    private val typeInterner = StringInterner(MAX_INTERNED_STRINGS) { TypeNameDictionary.SHARED.intern(it) }
+    private val gemInfoByPath = HashMap<String, GemInfo?>()
+    private val parameterTypes = ParameterInfo.Type.values()
+    private val visibilities = RVisibility.values()
+
+    private var line: String = ""
+    private var pos = 0
+    private var valueStart = 0
+    private var valueEnd = 0
+
+    // Attributes of the last parameter read by readParameter
+    private var modifier: ParameterInfo.Type = ParameterInfo.Type.REQ
+    private var typeStart = 0
+    private var typeEnd = 0
+    private var nameStart = 0
+    private var nameEnd = 0
+
+    /**
+     * @return decoded [CallInfo] or `null` if [line] is not formatted exactly the way arg-scanner does it
+     * @throws IllegalStateException if [line] is well formed but arguments are inconsistent with `call_info_argc`
+     * (the same condition [toCallInfo] checks)
+     */
+    fun decode(line: String): CallInfo? {
+        this.line = line
+        pos = 0
+
+        if (!readField("{\"method_name\":")) return null
+        val methodName = interner.intern(line, valueStart, valueEnd)
+
+        if (!readField(",\"call_info_argc\":")) return null
+        val argc = parseInt(valueStart, valueEnd)
+        if (argc == NOT_A_NUMBER) return null
+
+        if (!readField(",\"args_info\":")) return null
+        val argsInfoStart = valueStart
+        val argsInfoEnd = valueEnd
+
+        if (!readField(",\"visibility\":")) return null
+        val visibility = findVisibility(valueStart, valueEnd) ?: return null
+
+        if (!readField(",\"path\":")) return null
+        val path = interner.intern(line, valueStart, valueEnd)
+
+        if (!readField(",\"lineno\":")) return null
+        val lineno = parseInt(valueStart, valueEnd)
+        if (lineno == NOT_A_NUMBER) return null
+
+        if (!readField(",\"receiver_name\":")) return null
+        val receiverName = interner.intern(line, valueStart, valueEnd)
+
+        if (!readField(",\"return_type_name\":")) return null
+        val returnTypeName = typeInterner.intern(line, valueStart, valueEnd)
+
+        if (!line.startsWith("}", pos) || !(pos + 1 until line.length).all { line[it].isWhitespace() }) return null
+
+        return buildCallInfo(methodName, argc, argsInfoStart, argsInfoEnd, visibility, path, lineno,
+                receiverName, returnTypeName)
+    }
+
+    /**
+     * Builds [CallInfo] from fields which were already separated by the caller (e.g. by [BinaryCallRecordReader]).
+     * Strings are expected to be already deduplicated by the caller, only [argsInfo] parts are interned
+     * and [returnTypeName] is replaced by its instance from [TypeNameDictionary.SHARED].
+     *
+     * @return decoded [CallInfo] or `null` if [argsInfo] is malformed
+     * @throws IllegalStateException if arguments are inconsistent with [argc]
+     */
+    fun decode(methodName: String, argc: Int, argsInfo: String, visibility: RVisibility, path: String, lineno: Int,
+               receiverName: String, returnTypeName: String): CallInfo? {
+        line = argsInfo
+        return buildCallInfo(methodName, argc, 0, argsInfo.length, visibility, path, lineno,
+                receiverName, TypeNameDictionary.SHARED.intern(returnTypeName))
+    }
+
+    /**
+     * Arguments are read from [argsInfoStart, argsInfoEnd) range of [line]
+     */
+    private fun buildCallInfo(methodName: String, argc: Int, argsInfoStart: Int, argsInfoEnd: Int,
+                              visibility: RVisibility, path: String, lineno: Int,
+                              receiverName: String, returnTypeName: String): CallInfo? {
+        if (!countParameters(argsInfoStart, argsInfoEnd)) return null
+        val namedArguments = ArrayList<ArgumentNameAndType>(namedCount)
+        val unnamedArguments = ArrayList<ArgumentNameAndType>(parametersCount - namedCount)
+        decodeArguments(argc, argsInfoStart, argsInfoEnd, namedArguments, unnamedArguments)
+
+        val methodInfo = MethodInfo.Impl(
+                ClassInfo.Impl(gemInfoFromFilePathCached(path), receiverName),
+                methodName,
+                visibility,
+                Location(path, lineno))
+
+        return CallInfoImpl(methodInfo, namedArguments, unnamedArguments, returnTypeName)
+    }
+
+    // Counters filled by countParameters
+    private var parametersCount = 0
+    private var namedCount = 0
+    private var mandatoryCount = 0
+    private var optCount = 0
+    private var restCount = 0
+    private var hasBlock = false
+
+    private fun countParameters(start: Int, end: Int): Boolean {
+        parametersCount = 0
+        namedCount = 0
+        mandatoryCount = 0
+        optCount = 0
+        restCount = 0
+        hasBlock = false
+
+        var segmentStart = start
+        while (segmentStart < end) {
+            val segmentEnd = segmentEnd(segmentStart, end)
+            if (!readParameter(segmentStart, segmentEnd)) {
+                return false
+            }
+            parametersCount++
+            if (isNamed(modifier)) {
+                namedCount++
+            }
+            when {
+                isNamed(modifier) || modifier == ParameterInfo.Type.REQ || modifier == ParameterInfo.Type.POST -> mandatoryCount++
+                modifier == ParameterInfo.Type.OPT -> optCount++
+                modifier == ParameterInfo.Type.REST -> restCount++
+                modifier == ParameterInfo.Type.BLOCK -> hasBlock = true
+            }
+            segmentStart = segmentEnd + 1
+        }
+        return true
+    }
+
+    /**
+     * Distributes explicitly passed arguments the same way [toCallInfo] does: named, required and post arguments
+     * are always explicit, then optional ones take the rest of `argc` in declaration order, then rest ones do
+     */
+    private fun decodeArguments(argc: Int, start: Int, end: Int,
+                                namedArguments: MutableList<ArgumentNameAndType>,
+                                unnamedArguments: MutableList<ArgumentNameAndType>) {
+        val allExplicit = argc == -1
+        var explicitOpt = 0
+        var explicitRest = 0
+        if (!allExplicit) {
+            val afterMandatory = argc - mandatoryCount
+            explicitOpt = Math.min(optCount, Math.max(afterMandatory, 0))
+            val afterOpt = afterMandatory - explicitOpt
+            explicitRest = Math.min(restCount, Math.max(afterOpt, 0))
+            val left = afterOpt - explicitRest
+
+            check(left == 0 || hasBlock && left == 1) {
+                "Failed to parse this line: $line"
+            }
+        }
+
+        var optIndex = 0
+        var restIndex = 0
+        var segmentStart = start
+        while (segmentStart < end) {
+            val segmentEnd = segmentEnd(segmentStart, end)
+            readParameter(segmentStart, segmentEnd)
+
+            val name = interner.intern(line, nameStart, nameEnd)
+            val type = typeInterner.intern(line, typeStart, typeEnd)
+            if (isNamed(modifier)) {
+                namedArguments.add(ArgumentNameAndType(name, type))
+            } else {
+                val explicit = allExplicit || when (modifier) {
+                    ParameterInfo.Type.REQ, ParameterInfo.Type.POST -> true
+                    ParameterInfo.Type.OPT -> optIndex++ < explicitOpt
+                    ParameterInfo.Type.REST -> restIndex++ < explicitRest
+                    else -> false
+                }
+                unnamedArguments.add(ArgumentNameAndType(name,
+                        if (explicit) type else ArgumentNameAndType.IMPLICITLY_PASSED_ARGUMENT_TYPE))
+            }
+            segmentStart = segmentEnd + 1
+        }
+    }
+
+    private fun segmentEnd(segmentStart: Int, end: Int): Int {
+        val separator = line.indexOf(ARGUMENTS_TYPES_SEPARATOR[0], segmentStart)
+        return if (separator == -1 || separator > end) end else separator
+    }
+
+    /**
+     * Reads `modifier,type[,name]` parameter description located in [start, end) of [line].
+     * Mirrors [toCallInfo]: name is empty when description doesn't consist of exactly three parts
+     */
+    private fun readParameter(start: Int, end: Int): Boolean {
+        val firstComma = indexOf(',', start, end)
+        if (firstComma == -1) {
+            return false
+        }
+        modifier = findParameterType(start, firstComma) ?: return false
+
+        typeStart = firstComma + 1
+        val secondComma = indexOf(',', typeStart, end)
+        if (secondComma == -1) {
+            typeEnd = end
+            nameStart = end
+            nameEnd = end
+        } else {
+            typeEnd = secondComma
+            nameStart = secondComma + 1
+            nameEnd = if (indexOf(',', nameStart, end) == -1) end else nameStart
+        }
+        return true
+    }
+
+    /**
+     * Reads `"key":"value"` starting at [pos] where [key] already contains leading separators.
+     * Bounds of the value are stored to [valueStart] and [valueEnd]
+     */
+    private fun readField(key: String): Boolean {
+        if (!line.startsWith(key, pos)) {
+            return false
+        }
+        pos += key.length
+        if (pos >= line.length || line[pos] != '"') {
+            return false
+        }
+        valueStart = ++pos
+        while (pos < line.length) {
+            when (line[pos]) {
+                '"' -> {
+                    valueEnd = pos++
+                    return true
+                }
+                // escape sequences are left to the general json parser
+                '\\' -> return false
+            }
+            pos++
+        }
+        return false
+    }
+
+    private fun parseInt(start: Int, end: Int): Int {
+        if (start == end) {
+            return NOT_A_NUMBER
+        }
+        val negative = line[start] == '-'
+        var i = if (negative) start + 1 else start
+        if (i == end || end - i > 9) {
+            return NOT_A_NUMBER
+        }
+        var result = 0
+        while (i < end) {
+            val digit = line[i] - '0'
+            if (digit < 0 || digit > 9) {
+                return NOT_A_NUMBER
+            }
+            result = result * 10 + digit
+            i++
+        }
+        return if (negative) -result else result
+    }
+
+    private fun indexOf(ch: Char, start: Int, end: Int): Int {
+        for (i in start until end) {
+            if (line[i] == ch) {
+                return i
+            }
+        }
+        return -1
+    }
+
+    private fun findParameterType(start: Int, end: Int): ParameterInfo.Type? =
+            parameterTypes.firstOrNull { it.name.length == end - start && line.regionMatches(start, it.name, 0, end - start) }
+
+    private fun findVisibility(start: Int, end: Int): RVisibility? =
+            visibilities.firstOrNull { it.name.length == end - start && line.regionMatches(start, it.name, 0, end - start) }
+
+    private fun isNamed(type: ParameterInfo.Type): Boolean =
+            type == ParameterInfo.Type.KEY || type == ParameterInfo.Type.KEYREQ || type == ParameterInfo.Type.KEYREST
+
+    /**
+     * [gemInfoFromFilePathOrNull] runs a regex over the whole path so its result is remembered per (interned) path
+     */
+    private fun gemInfoFromFilePathCached(path: String): GemInfo? {
+        if (gemInfoByPath.containsKey(path)) {
+            return gemInfoByPath[path]
+        }
+        if (gemInfoByPath.size >= MAX_CACHED_GEM_INFOS) {
+            gemInfoByPath.clear()
+        }
+        return gemInfoFromFilePathOrNull(path).also { gemInfoByPath[path] = it }
+    }
+}
+
+/**
+ * Open addressing table which returns the same [String] instance for equal substrings and allocates
+ * a new [String] only for substrings it hasn't seen yet. After [maxSize] different strings have been
+ * remembered new ones are returned without being remembered. Not thread safe.
+ *
+ * The table starts small and doubles when it gets half full, so its size follows the number of different strings
+ * actually seen: every connection has its own decoder, and most connections see only a few hundred names.
+ *
+ * @param canonical applied to every newly seen substring, e.g. to share instances with a global table
+ */
+internal class StringInterner(private val maxSize: Int, private val canonical: (String) -> String = { it }) {
+    private var table = arrayOfNulls<String>(INITIAL_INTERNER_CAPACITY)
+    private var size = 0
+
+    fun intern(source: String, start: Int, end: Int): String {
+        val length = end - start
+        var hash = 0
+        for (i in start until end) {
+            hash = 31 * hash + source[i].toInt()
+        }
+
+        val mask = table.size - 1
+        var index = (hash xor (hash ushr 16)) and mask
+        while (true) {
+            val candidate = table[index] ?: break
+            if (candidate.length == length && source.regionMatches(start, candidate, 0, length)) {
+                return candidate
+            }
+            index = (index + 1) and mask
+        }
+
+        val result = canonical(source.substring(start, end))
+        if (size < maxSize) {
+            table[index] = result
+            size++
+            if (2 * size > table.size) {
+                grow()
+            }
+        }
+        return result
+    }
+
+    /**
+     * Hash used by [intern] is the same as [String.hashCode], which strings cache
+     */
+    private fun grow() {
+        val oldTable = table
+        table = arrayOfNulls(oldTable.size shl 1)
+        val mask = table.size - 1
+        for (string in oldTable) {
+            if (string == null) {
+                continue
+            }
+            val hash = string.hashCode()
+            var index = (hash xor (hash ushr 16)) and mask
+            while (table[index] != null) {
+                index = (index + 1) and mask
+            }
+            table[index] = string
+        }
+    }
+}
@@ -95,11 +95,11 @@ fun ServerResponseBean.toCallInfo(): CallInfo {
     }
 
     val namedArgumentsNamesToTypes = args.asSequence().filter { it.paramInfo.isNamedParameter }
-            .map { ArgumentNameAndType(it.paramInfo.name, it.type) }.toList()
+            .map { ArgumentNameAndType(it.paramInfo.name, TypeNameDictionary.SHARED.intern(it.type)) }.toList()
 
     val unnamedArgumentsTypes = args.asSequence().filter { !it.paramInfo.isNamedParameter }
             .map { arg ->
-                ArgumentNameAndType(arg.paramInfo.name, arg.type.takeIf { arg.explicit }
+                ArgumentNameAndType(arg.paramInfo.name, arg.type.takeIf { arg.explicit }?.let { TypeNameDictionary.SHARED.intern(it) }
                         ?: ArgumentNameAndType.IMPLICITLY_PASSED_ARGUMENT_TYPE)
             }.toList()
 
@@ -109,5 +109,6 @@ fun ServerResponseBean.toCallInfo(): CallInfo {
             RVisibility.valueOf(this.visibility),
             Location(this.path, this.lineno))
 
-    return CallInfoImpl(methodInfo, namedArgumentsNamesToTypes, unnamedArgumentsTypes, this.return_type_name)
+    return CallInfoImpl(methodInfo, namedArgumentsNamesToTypes, unnamedArgumentsTypes,
+            TypeNameDictionary.SHARED.intern(this.return_type_name))
 }
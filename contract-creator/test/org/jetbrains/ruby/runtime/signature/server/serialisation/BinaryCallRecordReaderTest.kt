@@ -0,0 +1,233 @@
+package org.jetbrains.ruby.runtime.signature.server.serialisation
+
+import junit.framework.TestCase
+import org.jetbrains.ruby.codeInsight.types.signature.ArgumentNameAndType
+import org.jetbrains.ruby.codeInsight.types.signature.RVisibility
+import org.junit.Test
+import java.io.BufferedInputStream
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+
+private fun ByteArrayOutputStream.writeVarInt(value: Int) {
+    var rest = value
+    while (rest and 0x7f.inv() != 0) {
+        write(rest and 0x7f or 0x80)
+        rest = rest ushr 7
+    }
+    write(rest)
+}
+
+class BinaryCallRecordReaderTest : TestCase() {
+    /**
+     * Writes records the same way arg-scanner's `write_binary_call` does
+     */
+    private class RecordWriter {
+        private val out = ByteArrayOutputStream()
+
+        fun handshake(version: Int = 1) = apply {
+            out.write(byteArrayOf(0, 'R'.toByte(), 'T'.toByte(), 'I'.toByte(), version.toByte()))
+        }
+
+        fun symbol(pid: Int, id: Int, symbol: String) = frame(pid, 1) {
+            writeVarInt(id)
+            write(symbol.toByteArray(Charsets.UTF_8))
+        }
+
+        fun call(pid: Int, methodName: Int, argc: Int, argsInfo: Int, path: Int, lineno: Int,
+                 receiverName: Int, returnTypeName: Int, visibility: Int = RVisibility.PUBLIC.ordinal) = frame(pid, 2) {
+            writeVarInt(methodName)
+            writeVarInt((argc shl 1) xor (argc shr 31))
+            writeVarInt(argsInfo)
+            write(visibility)
+            writeVarInt(path)
+            writeVarInt(lineno)
+            writeVarInt(receiverName)
+            writeVarInt(returnTypeName)
+        }
+
+        fun exit(pid: Int) = frame(pid, 3) {}
+
+        fun frame(pid: Int, kind: Int, body: ByteArrayOutputStream.() -> Unit) = apply {
+            val payload = ByteArrayOutputStream()
+            payload.writeVarInt(pid)
+            payload.write(kind)
+            payload.body()
+            rawFrame(payload.toByteArray())
+        }
+
+        fun rawFrame(payload: ByteArray) = apply {
+            out.writeVarInt(payload.size)
+            out.write(payload)
+        }
+
+        fun bytes(): ByteArray = out.toByteArray()
+
+        fun reader(): BinaryCallRecordReader {
+            val input = BufferedInputStream(ByteArrayInputStream(bytes()))
+            TestCase.assertTrue(BinaryCallRecordReader.readHandshake(input))
+            return BinaryCallRecordReader(input, CallInfoDecoder())
+        }
+    }
+
+    private fun RecordWriter.fooSymbols(pid: Int) = this
+            .symbol(pid, 0, "foo")
+            .symbol(pid, 1, "REQ,Integer,a;OPT,String,b")
+            .symbol(pid, 2, "/gems/rake-12.3.1/lib/rake.rb")
+            .symbol(pid, 3, "Rake::Application")
+            .symbol(pid, 4, "String")
+
+    private fun RecordWriter.fooCall(pid: Int, argc: Int = 2, lineno: Int = 10) = call(pid, 0, argc, 1, 2, lineno, 3, 4)
+
+    @Test
+    fun testRoundTrip() {
+        val reader = RecordWriter().handshake().fooSymbols(1).fooCall(1).fooCall(1, argc = 1, lineno = 300).exit(1).reader()
+
+        val first = reader.next()!!
+        assertEquals("foo", first.methodInfo.name)
+        assertEquals("Rake::Application", first.methodInfo.classInfo.classFQN)
+        assertEquals("rake", first.methodInfo.classInfo.gemInfo?.name)
+        assertEquals(10, first.methodInfo.location?.lineno)
+        assertEquals(listOf(ArgumentNameAndType("a", "Integer"), ArgumentNameAndType("b", "String")), first.unnamedArguments)
+        assertEquals("String", first.returnType)
+
+        val second = reader.next()!!
+        assertEquals(300, second.methodInfo.location?.lineno)
+        assertEquals(ArgumentNameAndType.IMPLICITLY_PASSED_ARGUMENT_TYPE, second.unnamedArguments[1].type)
+        assertSame(first.methodInfo.name, second.methodInfo.name)
+
+        assertNull(reader.next())
+        assertTrue(reader.exitReceived)
+    }
+
+    @Test
+    fun testEndOfStreamIsNotExit() {
+        val reader = RecordWriter().handshake().fooSymbols(1).fooCall(1).reader()
+        assertNotNull(reader.next())
+        assertNull(reader.next())
+        assertFalse(reader.exitReceived)
+    }
+
+    @Test
+    fun testNotBinaryStreamIsLeftUntouched() {
+        val line = "{\"method_name\":\"foo\"}"
+        val input = BufferedInputStream(ByteArrayInputStream(line.toByteArray()))
+        assertFalse(BinaryCallRecordReader.readHandshake(input))
+        assertEquals(line, input.reader().readText())
+    }
+
+    @Test
+    fun testSymbolsAreNumberedPerProcess() {
+        val reader = RecordWriter().handshake()
+                .fooSymbols(1)
+                // forked child shares the pipe but has its own symbols
+                .symbol(2, 0, "bar")
+                .symbol(2, 1, "")
+                .symbol(2, 2, "/project/lib/a.rb")
+                .symbol(2, 3, "A")
+                .symbol(2, 4, "NilClass")
+                .call(2, 0, 0, 1, 2, 5, 3, 4)
+                .fooCall(1)
+                .reader()
+
+        assertEquals("bar", reader.next()!!.methodInfo.name)
+        assertEquals("foo", reader.next()!!.methodInfo.name)
+    }
+
+    @Test
+    fun testSymbolsOfOtherProcessAreUnknown() {
+        val reader = RecordWriter().handshake().fooSymbols(1).fooCall(2).fooCall(1).reader()
+        try {
+            reader.next()
+            fail("IllegalStateException expected")
+        } catch (e: IllegalStateException) {
+        }
+        assertEquals("foo", reader.next()!!.methodInfo.name)
+    }
+
+    @Test
+    fun testSymbolsAreResetAfterExec() {
+        val reader = RecordWriter().handshake().fooSymbols(1).fooCall(1)
+                // process replaced by `Kernel.exec` keeps its pid, writes handshake again and numbers symbols from 0
+                .handshake()
+                .symbol(1, 0, "baz")
+                .fooCall(1)
+                .reader()
+
+        assertEquals("foo", reader.next()!!.methodInfo.name)
+        val afterExec = reader.next()!!
+        assertEquals("baz", afterExec.methodInfo.name)
+        assertEquals("Rake::Application", afterExec.methodInfo.classInfo.classFQN)
+    }
+
+    @Test
+    fun testOutOfRangeSymbolId() {
+        val reader = RecordWriter().handshake().fooSymbols(1)
+                .call(1, 0, 2, 1, 2, 10, 3, 5)
+                .symbol(1, 7, "gap")
+                .fooCall(1)
+                .reader()
+
+        for (i in 0 until 2) {
+            try {
+                reader.next()
+                fail("IllegalStateException expected")
+            } catch (e: IllegalStateException) {
+            }
+        }
+        assertEquals("foo", reader.next()!!.methodInfo.name)
+    }
+
+    @Test
+    fun testTruncatedFrame() {
+        val call = RecordWriter().fooCall(1).bytes()
+        // length prefix is one byte, keep pid, kind and the first two fields only
+        val truncatedPayload = call.copyOfRange(1, 5)
+        val reader = RecordWriter().handshake().fooSymbols(1)
+                .rawFrame(truncatedPayload)
+                .rawFrame(byteArrayOf(1, 1, 0x80.toByte()))
+                .fooCall(1)
+                .reader()
+
+        for (i in 0 until 2) {
+            try {
+                reader.next()
+                fail("MalformedRecordException expected")
+            } catch (e: BinaryCallRecordReader.MalformedRecordException) {
+            }
+        }
+        assertEquals("foo", reader.next()!!.methodInfo.name)
+    }
+
+    @Test
+    fun testStreamEndedInsideFrame() {
+        val bytes = RecordWriter().handshake().fooSymbols(1).fooCall(1).bytes()
+        val input = BufferedInputStream(ByteArrayInputStream(bytes.copyOf(bytes.size - 3)))
+        assertTrue(BinaryCallRecordReader.readHandshake(input))
+        val reader = BinaryCallRecordReader(input, CallInfoDecoder())
+        assertNull(reader.next())
+        assertFalse(reader.exitReceived)
+    }
+
+    @Test
+    fun testUnsupportedVersion() {
+        val input = BufferedInputStream(ByteArrayInputStream(RecordWriter().handshake(version = 2).fooSymbols(1).bytes()))
+        try {
+            BinaryCallRecordReader.readHandshake(input)
+            fail("IOException expected")
+        } catch (e: IOException) {
+        }
+    }
+
+    @Test
+    fun testUnsupportedVersionOfRepeatedHandshake() {
+        val reader = RecordWriter().handshake().fooSymbols(1).fooCall(1).handshake(version = 2).fooCall(1).reader()
+        assertNotNull(reader.next())
+        try {
+            reader.next()
+            fail("IOException expected")
+        } catch (e: IOException) {
+            assertFalse(e is BinaryCallRecordReader.MalformedRecordException)
+        }
+    }
+}
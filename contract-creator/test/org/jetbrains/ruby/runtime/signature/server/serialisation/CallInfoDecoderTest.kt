@@ -0,0 +1,193 @@
+package org.jetbrains.ruby.runtime.signature.server.serialisation
+
+import com.google.gson.Gson
+import junit.framework.TestCase
+import org.jetbrains.ruby.codeInsight.types.signature.ArgumentNameAndType
+import org.jetbrains.ruby.codeInsight.types.signature.CallInfo
+import org.jetbrains.ruby.codeInsight.types.signature.GemInfo
+import org.jetbrains.ruby.codeInsight.types.signature.RVisibility
+import org.junit.Test
+
+class CallInfoDecoderTest : TestCase() {
+    private val gson = Gson()
+
+    /**
+     * The same format arg-scanner's `handle_return` writes
+     */
+    private fun line(methodName: String = "foo", argc: Int = -1, argsInfo: String = "",
+                     path: String = "/home/user/project/lib/a.rb", lineno: Int = 1,
+                     receiverName: String = "A::B", returnTypeName: String = "String") =
+            "{\"method_name\":\"$methodName\",\"call_info_argc\":\"$argc\",\"args_info\":\"$argsInfo\"," +
+                    "\"visibility\":\"PUBLIC\",\"path\":\"$path\",\"lineno\":\"$lineno\"," +
+                    "\"receiver_name\":\"$receiverName\",\"return_type_name\":\"$returnTypeName\"}"
+
+    private fun parseBean(line: String): CallInfo = gson.fromJson(line, ServerResponseBean::class.java).toCallInfo()
+
+    private fun assertDecodedAsBean(line: String): CallInfo {
+        val decoded = CallInfoDecoder().decode(line)
+        assertNotNull("Not decoded: $line", decoded)
+        assertEquals(parseBean(line), decoded)
+        return decoded!!
+    }
+
+    @Test
+    fun testNoArguments() {
+        val callInfo = assertDecodedAsBean(line(argc = 0))
+        assertTrue(callInfo.unnamedArguments.isEmpty())
+        assertTrue(callInfo.namedArguments.isEmpty())
+        assertDecodedAsBean(line(argc = -1, returnTypeName = "NilClass"))
+    }
+
+    @Test
+    fun testUnnamedArguments() {
+        val callInfo = assertDecodedAsBean(line(argc = 2, argsInfo = "REQ,Integer,a;OPT,String,b"))
+        assertEquals(listOf(ArgumentNameAndType("a", "Integer"), ArgumentNameAndType("b", "String")),
+                callInfo.unnamedArguments)
+        assertDecodedAsBean(line(argc = -1, argsInfo = "REQ,Integer,a;OPT,String,b;REST,Array,rest;POST,Float,c"))
+    }
+
+    @Test
+    fun testImplicitlyPassedArguments() {
+        val argsInfo = "REQ,Integer,a;OPT,String,b;OPT,Symbol,c;REST,Array,rest;POST,Float,d;BLOCK,Proc,blk"
+        for (argc in 2..6) {
+            assertDecodedAsBean(line(argc = argc, argsInfo = argsInfo))
+        }
+
+        val callInfo = assertDecodedAsBean(line(argc = 1, argsInfo = "REQ,Integer,a;OPT,String,b"))
+        assertEquals(ArgumentNameAndType.IMPLICITLY_PASSED_ARGUMENT_TYPE, callInfo.unnamedArguments[1].type)
+    }
+
+    @Test
+    fun testNamedArguments() {
+        val argsInfo = "REQ,Integer,a;KEY,Symbol,mode;KEYREQ,String,name;KEYREST,Hash,opts"
+        val callInfo = assertDecodedAsBean(line(argc = 4, argsInfo = argsInfo))
+        assertEquals(listOf("mode", "name", "opts"), callInfo.namedArguments.map { it.name })
+        assertEquals(listOf("a"), callInfo.unnamedArguments.map { it.name })
+        assertDecodedAsBean(line(argc = -1, argsInfo = argsInfo))
+    }
+
+    @Test
+    fun testParametersWithoutName() {
+        assertDecodedAsBean(line(argc = -1, argsInfo = "REST,Array;BLOCK,NilClass"))
+        assertDecodedAsBean(line(argc = -1, argsInfo = "REQ,Integer,a,b;REQ,String,"))
+    }
+
+    @Test
+    fun testUnicode() {
+        val callInfo = assertDecodedAsBean(line(methodName = "привет?", argsInfo = "REQ,Строка,имя",
+                path = "/home/юзер/.gem/ruby/2.5.0/gems/rails-5.2.0/lib/a.rb", receiverName = "Модуль::Класс"))
+        assertEquals(GemInfo("rails", "5.2.0"), callInfo.methodInfo.classInfo.gemInfo)
+        assertEquals("Модуль::Класс", callInfo.methodInfo.classInfo.classFQN)
+    }
+
+    @Test
+    fun testEscapesAreLeftToBeanParsing() {
+        val escapedLines = listOf(
+                line(receiverName = "#<Class:\\\"A\\\">"),
+                line(path = "C:\\\\project\\\\a.rb"),
+                line(methodName = "\\u0066oo"))
+        for (line in escapedLines) {
+            assertNull(CallInfoDecoder().decode(line))
+            // fallback used by SignatureServer must still understand such lines
+            parseBean(line)
+        }
+        assertEquals("foo", parseBean(escapedLines[2]).methodInfo.name)
+    }
+
+    @Test
+    fun testMalformedLines() {
+        val decoder = CallInfoDecoder()
+        val valid = line(argc = 1, argsInfo = "REQ,Integer,a;OPT,String,b")
+        for (length in 0 until valid.length) {
+            assertNull(valid.substring(0, length), decoder.decode(valid.substring(0, length)))
+        }
+        assertNotNull(decoder.decode("$valid \t"))
+        assertNull(decoder.decode("$valid,"))
+        assertNull(decoder.decode(valid.replace("\"call_info_argc\":\"1\"", "\"call_info_argc\":1")))
+        assertNull(decoder.decode(valid.replace("\"call_info_argc\":\"1\"", "\"call_info_argc\":\"x\"")))
+        assertNull(decoder.decode(valid.replace("\"lineno\":\"1\"", "\"lineno\":\"12345678901\"")))
+        assertNull(decoder.decode(valid.replace("PUBLIC", "OPEN")))
+        assertNull(decoder.decode(valid.replace("REQ,Integer,a", "FOO,Integer,a")))
+        assertNull(decoder.decode(valid.replace("REQ,Integer,a", "REQ")))
+        assertNull(decoder.decode(line(methodName = "foo\",\"x\":\"y")))
+
+        // the decoder is still usable after malformed lines
+        assertEquals(parseBean(valid), decoder.decode(valid))
+    }
+
+    @Test
+    fun testInconsistentArgcFailsAsBean() {
+        val line = line(argc = 5, argsInfo = "REQ,Integer,a")
+        try {
+            CallInfoDecoder().decode(line)
+            fail("IllegalStateException expected")
+        } catch (e: IllegalStateException) {
+        }
+        try {
+            parseBean(line)
+            fail("IllegalStateException expected")
+        } catch (e: IllegalStateException) {
+        }
+    }
+
+    @Test
+    fun testDecodeOfSeparatedFields() {
+        val argsInfo = "REQ,Integer,a;OPT,String,b;KEY,Symbol,mode"
+        val path = "/gems/rake-12.3.1/lib/rake.rb"
+        val expected = parseBean(line(methodName = "run", argc = 2, argsInfo = argsInfo, path = path, lineno = 7,
+                receiverName = "Rake::Application", returnTypeName = "TrueClass"))
+        assertEquals(expected, CallInfoDecoder().decode("run", 2, argsInfo, RVisibility.PUBLIC, path, 7,
+                "Rake::Application", "TrueClass"))
+        assertNull(CallInfoDecoder().decode("run", 2, "REQ", RVisibility.PUBLIC, path, 7, "Rake::Application", "TrueClass"))
+    }
+
+    @Test
+    fun testRepeatedStringsAreShared() {
+        val decoder = CallInfoDecoder()
+        // many different names make the interner grow several times
+        val lines = (0 until 2000).map { line(methodName = "method$it", argsInfo = "REQ,Type$it,arg$it") }
+        val first = lines.map { decoder.decode(it)!! }
+        val second = lines.map { decoder.decode(it)!! }
+        for (i in lines.indices) {
+            assertEquals("method$i", first[i].methodInfo.name)
+            assertSame(first[i].methodInfo.name, second[i].methodInfo.name)
+            assertSame(first[i].unnamedArguments[0].name, second[i].unnamedArguments[0].name)
+            assertSame(first[i].unnamedArguments[0].type, second[i].unnamedArguments[0].type)
+        }
+    }
+
+    @Test
+    fun testInternerGrows() {
+        // "Aa" and "BB" have the same hash code
+        val strings = listOf("Aa", "BB", "AaAa", "BBBB", "AaBB") + (0 until 1000).map { "s$it" }
+        val source = strings.joinToString("|")
+        val interner = StringInterner(strings.size)
+
+        val ranges = ArrayList<IntRange>()
+        var start = 0
+        for (string in strings) {
+            ranges.add(start until start + string.length)
+            start += string.length + 1
+        }
+
+        val interned = ranges.map { interner.intern(source, it.first, it.last + 1) }
+        assertEquals(strings, interned)
+        ranges.forEachIndexed { i, range ->
+            assertSame(interned[i], interner.intern(source, range.first, range.last + 1))
+        }
+    }
+
+    @Test
+    fun testInternerStopsRememberingAtMaxSize() {
+        val source = "abcd"
+        val interner = StringInterner(2)
+        val a = interner.intern(source, 0, 1)
+        val b = interner.intern(source, 1, 2)
+        val c = interner.intern(source, 2, 3)
+
+        assertSame(a, interner.intern(source, 0, 1))
+        assertSame(b, interner.intern(source, 1, 2))
+        assertEquals(c, interner.intern(source, 2, 3))
+        assertNotSame(c, interner.intern(source, 2, 3))
+    }
+}
@@ -42,7 +42,7 @@ fun Database.copyTo(destination: Database, moveProgressBar: Boolean) {
         }
 
         transaction(destination) {
-            info.forEach { CallInfoTable.insertInfoIfNotContains(it) }
+            CallInfoTable.insertInfosIfNotContains(info)
         }
 
         offset += CHUNK_SIZE
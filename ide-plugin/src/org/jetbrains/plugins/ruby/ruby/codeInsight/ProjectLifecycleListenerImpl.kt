@@ -1,31 +1,43 @@
 package org.jetbrains.plugins.ruby.ruby.codeInsight
 
 import com.google.gson.Gson
+import com.intellij.openapi.components.ServiceManager
 import com.intellij.openapi.project.Project
 import com.intellij.openapi.project.ProjectManagerListener
+import org.jetbrains.plugins.ruby.ruby.codeInsight.types.rebuildRegisteredMethodsFilter
+import org.jetbrains.plugins.ruby.ruby.codeInsight.types.setCallInfoIndexEnabled
+import org.jetbrains.plugins.ruby.ruby.codeInsight.types.setRegisteredCallInfosCacheSize
 import org.jetbrains.plugins.ruby.ruby.persistent.TypeInferenceDirectory
-import org.jetbrains.plugins.ruby.util.runServerAsyncInIDEACompatibleMode
+import org.jetbrains.plugins.ruby.settings.RubyTypeContractsSettings
+import org.jetbrains.plugins.ruby.util.runSocketServerAsyncInIDEACompatibleMode
 import org.jetbrains.ruby.codeInsight.types.storage.server.DatabaseProvider
 import org.jetbrains.ruby.runtime.signature.server.SignatureServer
 import java.io.File
 import java.io.PrintWriter
+import java.nio.file.FileSystems
+import java.nio.file.Files
 import java.nio.file.Paths
+import java.nio.file.attribute.PosixFilePermissions
 
 /**
  * Short [Project] description for `rubymine-type-tracer`
+ *
+ * @param serverToken [SignatureServer.connectionToken] of the server, so the file must be readable by its owner only
  */
-data class ProjectDescription(val projectName: String, val projectPath: String, val pipeFilePath: String) {
+data class ProjectDescription(val projectName: String, val projectPath: String, val serverPort: Int,
+                              val serverToken: String) {
     /**
      * @param project default projects are not allowed!
      */
-    constructor(project: Project, pipeFilePath: String) : this(project.name, project.basePath!!, pipeFilePath)
+    constructor(project: Project, serverPort: Int, serverToken: String) :
+            this(project.name, project.basePath!!, serverPort, serverToken)
 }
 
 /**
  * This directory is needed for `rubymine-type-tracker` script
  *
  * In this directory we keep files named the same as currently opened projects in RubyMine.
- * Each file contains projectPath of pipe file required for arg-scanner.
+ * Each file contains port and token of the server required for arg-scanner.
  */
 private val openedProjectsDir = File(System.getProperty("java.io.tmpdir")!!).resolve(".ruby-type-inference")
         .also { it.mkdirs() }
@@ -41,9 +53,15 @@ class ProjectLifecycleListenerImpl : ProjectManagerListener {
         private var initialized: Boolean = false
     }
 
+    private val servers: MutableMap<Project, SignatureServer> = HashMap()
+
     override fun projectOpened(project: Project) {
         if (!project.isDefault) {
             connectToDB(project.name)
+            rebuildRegisteredMethodsFilter()
+            val settings = ServiceManager.getService(project, RubyTypeContractsSettings::class.java)
+            setCallInfoIndexEnabled(settings.preloadCallInfos)
+            setRegisteredCallInfosCacheSize(settings.callInfosCacheSizeMb)
 
             // This server is used for `rubymine-type-tracker` script
             startNewBackgroundInfinityServer(project)
@@ -52,8 +70,8 @@ class ProjectLifecycleListenerImpl : ProjectManagerListener {
 
     override fun projectClosed(project: Project) {
         if (!project.isDefault) {
-            val projectDescription = readProjectDescription(project, deleteJsonAfterRead = true)
-            File(projectDescription.pipeFilePath).delete()
+            readProjectDescription(project, deleteJsonAfterRead = true)
+            synchronized(servers) { servers.remove(project) }?.shutdown()
         }
     }
 
@@ -66,7 +84,8 @@ class ProjectLifecycleListenerImpl : ProjectManagerListener {
     }
 
     /**
-     * Starts server for `rubymine-type-tracker` script
+     * Starts server for `rubymine-type-tracker` script. Server accepts any number of simultaneously traced
+     * processes (e.g. parallel tests or forked workers) and works until the project is closed
      */
     private fun startNewBackgroundInfinityServer(project: Project): Boolean {
         if (project.isDefault) {
@@ -74,18 +93,26 @@ class ProjectLifecycleListenerImpl : ProjectManagerListener {
         }
 
         val server = SignatureServer()
-        val pipeFilePath: String = server.runServerAsyncInIDEACompatibleMode(project)
+        val serverPort: Int = server.runSocketServerAsyncInIDEACompatibleMode(project)
+        synchronized(servers) { servers[project] = server }
 
-        writeProjectDescription(ProjectDescription(project, pipeFilePath))
-
-        server.afterExitListener = {
-            startNewBackgroundInfinityServer(project)
-        }
+        writeProjectDescription(ProjectDescription(project, serverPort, server.connectionToken))
         return true
     }
 
+    /**
+     * The directory is shared by all users, so the file is created anew readable by its owner only
+     */
     private fun writeProjectDescription(description: ProjectDescription) {
         val jsonFile: File = openedProjectsDir.resolve(description.projectName)
+        Files.deleteIfExists(jsonFile.toPath())
+        if (FileSystems.getDefault().supportedFileAttributeViews().contains("posix")) {
+            Files.createFile(jsonFile.toPath(), PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")))
+        } else {
+            Files.createFile(jsonFile.toPath())
+            jsonFile.setReadable(false, false)
+            jsonFile.setReadable(true, true)
+        }
         PrintWriter(jsonFile).use { it.println(gson.toJson(description)) }
     }
 
@@ -0,0 +1,168 @@
+package org.jetbrains.plugins.ruby.ruby.codeInsight.types
+
+import java.util.concurrent.*
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * Runs computations on a bounded pool of threads for callers which can wait only for a limited time.
+ *
+ * Computations requested with equal keys while one of them is in flight share a single job. When every caller
+ * of a job has given up (timed out or was cancelled itself), the job is cancelled: a queued job is removed
+ * from the queue, a running one sees it via the `isCancelled` callback and may stop early. Threads are never
+ * interrupted, so running H2 queries aren't broken. When the queue is full, the oldest queued job is dropped:
+ * its callers are the most likely to have given up already.
+ *
+ * @param checkCanceled called while waiting, may throw to stop waiting, e.g. [com.intellij.openapi.progress.ProgressManager.checkCanceled]
+ */
+class DeduplicatingExecutor<K : Any, V : Any>(threadsCount: Int,
+                                              queueCapacity: Int,
+                                              threadNamePrefix: String,
+                                              private val checkCanceled: () -> Unit = {}) {
+    companion object {
+        private const val WAIT_SLICE_MS = 10L
+    }
+
+    data class Stats(val queueDepth: Int,
+                     val inFlight: Int,
+                     val submitted: Long,
+                     val deduplicated: Long,
+                     val timedOut: Long,
+                     val cancelled: Long,
+                     val dropped: Long) {
+        /**
+         * Part of the requests whose callers didn't get the result in time
+         */
+        val timeoutRate: Double
+            get() = if (submitted + deduplicated == 0L) 0.0 else timedOut.toDouble() / (submitted + deduplicated)
+    }
+
+    private val inFlight = ConcurrentHashMap<K, Job>()
+
+    private val submitted = LongAdder()
+    private val deduplicated = LongAdder()
+    private val timedOut = LongAdder()
+    private val cancelled = LongAdder()
+    private val dropped = LongAdder()
+
+    private val pool: ThreadPoolExecutor = ThreadPoolExecutor(threadsCount, threadsCount, 0L, TimeUnit.MILLISECONDS,
+            ArrayBlockingQueue<Runnable>(queueCapacity), createThreadFactory(threadNamePrefix),
+            RejectedExecutionHandler { job, executor ->
+                if (!executor.isShutdown) {
+                    (executor.queue.poll() as? Future<*>)?.let {
+                        it.cancel(false)
+                        dropped.increment()
+                    }
+                    executor.execute(job)
+                }
+            })
+
+    val stats: Stats
+        get() = Stats(pool.queue.size, inFlight.size, submitted.sum(), deduplicated.sum(), timedOut.sum(),
+                cancelled.sum(), dropped.sum())
+
+    /**
+     * Runs [computation] for [key] unless it is already in flight and waits for the result at most [timeoutMs]
+     *
+     * @param computation gets a callback telling if every caller has given up
+     * @return result of the computation or `null` if it isn't ready in time or was dropped
+     */
+    fun compute(key: K, timeoutMs: Long, computation: (isCancelled: () -> Boolean) -> V?): V? {
+        val job = acquireJob(key, computation)
+        try {
+            return await(job, timeoutMs)
+        } finally {
+            job.release()
+        }
+    }
+
+    private fun acquireJob(key: K, computation: (isCancelled: () -> Boolean) -> V?): Job {
+        while (true) {
+            val existing = inFlight[key]
+            if (existing != null) {
+                if (existing.acquire()) {
+                    deduplicated.increment()
+                    return existing
+                }
+                // all callers of the job have just given up, it is being removed
+                inFlight.remove(key, existing)
+                continue
+            }
+            val job = Job(key, computation)
+            job.acquire()
+            if (inFlight.putIfAbsent(key, job) == null) {
+                submitted.increment()
+                pool.execute(job)
+                return job
+            }
+        }
+    }
+
+    private fun await(job: Job, timeoutMs: Long): V? {
+        val deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs)
+        while (true) {
+            checkCanceled()
+            val remainingMs = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())
+            if (remainingMs <= 0) {
+                timedOut.increment()
+                return null
+            }
+            try {
+                return job.get(Math.min(remainingMs, WAIT_SLICE_MS), TimeUnit.MILLISECONDS)
+            } catch (e: TimeoutException) {
+                // check the caller and wait for the next slice
+            } catch (e: CancellationException) {
+                return null
+            } catch (e: ExecutionException) {
+                throw e.cause ?: e
+            }
+        }
+    }
+
+    private inner class Job(private val key: K,
+                            computation: (isCancelled: () -> Boolean) -> V?,
+                            private val cancelledFlag: AtomicBoolean = AtomicBoolean())
+        : FutureTask<V?>(Callable<V?> { computation { cancelledFlag.get() } }) {
+        /**
+         * Number of callers waiting for the job, -1 after the last one has given up
+         */
+        private val waiters = AtomicInteger()
+
+        override fun cancel(mayInterruptIfRunning: Boolean): Boolean {
+            cancelledFlag.set(true)
+            return super.cancel(mayInterruptIfRunning)
+        }
+
+        fun acquire(): Boolean {
+            while (true) {
+                val count = waiters.get()
+                if (count < 0) {
+                    return false
+                }
+                if (waiters.compareAndSet(count, count + 1)) {
+                    return true
+                }
+            }
+        }
+
+        fun release() {
+            if (waiters.decrementAndGet() == 0 && waiters.compareAndSet(0, -1) && !isDone) {
+                cancel(false)
+                pool.remove(this)
+                cancelled.increment()
+            }
+        }
+
+        override fun done() {
+            inFlight.remove(key, this)
+        }
+    }
+
+    private fun createThreadFactory(threadNamePrefix: String): ThreadFactory {
+        val counter = AtomicInteger()
+        return ThreadFactory { runnable ->
+            Thread(runnable, "$threadNamePrefix ${counter.incrementAndGet()}").apply { isDaemon = true }
+        }
+    }
+}
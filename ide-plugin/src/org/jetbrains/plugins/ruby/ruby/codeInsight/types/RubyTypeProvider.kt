@@ -1,11 +1,10 @@
 package org.jetbrains.plugins.ruby.ruby.codeInsight.types
 
-import com.intellij.openapi.application.ReadAction
+import com.intellij.openapi.application.ApplicationManager
 import com.intellij.openapi.components.ServiceManager
 import com.intellij.openapi.module.ModuleUtilCore
 import com.intellij.openapi.progress.ProgressManager
 import com.intellij.openapi.project.Project
-import com.intellij.util.containers.ContainerUtil
 import org.jetbrains.plugins.ruby.ruby.codeInsight.AbstractRubyTypeProvider
 import org.jetbrains.plugins.ruby.ruby.codeInsight.IncomingType
 import org.jetbrains.plugins.ruby.ruby.codeInsight.resolve.ResolveUtil
@@ -26,31 +25,184 @@ import org.jetbrains.plugins.ruby.ruby.lang.psi.RubyPsiUtil
 import org.jetbrains.plugins.ruby.ruby.lang.psi.expressions.RExpression
 import org.jetbrains.plugins.ruby.ruby.lang.psi.variables.RIdentifier
 import org.jetbrains.ruby.codeInsight.types.signature.*
+import org.jetbrains.ruby.codeInsight.types.storage.server.DatabaseProvider
+import org.jetbrains.ruby.codeInsight.types.storage.server.impl.CallInfoIndex
 import org.jetbrains.ruby.codeInsight.types.storage.server.impl.CallInfoTable
 import org.jetbrains.ruby.codeInsight.types.storage.server.impl.RSignatureProviderImpl
-import java.util.concurrent.Executors
-import java.util.concurrent.Future
-import java.util.concurrent.TimeUnit
-import java.util.concurrent.TimeoutException
+import org.jetbrains.ruby.codeInsight.types.storage.server.impl.RegisteredMethodsFilter
+import org.jetbrains.ruby.runtime.signature.server.SignatureServer
+
+/**
+ * Registered [CallInfo]s of a method and [CallInfoMatcher] compiled from them on first use
+ */
+private class RegisteredCallInfos(val callInfos: List<CallInfo>) {
+    val matcher: CallInfoMatcher by lazy { CallInfoMatcher(callInfos) }
+}
+
+private val NO_REGISTERED_CALL_INFOS = RegisteredCallInfos(emptyList())
+
+const val DEFAULT_CALL_INFOS_CACHE_SIZE_MB = 32
+
+/**
+ * Rough estimates of retained bytes, type names are shared by [TypeNameDictionary] and aren't counted
+ */
+private const val CACHE_ENTRY_WEIGHT = 160L
+private const val CALL_INFO_WEIGHT = 96L
+private const val ARGUMENT_WEIGHT = 64L
+
+private fun estimateWeight(methodInfo: MethodInfo, registeredCallInfos: RegisteredCallInfos): Long {
+    var weight = CACHE_ENTRY_WEIGHT + 2 * (methodInfo.name.length + methodInfo.classInfo.classFQN.length)
+    for (callInfo in registeredCallInfos.callInfos) {
+        // arguments are counted twice: as part of the call info and as nodes of the matcher
+        weight += CALL_INFO_WEIGHT + 2 * ARGUMENT_WEIGHT * (callInfo.unnamedArguments.size + callInfo.namedArguments.size)
+    }
+    return weight
+}
 
 /**
  * Cache where we store last accessed [CallInfo]s. Thread safe
  */
-private val registeredCallInfosCache: MutableMap<MethodInfo, List<CallInfo>>
-        = ContainerUtil.createConcurrentSoftKeySoftValueMap<MethodInfo, List<CallInfo>>()
+private val registeredCallInfosCache = WeightedLruCache<MethodInfo, RegisteredCallInfos>(
+        DEFAULT_CALL_INFOS_CACHE_SIZE_MB * 1024L * 1024L, ::estimateWeight)
+
+val registeredCallInfosCacheStats: WeightedLruCache.Stats
+    get() = registeredCallInfosCache.stats
+
+fun setRegisteredCallInfosCacheSize(megabytes: Int) {
+    registeredCallInfosCache.maxWeight = megabytes * 1024L * 1024L
+}
+
+/**
+ * In-memory copy of call infos of the default database, see [setCallInfoIndexEnabled]
+ */
+@Volatile
+private var callInfoIndex: CallInfoIndex? = null
+
+@Volatile
+private var callInfoIndexEnabled: Boolean = false
+
+private val callInfoIndexLoadLock = Any()
+
+/**
+ * Methods having call infos in the default database, `null` while it's being built
+ */
+@Volatile
+private var registeredMethodsFilter: RegisteredMethodsFilter? = null
+
+private val registeredMethodsFilterBuildLock = Any()
+
+/**
+ * When enabled, all the call infos of the default database are (re)loaded into memory in background and
+ * [getCachedOrComputedRegisteredCallInfo] doesn't go to the database after that.
+ * Call it again after the default database is changed
+ */
+fun setCallInfoIndexEnabled(enabled: Boolean) {
+    callInfoIndexEnabled = enabled
+    callInfoIndex = null
+    if (enabled) {
+        ApplicationManager.getApplication().executeOnPooledThread { loadCallInfoIndex() }
+    }
+}
+
+private fun loadCallInfoIndex() {
+    synchronized(callInfoIndexLoadLock) {
+        if (!callInfoIndexEnabled) {
+            return
+        }
+        val index = DatabaseProvider.defaultDatabaseTransaction { CallInfoIndex.load() }
+        callInfoIndex = index
+        // disabled while loading
+        if (!callInfoIndexEnabled) {
+            callInfoIndex = null
+        }
+        // rows flushed while loading weren't passed to updatePreloadedCallInfos
+        DatabaseProvider.defaultDatabaseTransaction { index.update() }
+    }
+}
+
+/**
+ * Builds [RegisteredMethodsFilter] of the default database in background, lookups aren't filtered meanwhile.
+ * Call it after the default database is changed
+ */
+fun rebuildRegisteredMethodsFilter() {
+    registeredMethodsFilter = null
+    ApplicationManager.getApplication().executeOnPooledThread {
+        synchronized(registeredMethodsFilterBuildLock) {
+            val filter = DatabaseProvider.defaultDatabaseTransaction { RegisteredMethodsFilter.build() }
+            registeredMethodsFilter = filter
+            // rows flushed while building weren't passed to updatePreloadedCallInfos
+            DatabaseProvider.defaultDatabaseTransaction { filter.update() }
+        }
+    }
+}
+
+/**
+ * @return `false` if [methodInfo] certainly has no registered call infos
+ */
+fun mightHaveRegisteredCallInfos(methodInfo: MethodInfo): Boolean =
+        registeredMethodsFilter?.mightHaveCallInfos(methodInfo) != false
 
-fun resetAllRubyTypeProviderAndIDEACaches(project: Project?) {
-    registeredCallInfosCache.clear()
+/**
+ * Reads call infos inserted since [CallInfoIndex] and [RegisteredMethodsFilter] were built or updated last time
+ */
+fun updatePreloadedCallInfos() {
+    val index = callInfoIndex
+    val filter = registeredMethodsFilter
+    if (index == null && filter == null) {
+        return
+    }
+    DatabaseProvider.defaultDatabaseTransaction {
+        index?.update()
+        filter?.update()
+    }
+}
+
+/**
+ * @param flushedCallInfos call infos which were only added and passed to [updatePreloadedCallInfos], then cached
+ * call infos of other methods stay. `null` if anything could change, e.g. call infos were removed or imported
+ */
+fun resetAllRubyTypeProviderAndIDEACaches(project: Project?, flushedCallInfos: List<CallInfo>? = null) {
+    if (flushedCallInfos == null) {
+        // removed call infos must reach the database again when they are traced once more
+        SignatureServer.runningServers.forEach { it.deduplicator?.clear() }
+        registeredCallInfosCache.clear()
+        rebuildRegisteredMethodsFilter()
+        if (callInfoIndexEnabled) {
+            setCallInfoIndexEnabled(true)
+        }
+    } else if (flushedCallInfos.isNotEmpty()) {
+        invalidateRegisteredCallInfos(flushedCallInfos.map { it.methodInfo })
+    }
     // Clears IDEAs caches about inferred types
     ServiceManager.getService(project ?: return, TypeInferenceContext::class.java)?.clear()
 }
 
-fun getCachedOrComputedRegisteredCallInfo(methodInfo: MethodInfo): List<CallInfo> {
+/**
+ * Removes cached call infos of [methods] including the entries of partially qualified classes they are found by
+ */
+private fun invalidateRegisteredCallInfos(methods: Collection<MethodInfo>) {
+    val fqnsByMethodName = methods.groupBy({ it.name }, { it.classInfo.classFQN })
+    registeredCallInfosCache.removeIf { key ->
+        fqnsByMethodName[key.name]?.any { it.endsWith(key.classInfo.classFQN) } == true
+    }
+}
+
+private fun getRegisteredCallInfos(methodInfo: MethodInfo): RegisteredCallInfos {
+    if (!mightHaveRegisteredCallInfos(methodInfo)) {
+        return NO_REGISTERED_CALL_INFOS
+    }
     return registeredCallInfosCache.getOrPut(methodInfo) {
-        RSignatureProviderImpl.getRegisteredCallInfos(methodInfo)
+        RegisteredCallInfos(callInfoIndex?.getRegisteredCallInfos(methodInfo)
+                ?: RSignatureProviderImpl.getRegisteredCallInfos(methodInfo))
     }
 }
 
+fun getCachedOrComputedRegisteredCallInfo(methodInfo: MethodInfo): List<CallInfo> =
+        getRegisteredCallInfos(methodInfo).callInfos
+
+fun getCachedOrComputedCallInfoMatcher(methodInfo: MethodInfo): CallInfoMatcher =
+        getRegisteredCallInfos(methodInfo).matcher
+
 class RubyParameterTypeProvider : AbstractRubyTypeProvider() {
     override fun createTypeBySymbol(symbol: Symbol): RType? {
         return null
@@ -99,78 +251,53 @@ class RubyParameterTypeProvider : AbstractRubyTypeProvider() {
  */
 class ReturnTypeSymbolicTypeInferenceProvider : SymbolicTypeInferenceProvider {
     companion object {
-        private val pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() + 1)
+        // This method is run under read action and we cannot afford to spend a lot of time determining time.
+        // Otherwise we got glitches see: https://youtrack.jetbrains.com/issue/RUBY-25433
+        private const val TIMEOUT_MS = 100L
+
+        private const val QUEUE_CAPACITY = 256
+
+        /**
+         * Looks up return types in [CallInfoTable]. Stale lookups are dropped, see [DeduplicatingExecutor.Stats]
+         * for the queue depth and the timeout rate
+         */
+        val executor = DeduplicatingExecutor<ReturnTypeRequest, List<List<String>>>(
+                Runtime.getRuntime().availableProcessors() + 1, QUEUE_CAPACITY,
+                "Ruby return types lookup", ProgressManager::checkCanceled)
     }
 
+    /**
+     * Everything the lookup depends on, so equal requests share one lookup
+     *
+     * @param receiverTypes type of the receiver followed by its ancestors from the closest one
+     */
+    data class ReturnTypeRequest(val receiverTypes: List<String>,
+                                 val methodName: String,
+                                 val unnamedArgsTypes: List<String?>,
+                                 val namedArgsTypes: List<ArgumentNameAndType?>)
+
     override fun evaluateSymbolicCall(symbolicCall: SymbolicCall,
                                       context: SymbolicExecutionContext,
                                       callContext: TypeInferenceInstance.CallContext,
                                       provider: SymbolicExpressionProvider,
                                       component: TypeInferenceComponent): SymbolicExpression? {
         ProgressManager.checkCanceled()
-        val job: () -> SymbolicExpression? = {
-            evaluateSymbolicCallPoolJob(symbolicCall, context, callContext, component)
+        val request = createRequest(symbolicCall, context, callContext, component)
+        if (request.receiverTypes.isEmpty()) {
+            return null
         }
 
-        val future: Future<SymbolicExpression?> = pool.submit(job)
-        return try {
-            // This method is run under read action and we cannot afford to spend a lot of time determining time.
-            // Otherwise we got glitches see: https://youtrack.jetbrains.com/issue/RUBY-25433
-            future.get(100, TimeUnit.MILLISECONDS)
-        } catch (ex: TimeoutException) {
-            null
+        val returnTypeNamesOfReceiverTypes = executor.compute(request, TIMEOUT_MS) { isCancelled ->
+            findRegisteredReturnTypes(request, isCancelled)
         }
-    }
-
-    private fun evaluateSymbolicCallPoolJob(symbolicCall: SymbolicCall,
-                                            context: SymbolicExecutionContext,
-                                            callContext: TypeInferenceInstance.CallContext,
-                                            component: TypeInferenceComponent): SymbolicExpression? {
-        var unnamedArgsTypes: List<String?> = emptyList()
-        var namedArgsTypes: List<ArgumentNameAndType?> = emptyList()
-        var receiverTypesConsideringAncestors: List<String> = emptyList()
-        ReadAction.run<Exception> {
-            ProgressManager.checkCanceled()
-            val exactReceiverType: RType = SymbolicTypeInferenceProvider.getReceiverType(symbolicCall, component, callContext)
-
-            // reversed because getAncestorsCaching gives us list of ancestors ordered from parent to end children
-            // This list already include exactReceiverType
-            receiverTypesConsideringAncestors = RTypeUtil.getBirthTypeSymbol(exactReceiverType)
-                    ?.let { SymbolHierarchy.getAncestorsCaching(it, callContext.invocationPoint) }
-                    ?.map { it.symbol.fqnWithNesting.toString() }?.reversed() ?: emptyList()
-
-            val typeInferenceComponent = context.getComponent(TypeInferenceComponent::class.java)
-
-            unnamedArgsTypes = symbolicCall.arguments.asSequence().filter { it.type != IncomingType.ASSOC }
-                    .map { typeInferenceComponent.getTypeForSymbolicExpression(it.expression).name }.toList()
-
-            namedArgsTypes = symbolicCall.arguments.asSequence().filter { it.type == IncomingType.ASSOC }
-                    .map {
-                        val type = typeInferenceComponent.getTypeForSymbolicExpression(it.expression).name ?: return@map null
-                        return@map ArgumentNameAndType(it.keyName, type)
-                    }.toList()
+        val invocationPoint = callContext.invocationPoint as? RPsiElement
+        if (returnTypeNamesOfReceiverTypes == null || invocationPoint == null) {
+            return null
         }
 
-        for (receiverTypeName in receiverTypesConsideringAncestors) {
-            val methodInfo = MethodInfo.Impl(ClassInfo.Impl(null, receiverTypeName), symbolicCall.name)
-
-            val registeredCallInfos = getCachedOrComputedRegisteredCallInfo(methodInfo)
-
-            val registeredReturnTypes: List<String> = registeredCallInfos
-                    .asSequence()
-                    .filter { argumentsMatch(it, unnamedArgsTypes, namedArgsTypes) }
-                    .map { it.returnType }
-                    .toList()
-                    .takeIf { !it.isEmpty() }
-                    ?: registeredCallInfos.map { it.returnType }
-
-            val returnType = registeredReturnTypes
-                    .mapNotNull {
-                        RTypeFactory.createTypeClassName(it, callContext.invocationPoint as? RPsiElement
-                                ?: return@mapNotNull null)
-                    }
-                    .unionTypesSmart()
-
+        for (returnTypeNames in returnTypeNamesOfReceiverTypes) {
+            val returnType = returnTypeNames.map { RTypeFactory.createTypeClassName(it, invocationPoint) }.unionTypesSmart()
+            // Types which can't be resolved here are skipped in favour of the next ancestor
             if (returnType != REmptyType.INSTANCE) {
                 component.updateSymbolicExpressionType(symbolicCall, returnType)
                 return symbolicCall
@@ -181,29 +308,62 @@ class ReturnTypeSymbolicTypeInferenceProvider : SymbolicTypeInferenceProvider {
         return null
     }
 
-    private fun argumentsMatch(oneOfExpected: CallInfo, actualUnnamedArgs: List<String?>, actualNamedArgs: List<ArgumentNameAndType?>): Boolean {
-        if (oneOfExpected.unnamedArguments.size != actualUnnamedArgs.size || oneOfExpected.namedArguments.size != actualNamedArgs.size) {
-            return false
-        }
+    private fun createRequest(symbolicCall: SymbolicCall,
+                              context: SymbolicExecutionContext,
+                              callContext: TypeInferenceInstance.CallContext,
+                              component: TypeInferenceComponent): ReturnTypeRequest {
+        val exactReceiverType: RType = SymbolicTypeInferenceProvider.getReceiverType(symbolicCall, component, callContext)
 
-        if (oneOfExpected.unnamedArguments.zip(actualUnnamedArgs).any {
-                    it.first.type != ArgumentNameAndType.IMPLICITLY_PASSED_ARGUMENT_TYPE &&
-                            it.second != null &&
-                            it.first.type != it.second
-                }) {
-            return false
-        }
+        // reversed because getAncestorsCaching gives us list of ancestors ordered from parent to end children
+        // This list already include exactReceiverType. Ancestors which certainly have no call infos of the method
+        // are skipped, so requests without any candidate don't reach the executor
+        val receiverTypesConsideringAncestors = RTypeUtil.getBirthTypeSymbol(exactReceiverType)
+                ?.let { SymbolHierarchy.getAncestorsCaching(it, callContext.invocationPoint) }
+                ?.map { it.symbol.fqnWithNesting.toString() }?.reversed()
+                ?.filter { mightHaveRegisteredCallInfos(MethodInfo.Impl(ClassInfo.Impl(null, it), symbolicCall.name)) }
+                ?: emptyList()
 
-        if (oneOfExpected.namedArguments.zip(actualNamedArgs).any {
-                    it.second != null &&
-                            it.first.type != ArgumentNameAndType.IMPLICITLY_PASSED_ARGUMENT_TYPE &&
-                            it.second!!.type != ArgumentNameAndType.IMPLICITLY_PASSED_ARGUMENT_TYPE &&
-                            it.first.type != it.second!!.type
-                }) {
-            return false
-        }
+        val typeInferenceComponent = context.getComponent(TypeInferenceComponent::class.java)
+
+        val unnamedArgsTypes = symbolicCall.arguments.asSequence().filter { it.type != IncomingType.ASSOC }
+                .map { typeInferenceComponent.getTypeForSymbolicExpression(it.expression).name }.toList()
 
-        return true
+        val namedArgsTypes = symbolicCall.arguments.asSequence().filter { it.type == IncomingType.ASSOC }
+                .map {
+                    val type = typeInferenceComponent.getTypeForSymbolicExpression(it.expression).name ?: return@map null
+                    return@map ArgumentNameAndType(it.keyName, type)
+                }.toList()
+
+        return ReturnTypeRequest(receiverTypesConsideringAncestors, symbolicCall.name, unnamedArgsTypes, namedArgsTypes)
+    }
+
+    /**
+     * Runs in the pool, so it doesn't touch PSI
+     *
+     * @return registered return types of every receiver type which has any, from the closest one, or `null`
+     * if cancelled. Return types are resolved later, so all receiver types are kept in case the closest ones
+     * resolve to nothing
+     */
+    private fun findRegisteredReturnTypes(request: ReturnTypeRequest, isCancelled: () -> Boolean): List<List<String>>? {
+        val ret = ArrayList<List<String>>()
+        for (receiverTypeName in request.receiverTypes) {
+            if (isCancelled()) {
+                return null
+            }
+            val methodInfo = MethodInfo.Impl(ClassInfo.Impl(null, receiverTypeName), request.methodName)
+
+            val matcher = getCachedOrComputedCallInfoMatcher(methodInfo)
+
+            val registeredReturnTypes: List<String> = matcher
+                    .findMatchingReturnTypes(request.unnamedArgsTypes, request.namedArgsTypes)
+                    .takeIf { !it.isEmpty() }
+                    ?: matcher.returnTypes
+
+            if (registeredReturnTypes.isNotEmpty()) {
+                ret.add(registeredReturnTypes)
+            }
+        }
+        return ret
     }
 }
 
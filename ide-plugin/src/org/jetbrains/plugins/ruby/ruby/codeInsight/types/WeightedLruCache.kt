@@ -0,0 +1,104 @@
+package org.jetbrains.plugins.ruby.ruby.codeInsight.types
+
+/**
+ * Cache bounded by the total weight of its entries (e.g. their estimated size in bytes), least recently used
+ * entries are evicted first. Unlike caches based on soft references, what is retained doesn't depend on GC pressure.
+ *
+ * Operations take one lock, values are computed outside of it. A value computed while some entries were
+ * invalidated isn't stored, as it could be computed from the data the invalidation was about.
+ *
+ * @param weigher weight of an entry, entries heavier than [maxWeight] aren't stored
+ */
+class WeightedLruCache<K : Any, V : Any>(maxWeight: Long, private val weigher: (K, V) -> Long) {
+    data class Stats(val hits: Long,
+                     val misses: Long,
+                     val evictions: Long,
+                     val size: Int,
+                     val weight: Long,
+                     val maxWeight: Long) {
+        val hitRate: Double
+            get() = if (hits + misses == 0L) 0.0 else hits.toDouble() / (hits + misses)
+    }
+
+    private class Entry<out V>(val value: V, val weight: Long)
+
+    private val lock = Any()
+
+    private val entries = LinkedHashMap<K, Entry<V>>(16, 0.75f, true)
+
+    private var weight = 0L
+
+    private var hits = 0L
+    private var misses = 0L
+    private var evictions = 0L
+
+    /**
+     * Incremented on every invalidation, values computed across it aren't stored
+     */
+    private var invalidationsCount = 0L
+
+    var maxWeight: Long = maxWeight
+        get() = synchronized(lock) { field }
+        set(value) = synchronized(lock) {
+            field = value
+            evictExcess()
+        }
+
+    val stats: Stats
+        get() = synchronized(lock) { Stats(hits, misses, evictions, entries.size, weight, maxWeight) }
+
+    fun getOrPut(key: K, compute: () -> V): V {
+        val invalidationsCountBefore = synchronized(lock) {
+            entries[key]?.let {
+                hits++
+                return it.value
+            }
+            misses++
+            invalidationsCount
+        }
+        val value = compute()
+        val entry = Entry(value, weigher(key, value))
+        synchronized(lock) {
+            if (invalidationsCount == invalidationsCountBefore) {
+                put(key, entry)
+            }
+        }
+        return value
+    }
+
+    fun removeIf(predicate: (K) -> Boolean) = synchronized(lock) {
+        invalidationsCount++
+        val iterator = entries.entries.iterator()
+        while (iterator.hasNext()) {
+            val entry = iterator.next()
+            if (predicate(entry.key)) {
+                weight -= entry.value.weight
+                iterator.remove()
+            }
+        }
+    }
+
+    fun clear() = synchronized(lock) {
+        invalidationsCount++
+        entries.clear()
+        weight = 0
+    }
+
+    private fun put(key: K, entry: Entry<V>) {
+        if (entry.weight > maxWeight) {
+            return
+        }
+        entries.put(key, entry)?.let { weight -= it.weight }
+        weight += entry.weight
+        evictExcess()
+    }
+
+    private fun evictExcess() {
+        val iterator = entries.values.iterator()
+        while (weight > maxWeight && iterator.hasNext()) {
+            weight -= iterator.next().weight
+            iterator.remove()
+            evictions++
+        }
+    }
+}
@@ -4,7 +4,9 @@ import com.intellij.openapi.options.ConfigurableUi
 import com.intellij.openapi.ui.VerticalFlowLayout
 import com.intellij.ui.BooleanTableCellEditor
 import com.intellij.ui.BooleanTableCellRenderer
+import com.intellij.ui.JBIntSpinner
 import com.intellij.ui.ToolbarDecorator
+import com.intellij.ui.components.JBLabel
 import com.intellij.ui.components.JBPanel
 import com.intellij.ui.table.TableView
 import com.intellij.util.text.VersionComparatorUtil
@@ -13,11 +15,15 @@ import com.intellij.util.ui.ColumnInfo
 import com.intellij.util.ui.JBUI
 import com.intellij.util.ui.ListTableModel
 import org.jetbrains.exposed.sql.and
-import org.jetbrains.exposed.sql.deleteWhere
+import org.jetbrains.plugins.ruby.ruby.codeInsight.types.registeredCallInfosCacheStats
+import org.jetbrains.plugins.ruby.ruby.codeInsight.types.resetAllRubyTypeProviderAndIDEACaches
+import org.jetbrains.plugins.ruby.ruby.codeInsight.types.setCallInfoIndexEnabled
+import org.jetbrains.plugins.ruby.ruby.codeInsight.types.setRegisteredCallInfosCacheSize
 import org.jetbrains.ruby.codeInsight.types.signature.GemInfo
 import org.jetbrains.ruby.codeInsight.types.storage.server.DatabaseProvider
 import org.jetbrains.ruby.codeInsight.types.storage.server.impl.GemInfoTable
 import org.jetbrains.ruby.codeInsight.types.storage.server.impl.RSignatureProviderImpl
+import java.awt.FlowLayout
 import java.util.*
 import javax.swing.JComponent
 import javax.swing.JTable
@@ -34,6 +40,11 @@ class RubyTypeContractsConfigurableUI(settings: RubyTypeContractsSettings) : Con
 
     private var typeTrackerEnabled = settings.typeTrackerEnabled
     private var stateTrackerEnabled = settings.stateTrackerEnabled
+    private var preloadCallInfos = settings.preloadCallInfos
+
+    private val callInfosCacheSizeSpinner = JBIntSpinner(settings.callInfosCacheSizeMb, 1, MAX_CALL_INFOS_CACHE_SIZE_MB)
+
+    private val callInfosCacheStatsLabel = JBLabel()
 
     private val tableModel = ListTableModel<GemInfo>(
             object : ColumnInfo<GemInfo, String>("Gem Name") {
@@ -93,6 +104,8 @@ class RubyTypeContractsConfigurableUI(settings: RubyTypeContractsSettings) : Con
         perGemSettingsMap.putAll(settings.perGemSettingsMap)
         typeTrackerEnabled = settings.typeTrackerEnabled
         stateTrackerEnabled = settings.stateTrackerEnabled
+        preloadCallInfos = settings.preloadCallInfos
+        callInfosCacheSizeSpinner.number = settings.callInfosCacheSizeMb
         toBeRemovedGems.clear()
         refill()
     }
@@ -101,10 +114,14 @@ class RubyTypeContractsConfigurableUI(settings: RubyTypeContractsSettings) : Con
         return perGemSettingsMap != settings.perGemSettingsMap || toBeRemovedGems.isNotEmpty()
                 || settings.stateTrackerEnabled != stateTrackerEnabled
                 || settings.typeTrackerEnabled != typeTrackerEnabled
+                || settings.preloadCallInfos != preloadCallInfos
+                || settings.callInfosCacheSizeMb != callInfosCacheSizeSpinner.number
     }
 
     override fun apply(settings: RubyTypeContractsSettings) {
-        if (toBeRemovedGems.isNotEmpty()) {
+        val gemsRemoved = toBeRemovedGems.isNotEmpty()
+        val preloadCallInfosChanged = settings.preloadCallInfos != preloadCallInfos
+        if (gemsRemoved) {
             DatabaseProvider.defaultDatabaseTransaction {
                 toBeRemovedGems.forEach {
                     GemInfoTable.deleteWhere { GemInfoTable.name eq it.name and (GemInfoTable.version eq it.version) }
@@ -115,7 +132,17 @@ class RubyTypeContractsConfigurableUI(settings: RubyTypeContractsSettings) : Con
         }
         settings.stateTrackerEnabled = stateTrackerEnabled
         settings.typeTrackerEnabled = typeTrackerEnabled
+        settings.preloadCallInfos = preloadCallInfos
+        settings.callInfosCacheSizeMb = callInfosCacheSizeSpinner.number
+        setRegisteredCallInfosCacheSize(settings.callInfosCacheSizeMb)
         settings.perGemSettingsMap = HashMap(perGemSettingsMap)
+        if (gemsRemoved) {
+            // also reloads the call info index if it's enabled
+            resetAllRubyTypeProviderAndIDEACaches(null)
+        }
+        if (preloadCallInfosChanged) {
+            setCallInfoIndexEnabled(preloadCallInfos)
+        }
         refill()
     }
 
@@ -136,14 +163,27 @@ class RubyTypeContractsConfigurableUI(settings: RubyTypeContractsSettings) : Con
                 .disableUpDownActions().createPanel())
         panel.add(CheckBox("Use state tracker results for completion", this, "stateTrackerEnabled"))
         panel.add(CheckBox("Use type tracker results for completion", this, "typeTrackerEnabled"))
+        panel.add(CheckBox("Preload collected call infos into memory", this, "preloadCallInfos"))
+        panel.add(JBPanel<JBPanel<*>>(FlowLayout(FlowLayout.LEFT, 0, 0)).apply {
+            add(JBLabel("Call infos cache size (MB): "))
+            add(callInfosCacheSizeSpinner)
+        })
+        panel.add(callInfosCacheStatsLabel)
         return panel
     }
 
     private fun refill() {
         tableModel.items = registeredGems.map { GemInfoBean(it.name, it.version) }
+        val stats = registeredCallInfosCacheStats
+        callInfosCacheStatsLabel.text = String.format("Hit rate: %.1f%%, evictions: %d, used: %.1f of %d MB (%d methods)",
+                stats.hitRate * 100, stats.evictions, stats.weight / MEGABYTE, stats.maxWeight / MEGABYTE.toLong(), stats.size)
     }
 
     companion object {
         private val LOCAL_SOURCE_GEM_NAME = "LOCAL"
+
+        private const val MAX_CALL_INFOS_CACHE_SIZE_MB = 4096
+
+        private const val MEGABYTE = 1024.0 * 1024.0
     }
 }
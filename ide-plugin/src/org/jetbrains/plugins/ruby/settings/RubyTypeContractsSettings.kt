@@ -6,6 +6,7 @@ import com.intellij.openapi.components.Storage
 import com.intellij.util.xmlb.XmlSerializerUtil
 import com.intellij.util.xmlb.annotations.Attribute
 import com.intellij.util.xmlb.annotations.MapAnnotation
+import org.jetbrains.plugins.ruby.ruby.codeInsight.types.DEFAULT_CALL_INFOS_CACHE_SIZE_MB
 import org.jetbrains.ruby.codeInsight.types.signature.GemInfo
 
 @State(
@@ -20,7 +21,11 @@ data class RubyTypeContractsSettings @JvmOverloads constructor(
         @Attribute("typeTrackerEnabled")
         var typeTrackerEnabled: Boolean = true,
         @Attribute("stateTrackerEnabled")
-        var stateTrackerEnabled: Boolean = true)
+        var stateTrackerEnabled: Boolean = true,
+        @Attribute("preloadCallInfos")
+        var preloadCallInfos: Boolean = false,
+        @Attribute("callInfosCacheSizeMb")
+        var callInfosCacheSizeMb: Int = DEFAULT_CALL_INFOS_CACHE_SIZE_MB)
 
     : PersistentStateComponent<RubyTypeContractsSettings> {
     override fun loadState(state: RubyTypeContractsSettings) {
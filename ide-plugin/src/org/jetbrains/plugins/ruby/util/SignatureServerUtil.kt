@@ -2,6 +2,7 @@ package org.jetbrains.plugins.ruby.util
 
 import com.intellij.openapi.project.Project
 import org.jetbrains.plugins.ruby.ruby.codeInsight.types.resetAllRubyTypeProviderAndIDEACaches
+import org.jetbrains.plugins.ruby.ruby.codeInsight.types.updatePreloadedCallInfos
 import org.jetbrains.ruby.runtime.signature.server.SignatureServer
 
 /**
@@ -11,8 +12,22 @@ import org.jetbrains.ruby.runtime.signature.server.SignatureServer
  * @return pipe filename path which should be passed to arg-scanner.
  */
 fun SignatureServer.runServerAsyncInIDEACompatibleMode(project: Project): String {
-    this.afterFlushListener = {
-        resetAllRubyTypeProviderAndIDEACaches(project)
+    this.afterFlushListener = { flushed ->
+        updatePreloadedCallInfos()
+        resetAllRubyTypeProviderAndIDEACaches(project, flushedCallInfos = flushed)
     }
     return this.runServerAsync(isDaemon = true)
 }
+
+/**
+ * Same as [runServerAsyncInIDEACompatibleMode] but server accepts many arg-scanner connections at once
+ *
+ * @return port which should be passed to arg-scanner via `--server-port`
+ */
+fun SignatureServer.runSocketServerAsyncInIDEACompatibleMode(project: Project): Int {
+    this.afterFlushListener = { flushed ->
+        updatePreloadedCallInfos()
+        resetAllRubyTypeProviderAndIDEACaches(project, flushedCallInfos = flushed)
+    }
+    return this.runSocketServerAsync(isDaemon = true)
+}
@@ -0,0 +1,92 @@
+package org.jetbrains.ruby.codeInsight.types.signature
+
+/**
+ * Call infos of a method compiled for matching by argument types of call sites.
+ *
+ * Call infos are grouped by number of unnamed and named arguments, then put into a trie by unnamed argument
+ * types followed by named argument types. [ArgumentNameAndType.IMPLICITLY_PASSED_ARGUMENT_TYPE] is stored as
+ * a wildcard edge, so matching follows at most one exact edge and the wildcard one per argument, unless the type
+ * of the argument at the call site is unknown.
+ *
+ * Named arguments are compared by position, as they were before, names are ignored
+ */
+class CallInfoMatcher(callInfos: List<CallInfo>) {
+    private class Node {
+        var children: MutableMap<String, Node>? = null
+
+        var wildcard: Node? = null
+
+        /**
+         * Indices of call infos ending at this node
+         */
+        var callInfoIndices: MutableList<Int>? = null
+
+        fun child(type: String): Node {
+            if (type == ArgumentNameAndType.IMPLICITLY_PASSED_ARGUMENT_TYPE) {
+                return wildcard ?: Node().also { wildcard = it }
+            }
+            val children = children ?: HashMap<String, Node>(2).also { children = it }
+            return children.getOrPut(type) { Node() }
+        }
+    }
+
+    /**
+     * Return types of all call infos in the original order
+     */
+    val returnTypes: List<String> = callInfos.map { it.returnType }
+
+    /**
+     * Number of unnamed arguments to number of named arguments to root
+     */
+    private val roots = HashMap<Int, MutableMap<Int, Node>>()
+
+    init {
+        callInfos.forEachIndexed { index, callInfo ->
+            var node = roots.getOrPut(callInfo.unnamedArguments.size) { HashMap(2) }
+                    .getOrPut(callInfo.namedArguments.size) { Node() }
+            callInfo.unnamedArguments.forEach { node = node.child(it.type) }
+            callInfo.namedArguments.forEach { node = node.child(it.type) }
+            val indices = node.callInfoIndices ?: ArrayList<Int>(1).also { node.callInfoIndices = it }
+            indices.add(index)
+        }
+    }
+
+    /**
+     * Call info matches if it has the same numbers of arguments and types of all its arguments match. Type matches
+     * if it is equal to the actual one, the actual one is unknown (`null`) or either of them is
+     * [ArgumentNameAndType.IMPLICITLY_PASSED_ARGUMENT_TYPE] (the actual one only for named arguments)
+     *
+     * @return return types of matching call infos in the original order
+     */
+    fun findMatchingReturnTypes(unnamedArgsTypes: List<String?>, namedArgsTypes: List<ArgumentNameAndType?>): List<String> {
+        val root = roots[unnamedArgsTypes.size]?.get(namedArgsTypes.size) ?: return emptyList()
+        val indices = ArrayList<Int>()
+        collect(root, 0, unnamedArgsTypes, namedArgsTypes, indices)
+        if (indices.size > 1) {
+            indices.sort()
+        }
+        return indices.map { returnTypes[it] }
+    }
+
+    private fun collect(node: Node, depth: Int, unnamedArgsTypes: List<String?>, namedArgsTypes: List<ArgumentNameAndType?>,
+                        indices: MutableList<Int>) {
+        if (depth == unnamedArgsTypes.size + namedArgsTypes.size) {
+            node.callInfoIndices?.let { indices.addAll(it) }
+            return
+        }
+        node.wildcard?.let { collect(it, depth + 1, unnamedArgsTypes, namedArgsTypes, indices) }
+        val children = node.children ?: return
+
+        val type = if (depth < unnamedArgsTypes.size) {
+            unnamedArgsTypes[depth]
+        } else {
+            namedArgsTypes[depth - unnamedArgsTypes.size]?.type
+                    ?.takeIf { it != ArgumentNameAndType.IMPLICITLY_PASSED_ARGUMENT_TYPE }
+        }
+        if (type == null) {
+            children.values.forEach { collect(it, depth + 1, unnamedArgsTypes, namedArgsTypes, indices) }
+        } else {
+            children[type]?.let { collect(it, depth + 1, unnamedArgsTypes, namedArgsTypes, indices) }
+        }
+    }
+}
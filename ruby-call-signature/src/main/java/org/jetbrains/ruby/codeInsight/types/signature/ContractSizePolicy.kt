@@ -0,0 +1,111 @@
+package org.jetbrains.ruby.codeInsight.types.signature
+
+import org.jetbrains.ruby.codeInsight.types.signature.contractTransition.ContractTransition
+import org.jetbrains.ruby.codeInsight.types.signature.contractTransition.TypedContractTransition
+
+/**
+ * Bounds the size of [RSignatureContract]s built from tuples (see [RSignatureContract.addRTuple]).
+ *
+ * When a position (an argument or the return type) already reads [maxTypesPerPosition] types, a new type is
+ * widened to its closest ancestor already read at the position, or to the common ancestor of all of them,
+ * as told by [typeHierarchy]. If there is no such ancestor, the type is collapsed to [ANY_TYPE].
+ * So a position reads at most `maxTypesPerPosition + 2` types.
+ *
+ * When a tuple needs a new node on a level which already has [maxNodesPerLevel] nodes (after minimization),
+ * it follows the [ANY_TYPE] transition if there is one, otherwise the tuple is dropped.
+ *
+ * Every widening and dropped tuple is reported to [listener].
+ *
+ * Neither the IDE nor the signature server install a policy, contracts they build stay unbounded. It is meant for
+ * embedders which build contracts from long-running collection, they set [default] or call
+ * [RSignatureContract.setSizePolicy] with their own [TypeHierarchy].
+ */
+class ContractSizePolicy @JvmOverloads constructor(val maxTypesPerPosition: Int = Int.MAX_VALUE,
+                                                   val maxNodesPerLevel: Int = Int.MAX_VALUE,
+                                                   private val typeHierarchy: TypeHierarchy? = null,
+                                                   private val listener: Listener? = null) {
+    companion object {
+        /**
+         * Type read by the transition which matches any type, see [SignatureContract.Companion.accept]
+         */
+        const val ANY_TYPE = "*"
+
+        @JvmField
+        val ANY_TRANSITION: ContractTransition = TypedContractTransition(ANY_TYPE)
+
+        @JvmField
+        val UNBOUNDED = ContractSizePolicy()
+
+        /**
+         * Policy of new [RSignatureContract]s
+         */
+        @JvmStatic
+        @Volatile
+        var default: ContractSizePolicy = UNBOUNDED
+    }
+
+    init {
+        require(maxTypesPerPosition > 0 && maxNodesPerLevel > 0) { "Caps must be positive" }
+    }
+
+    interface TypeHierarchy {
+        /**
+         * @return name of the superclass of [type] or `null` if it is unknown or [type] is the root
+         */
+        fun getSuperclass(type: String): String?
+    }
+
+    interface Listener {
+        /**
+         * @param position index of the argument or number of arguments for the return type
+         */
+        fun typeWidened(methodInfo: MethodInfo, position: Int, type: String, widenedType: String)
+
+        fun tupleDropped(tuple: RTuple)
+    }
+
+    val isUnbounded: Boolean
+        get() = maxTypesPerPosition == Int.MAX_VALUE && maxNodesPerLevel == Int.MAX_VALUE
+
+    /**
+     * @param knownTypes types already read at the [position]
+     * @return [type] itself if the cap isn't reached yet, otherwise the type to read instead
+     */
+    fun widen(methodInfo: MethodInfo, position: Int, type: String, knownTypes: Set<String>): String {
+        if (knownTypes.size < maxTypesPerPosition || type in knownTypes) {
+            return type
+        }
+        val widened = typeHierarchy?.let { findAncestor(it, type, knownTypes) } ?: ANY_TYPE
+        reportWidening(methodInfo, position, type, widened)
+        return widened
+    }
+
+    fun reportWidening(methodInfo: MethodInfo, position: Int, type: String, widenedType: String) {
+        listener?.typeWidened(methodInfo, position, type, widenedType)
+    }
+
+    fun reportDropped(tuple: RTuple) {
+        listener?.tupleDropped(tuple)
+    }
+
+    private fun findAncestor(hierarchy: TypeHierarchy, type: String, knownTypes: Set<String>): String? {
+        val ancestors = getAncestors(hierarchy, type)
+        ancestors.firstOrNull { it in knownTypes }?.let { return it }
+
+        val knownAncestors = knownTypes.filter { it != ANY_TYPE }.map { getAncestors(hierarchy, it).toSet() + it }
+        return ancestors.firstOrNull { ancestor -> knownAncestors.all { ancestor in it } }
+    }
+
+    /**
+     * @return superclasses of [type] from the closest one
+     */
+    private fun getAncestors(hierarchy: TypeHierarchy, type: String): List<String> {
+        val result = LinkedHashSet<String>()
+        var current = hierarchy.getSuperclass(type)
+        // the hierarchy may be inconsistent, so cycles are cut
+        while (current != null && current != type && result.add(current)) {
+            current = hierarchy.getSuperclass(current)
+        }
+        return result.toList()
+    }
+}
@@ -0,0 +1,187 @@
+package org.jetbrains.ruby.codeInsight.types.signature
+
+import org.jetbrains.ruby.codeInsight.types.signature.contractTransition.ContractTransition
+import org.jetbrains.ruby.codeInsight.types.signature.contractTransition.ReferenceContractTransition
+import org.jetbrains.ruby.codeInsight.types.signature.contractTransition.TypedContractTransition
+import org.jetbrains.ruby.codeInsight.types.signature.serialization.ByteBufferInputStream
+import org.jetbrains.ruby.codeInsight.types.signature.serialization.SignatureContract
+import org.jetbrains.ruby.codeInsight.types.signature.serialization.SignatureContractHeader
+import org.jetbrains.ruby.codeInsight.types.signature.serialization.TYPE_NAMES_SECTION_MARKER
+import java.io.DataInputStream
+import java.nio.ByteBuffer
+
+/**
+ * Immutable [SignatureContract] which walks the serialized form of the contract (see
+ * [org.jetbrains.ruby.codeInsight.types.signature.serialization.serialize]) kept in a [ByteBuffer], e.g. a slice of
+ * a memory-mapped file or the bytes of a BLOB. The bytes are not copied and nothing is parsed until the contract
+ * is queried: the first query scans the buffer once to find offsets of nodes and to intern type names.
+ * [SignatureNode]s and [ContractTransition]s are created on access, as in [PackedSignatureContract].
+ *
+ * Use [toRSignatureContract] to get a mutable copy.
+ */
+class MappedSignatureContract private constructor(private val buffer: ByteBuffer) : SignatureContract {
+    companion object {
+        /**
+         * Target node index, reference flag and mask or index of type name
+         */
+        private const val EDGE_SIZE = 4 + 1 + 4
+
+        /**
+         * Only contracts written with type names section can be mapped, their edges have fixed size
+         */
+        @JvmStatic
+        fun isMappable(buffer: ByteBuffer): Boolean =
+                buffer.remaining() >= 4 && buffer.getInt(buffer.position()) == TYPE_NAMES_SECTION_MARKER
+
+        /**
+         * Maps the contract starting at the position of [buffer]. The position isn't changed.
+         * The bytes are shared, so they must not change while the contract is used
+         */
+        @JvmStatic
+        fun wrap(buffer: ByteBuffer): MappedSignatureContract {
+            require(isMappable(buffer)) { "Contract without type names section can't be mapped" }
+            val slice = buffer.slice()
+            slice.limit(serializedLength(slice, nodesCountOffset(slice)))
+            return MappedSignatureContract(slice.asReadOnlyBuffer())
+        }
+
+        /**
+         * @return offset of nodes count, i.e. size of the header
+         */
+        private fun nodesCountOffset(buffer: ByteBuffer): Int {
+            var offset = 4
+            repeat(buffer.getInt(offset).also { offset += 4 }) {
+                offset += 2 + utfLength(buffer, offset)
+            }
+            repeat(buffer.getInt(offset).also { offset += 4 }) {
+                // name and modifier
+                offset += 2 + utfLength(buffer, offset) + 1
+            }
+            return offset
+        }
+
+        private fun utfLength(buffer: ByteBuffer, offset: Int) = buffer.getShort(offset).toInt() and 0xFFFF
+
+        private fun serializedLength(buffer: ByteBuffer, nodesCountOffset: Int): Int {
+            var offset = nodesCountOffset + 4
+            repeat(buffer.getInt(nodesCountOffset)) {
+                offset += 4 + buffer.getInt(offset) * EDGE_SIZE
+            }
+            return offset
+        }
+    }
+
+    private class Index(val argsInfo: List<ParameterInfo>, val typeIds: IntArray, val nodeOffsets: IntArray)
+
+    private val index: Index by lazy {
+        val data = buffer.duplicate()
+        val header = SignatureContractHeader(DataInputStream(ByteBufferInputStream(data)))
+        val typeIds = header.typeNames!!.let { names -> IntArray(names.size) { TypeNameDictionary.SHARED.getOrCreateId(names[it]) } }
+        var offset = data.position()
+        val nodeOffsets = IntArray(buffer.getInt(offset).also { offset += 4 })
+        for (i in nodeOffsets.indices) {
+            nodeOffsets[i] = offset
+            offset += 4 + buffer.getInt(offset) * EDGE_SIZE
+        }
+        Index(header.argsInfo, typeIds, nodeOffsets)
+    }
+
+    /**
+     * Size of the serialized contract in bytes
+     */
+    val serializedLength: Int
+        get() = buffer.limit()
+
+    override val argsInfo: List<ParameterInfo>
+        get() = index.argsInfo
+
+    override val nodeCount: Int
+        get() = index.nodeOffsets.size
+
+    override val startNode: SignatureNode
+        get() = Node(0)
+
+    /**
+     * The contract never changes, so the query is built once
+     */
+    val returnTypeQuery: ReturnTypeQuery by lazy { ReturnTypeQuery(this) }
+
+    /**
+     * @return mutable copy of the contract
+     */
+    fun toRSignatureContract(): RSignatureContract =
+            SignatureContract(DataInputStream(ByteBufferInputStream(buffer.duplicate()))) as RSignatureContract
+
+    private fun edgesCount(node: Int): Int = buffer.getInt(index.nodeOffsets[node])
+
+    private fun edgeOffset(node: Int, edge: Int): Int = index.nodeOffsets[node] + 4 + edge * EDGE_SIZE
+
+    private fun isReference(edgeOffset: Int): Boolean = buffer.get(edgeOffset + 4).toInt() != 0
+
+    /**
+     * @return offset of the edge of [node] labeled with [transition] or -1
+     */
+    private fun findEdge(node: Int, transition: Any?): Int {
+        val typeIds = index.typeIds
+        for (edge in 0 until edgesCount(node)) {
+            val offset = edgeOffset(node, edge)
+            val value = buffer.getInt(offset + 5)
+            val matches = when (transition) {
+                is TypedContractTransition -> !isReference(offset) && typeIds[value] == transition.typeId
+                is ReferenceContractTransition -> isReference(offset) && value == transition.mask
+                else -> return -1
+            }
+            if (matches) {
+                return offset
+            }
+        }
+        return -1
+    }
+
+    private fun decodeTransition(edgeOffset: Int): ContractTransition {
+        val value = buffer.getInt(edgeOffset + 5)
+        return if (isReference(edgeOffset)) ReferenceContractTransition(value)
+        else TypedContractTransition(TypeNameDictionary.SHARED.getName(index.typeIds[value]))
+    }
+
+    private fun target(edgeOffset: Int): SignatureNode = Node(buffer.getInt(edgeOffset))
+
+    private inner class Node(private val index: Int) : SignatureNode {
+        override val transitions: Map<ContractTransition, SignatureNode>
+            get() = Transitions(index)
+
+        override fun equals(other: Any?): Boolean =
+                other is Node && other.index == index && other.contract === this@MappedSignatureContract
+
+        override fun hashCode(): Int = index
+
+        private val contract: MappedSignatureContract
+            get() = this@MappedSignatureContract
+    }
+
+    private inner class Transitions(private val node: Int) : AbstractMap<ContractTransition, SignatureNode>() {
+        override val size: Int
+            get() = edgesCount(node)
+
+        override fun isEmpty(): Boolean = size == 0
+
+        override fun containsKey(key: ContractTransition): Boolean = findEdge(node, key) >= 0
+
+        override fun get(key: ContractTransition): SignatureNode? =
+                findEdge(node, key).let { if (it >= 0) target(it) else null }
+
+        override val entries: Set<Map.Entry<ContractTransition, SignatureNode>>
+            get() = object : AbstractSet<Map.Entry<ContractTransition, SignatureNode>>() {
+                override val size: Int
+                    get() = this@Transitions.size
+
+                override fun iterator(): Iterator<Map.Entry<ContractTransition, SignatureNode>> {
+                    return (0 until size).asSequence().map {
+                        val offset = edgeOffset(node, it)
+                        java.util.AbstractMap.SimpleImmutableEntry<ContractTransition, SignatureNode>(
+                                decodeTransition(offset), target(offset))
+                    }.iterator()
+                }
+            }
+    }
+}
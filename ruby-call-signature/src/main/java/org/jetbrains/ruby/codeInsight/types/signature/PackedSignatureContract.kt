@@ -0,0 +1,212 @@
+package org.jetbrains.ruby.codeInsight.types.signature
+
+import org.jetbrains.ruby.codeInsight.types.signature.contractTransition.ContractTransition
+import org.jetbrains.ruby.codeInsight.types.signature.contractTransition.ReferenceContractTransition
+import org.jetbrains.ruby.codeInsight.types.signature.contractTransition.TypedContractTransition
+import org.jetbrains.ruby.codeInsight.types.signature.serialization.SignatureContractHeader
+import java.io.DataInput
+import java.util.Arrays
+
+/**
+ * Immutable [SignatureContract] which keeps its automaton in a few int arrays instead of node objects with
+ * own hash maps. Outgoing edges of node `i` are stored at indices `edgesStart[i] until edgesStart[i + 1]`
+ * of [edgeTransitions] and [edgeTargets], sorted by transition code. Transition code is
+ * `typeNameId shl 1` for [TypedContractTransition] (see [TypeNameDictionary]) and `mask shl 1 or 1`
+ * for [ReferenceContractTransition]. Node 0 is the start node.
+ *
+ * [SignatureNode]s and [ContractTransition]s are created on access, so the contract is cheap to keep
+ * and slightly more expensive to traverse than [RSignatureContract]. Use [RSignatureContract.mergeMutably]
+ * to get a mutable copy.
+ */
+class PackedSignatureContract private constructor(override val argsInfo: List<ParameterInfo>,
+                                                  private val edgesStart: IntArray,
+                                                  private val edgeTransitions: IntArray,
+                                                  private val edgeTargets: IntArray,
+                                                  private val dictionary: TypeNameDictionary) : SignatureContract {
+    companion object {
+        private const val MAX_ENCODABLE_VALUE = Int.MAX_VALUE ushr 1
+
+        /**
+         * Packs any [SignatureContract], e.g. [RSignatureContract] after all tuples are added
+         */
+        @JvmStatic
+        @JvmOverloads
+        fun pack(contract: SignatureContract, dictionary: TypeNameDictionary = TypeNameDictionary.SHARED): PackedSignatureContract {
+            val indices = HashMap<SignatureNode, Int>()
+            val nodes = ArrayList<SignatureNode>()
+            indices[contract.startNode] = 0
+            nodes.add(contract.startNode)
+
+            val builder = Builder(dictionary)
+            var i = 0
+            while (i < nodes.size) {
+                for ((transition, target) in nodes[i++].transitions) {
+                    val targetIndex = indices.getOrPut(target) { nodes.add(target); nodes.size - 1 }
+                    builder.addEdge(transition, targetIndex)
+                }
+                builder.endNode()
+            }
+            return builder.build(contract.argsInfo)
+        }
+
+        /**
+         * Reads contract written by [org.jetbrains.ruby.codeInsight.types.signature.serialization.serialize]
+         * without creating intermediate [RSignatureContractNode]s
+         */
+        @JvmStatic
+        @JvmOverloads
+        fun read(stream: DataInput, dictionary: TypeNameDictionary = TypeNameDictionary.SHARED): PackedSignatureContract {
+            val header = SignatureContractHeader(stream)
+            val typeIds = header.typeNames?.let { names -> IntArray(names.size) { dictionary.getOrCreateId(names[it]) } }
+            val builder = Builder(dictionary)
+            repeat(stream.readInt()) {
+                repeat(stream.readInt()) {
+                    val targetIndex = stream.readInt()
+                    val isReference = stream.readBoolean()
+                    when {
+                        isReference -> builder.addReferenceEdge(stream.readInt(), targetIndex)
+                        typeIds != null -> builder.addTypedEdgeById(typeIds[stream.readInt()], targetIndex)
+                        else -> builder.addTypedEdge(stream.readUTF(), targetIndex)
+                    }
+                }
+                builder.endNode()
+            }
+            return builder.build(header.argsInfo)
+        }
+    }
+
+    override val nodeCount: Int
+        get() = edgesStart.size - 1
+
+    override val startNode: SignatureNode
+        get() = Node(0)
+
+    /**
+     * The contract never changes, so the query is built once
+     */
+    val returnTypeQuery: ReturnTypeQuery by lazy { ReturnTypeQuery(this) }
+
+    /**
+     * Approximate heap size of edge arrays in bytes
+     */
+    val packedSize: Int
+        get() = (edgesStart.size + edgeTransitions.size + edgeTargets.size) * 4
+
+    /**
+     * @return index of the edge of [node] labeled with [transition] or -1
+     */
+    private fun findEdge(node: Int, transition: Any?): Int {
+        val code = when (transition) {
+            is TypedContractTransition -> {
+                val id = if (dictionary === TypeNameDictionary.SHARED) transition.typeId else dictionary.getId(transition.type)
+                if (id < 0) return -1 else id shl 1
+            }
+            is ReferenceContractTransition -> transition.mask.let {
+                if (it < 0 || it > MAX_ENCODABLE_VALUE) return -1 else it shl 1 or 1
+            }
+            else -> return -1
+        }
+        val index = Arrays.binarySearch(edgeTransitions, edgesStart[node], edgesStart[node + 1], code)
+        return if (index >= 0) index else -1
+    }
+
+    private fun decodeTransition(code: Int): ContractTransition {
+        return if (code and 1 == 1) ReferenceContractTransition(code ushr 1)
+        else TypedContractTransition(dictionary.getName(code ushr 1))
+    }
+
+    private inner class Node(private val index: Int) : SignatureNode {
+        override val transitions: Map<ContractTransition, SignatureNode>
+            get() = Transitions(index)
+
+        override fun equals(other: Any?): Boolean =
+                other is Node && other.index == index && other.contract === this@PackedSignatureContract
+
+        override fun hashCode(): Int = index
+
+        private val contract: PackedSignatureContract
+            get() = this@PackedSignatureContract
+    }
+
+    private inner class Transitions(private val node: Int) : AbstractMap<ContractTransition, SignatureNode>() {
+        override val size: Int
+            get() = edgesStart[node + 1] - edgesStart[node]
+
+        override fun isEmpty(): Boolean = size == 0
+
+        override fun containsKey(key: ContractTransition): Boolean = findEdge(node, key) >= 0
+
+        override fun get(key: ContractTransition): SignatureNode? =
+                findEdge(node, key).let { if (it >= 0) Node(edgeTargets[it]) else null }
+
+        override val entries: Set<Map.Entry<ContractTransition, SignatureNode>>
+            get() = object : AbstractSet<Map.Entry<ContractTransition, SignatureNode>>() {
+                override val size: Int
+                    get() = this@Transitions.size
+
+                override fun iterator(): Iterator<Map.Entry<ContractTransition, SignatureNode>> {
+                    return (edgesStart[node] until edgesStart[node + 1]).asSequence().map {
+                        java.util.AbstractMap.SimpleImmutableEntry<ContractTransition, SignatureNode>(
+                                decodeTransition(edgeTransitions[it]), Node(edgeTargets[it]))
+                    }.iterator()
+                }
+            }
+    }
+
+    /**
+     * Collects edges node by node. Edges of each node are sorted in [endNode]
+     */
+    private class Builder(private val dictionary: TypeNameDictionary) {
+        private val edgesStart = ArrayList<Int>().apply { add(0) }
+        // transition code in high bits, target index in low bits, so sorting orders edges by code
+        private var edges = LongArray(16)
+        private var edgesCount = 0
+
+        fun addEdge(transition: ContractTransition, targetIndex: Int) {
+            when (transition) {
+                is TypedContractTransition -> if (dictionary === TypeNameDictionary.SHARED) {
+                    addTypedEdgeById(transition.typeId, targetIndex)
+                } else {
+                    addTypedEdge(transition.type, targetIndex)
+                }
+                is ReferenceContractTransition -> addReferenceEdge(transition.mask, targetIndex)
+                else -> throw IllegalStateException("ContractTransition should be sealed in these classes")
+            }
+        }
+
+        fun addTypedEdge(type: String, targetIndex: Int) {
+            addTypedEdgeById(dictionary.getOrCreateId(type), targetIndex)
+        }
+
+        /**
+         * @param typeId id in [dictionary]
+         */
+        fun addTypedEdgeById(typeId: Int, targetIndex: Int) {
+            addEdge(typeId, 0, targetIndex)
+        }
+
+        fun addReferenceEdge(mask: Int, targetIndex: Int) {
+            addEdge(mask, 1, targetIndex)
+        }
+
+        private fun addEdge(value: Int, tag: Int, targetIndex: Int) {
+            require(value in 0..MAX_ENCODABLE_VALUE) { "Transition can't be packed: $value" }
+            if (edgesCount == edges.size) {
+                edges = edges.copyOf(edgesCount * 2)
+            }
+            edges[edgesCount++] = (value.toLong() shl 1 or tag.toLong()) shl 32 or targetIndex.toLong()
+        }
+
+        fun endNode() {
+            Arrays.sort(edges, edgesStart.last(), edgesCount)
+            edgesStart.add(edgesCount)
+        }
+
+        fun build(argsInfo: List<ParameterInfo>): PackedSignatureContract {
+            return PackedSignatureContract(argsInfo, edgesStart.toIntArray(),
+                    IntArray(edgesCount) { (edges[it] ushr 32).toInt() },
+                    IntArray(edgesCount) { edges[it].toInt() },
+                    dictionary)
+        }
+    }
+}
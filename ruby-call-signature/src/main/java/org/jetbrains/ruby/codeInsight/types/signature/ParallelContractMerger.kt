@@ -0,0 +1,100 @@
+package org.jetbrains.ruby.codeInsight.types.signature
+
+import java.util.concurrent.ForkJoinPool
+import java.util.concurrent.RecursiveTask
+
+/**
+ * Merges contracts of many methods at once, e.g. when a set of contracts is imported into storage.
+ * Signatures are grouped by method, groups are merged in parallel and contracts of a method with many
+ * signatures are merged by a fork/join tree reduction of [PersistentSignatureContract.merge], which doesn't
+ * change or lock its operands.
+ *
+ * When signatures of a method have different number of arguments, only the trailing run of signatures with the number
+ * of arguments of the last one is merged: in `RSignatureStorage.readPacket` a signature with another number of
+ * arguments replaces everything merged before it.
+ */
+class ParallelContractMerger @JvmOverloads constructor(private val pool: ForkJoinPool = ForkJoinPool.commonPool()) {
+    companion object {
+        /**
+         * Ranges of at most this many methods or contracts are merged sequentially
+         */
+        private const val SEQUENTIAL_THRESHOLD = 8
+    }
+
+    class Statistics(val signaturesCount: Int, val methodsCount: Int, val elapsedNanos: Long) {
+        val mergedMethodsPerSecond: Double
+            get() = if (elapsedNanos == 0L) 0.0 else methodsCount * 1e9 / elapsedNanos
+
+        override fun toString(): String =
+                "$signaturesCount signatures of $methodsCount methods merged in ${elapsedNanos / 1_000_000} ms " +
+                        "(${mergedMethodsPerSecond.toLong()} methods/s)"
+    }
+
+    class Result(val signatures: List<SignatureInfo>, val statistics: Statistics)
+
+    /**
+     * @param signatures signatures in the order they should be merged in, e.g. the stored ones first
+     * @return one signature per method. Contracts of methods with several signatures are minimized
+     */
+    fun merge(signatures: Collection<SignatureInfo>): Result {
+        val start = System.nanoTime()
+        val groups = LinkedHashMap<Pair<ClassInfo, String>, MutableList<SignatureInfo>>()
+        for (signature in signatures) {
+            val methodInfo = signature.methodInfo
+            groups.getOrPut(ClassInfo(methodInfo.classInfo) to methodInfo.name) { ArrayList() }.add(signature)
+        }
+
+        val merged = pool.invoke(MergeMethodsTask(groups.values.toList(), 0, groups.size))
+        return Result(merged, Statistics(signatures.size, groups.size, System.nanoTime() - start))
+    }
+
+    private class MergeMethodsTask(private val groups: List<List<SignatureInfo>>,
+                                   private val from: Int,
+                                   private val to: Int) : RecursiveTask<List<SignatureInfo>>() {
+        override fun compute(): List<SignatureInfo> {
+            if (to - from <= SEQUENTIAL_THRESHOLD) {
+                return (from until to).map { mergeMethod(groups[it]) }
+            }
+            val middle = (from + to) ushr 1
+            val left = MergeMethodsTask(groups, from, middle).fork()
+            val right = MergeMethodsTask(groups, middle, to).compute()
+            return left.join() + right
+        }
+
+        private fun mergeMethod(signatures: List<SignatureInfo>): SignatureInfo {
+            val last = signatures.last()
+            if (signatures.size == 1) {
+                return last
+            }
+            val argsCount = last.contract.argsInfo.size
+            val contracts = signatures.takeLastWhile { it.contract.argsInfo.size == argsCount }.map { it.contract }
+            val contract = if (contracts.size == 1) {
+                last.contract
+            } else {
+                MergeContractsTask(contracts, 0, contracts.size).invoke().toRSignatureContract()
+            }
+            return SignatureInfo(last.methodInfo, contract)
+        }
+    }
+
+    /**
+     * Contracts are expected to have the same number of arguments
+     */
+    private class MergeContractsTask(private val contracts: List<SignatureContract>,
+                                     private val from: Int,
+                                     private val to: Int) : RecursiveTask<PersistentSignatureContract>() {
+        override fun compute(): PersistentSignatureContract {
+            if (to - from <= SEQUENTIAL_THRESHOLD) {
+                var result = PersistentSignatureContract.of(contracts[from])
+                for (i in from + 1 until to) {
+                    result = result.merge(contracts[i])!!
+                }
+                return result
+            }
+            val middle = (from + to) ushr 1
+            val left = MergeContractsTask(contracts, from, middle).fork()
+            val right = MergeContractsTask(contracts, middle, to).compute()
+            return left.join().merge(right)!!
+        }
+    }
+}
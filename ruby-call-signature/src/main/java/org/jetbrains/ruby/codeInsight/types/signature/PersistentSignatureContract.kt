@@ -0,0 +1,161 @@
+package org.jetbrains.ruby.codeInsight.types.signature
+
+import org.jetbrains.ruby.codeInsight.types.signature.contractTransition.ContractTransition
+import org.jetbrains.ruby.codeInsight.types.signature.contractTransition.TransitionHelper
+import java.util.Collections
+
+/**
+ * Immutable [SignatureContract] which is changed by creating new versions: [add] and [merge] copy only
+ * the nodes on the changed paths and share the rest with the previous version. So a contract can be read
+ * by any number of threads while others build the next version, and versions can be published by CAS
+ * (see [RSignatureContractContainer]) instead of locking the contract like [RSignatureContract] does.
+ *
+ * Nodes on the changed paths are not merged with equal ones, so the contract isn't minimal:
+ * use [toRSignatureContract] to get the minimized one, e.g. before storing it.
+ */
+class PersistentSignatureContract private constructor(override val argsInfo: List<ParameterInfo>,
+                                                      override val startNode: SignatureNode) : SignatureContract {
+    companion object {
+        /**
+         * All versions of all persistent contracts share the finish node, so subgraphs of different
+         * contracts can be shared by [merge]
+         */
+        private val FINISH: SignatureNode = Node(emptyMap())
+
+        @JvmStatic
+        fun of(tuple: RTuple): PersistentSignatureContract =
+                PersistentSignatureContract(tuple.argsInfo, insert(null, tuple, 0))
+
+        /**
+         * Copies [contract] unless it is already persistent
+         */
+        @JvmStatic
+        fun of(contract: SignatureContract): PersistentSignatureContract =
+                contract as? PersistentSignatureContract
+                        ?: PersistentSignatureContract(contract.argsInfo, copy(contract.startNode, HashMap()))
+
+        private fun transition(tuple: RTuple, level: Int): ContractTransition {
+            val argsTypes = tuple.argsTypes
+            val type = if (level < argsTypes.size) argsTypes[level] else tuple.returnTypeName
+            return TransitionHelper.calculateTransition(argsTypes, level, type)
+        }
+
+        /**
+         * @return [node] itself if it already accepts the rest of [tuple], otherwise its copy which does
+         */
+        private fun insert(node: SignatureNode?, tuple: RTuple, level: Int): SignatureNode {
+            if (level == tuple.argsTypes.size + 1) {
+                return FINISH
+            }
+            val transition = transition(tuple, level)
+            val child = node?.transitions?.get(transition)
+            val newChild = insert(child, tuple, level + 1)
+            if (node != null && child === newChild) {
+                return node
+            }
+            return Node(node?.transitions.orEmpty() + (transition to newChild))
+        }
+
+        private fun copy(node: SignatureNode, copies: MutableMap<SignatureNode, SignatureNode>): SignatureNode {
+            if (node.transitions.isEmpty()) {
+                return FINISH
+            }
+            copies[node]?.let { return it }
+            val transitions = HashMap<ContractTransition, SignatureNode>(node.transitions.size)
+            for ((transition, child) in node.transitions) {
+                transitions[transition] = copy(child, copies)
+            }
+            return Node(transitions).also { copies[node] = it }
+        }
+    }
+
+    /**
+     * Node of persistent contracts, never changed after creation
+     */
+    private class Node(transitions: Map<ContractTransition, SignatureNode>) : SignatureNode {
+        override val transitions: Map<ContractTransition, SignatureNode> = Collections.unmodifiableMap(transitions)
+    }
+
+    override val nodeCount: Int by lazy {
+        val visited = HashSet<SignatureNode>()
+        val queue = ArrayList<SignatureNode>()
+        visited.add(startNode)
+        queue.add(startNode)
+        var i = 0
+        while (i < queue.size) {
+            for (child in queue[i++].transitions.values) {
+                if (visited.add(child)) {
+                    queue.add(child)
+                }
+            }
+        }
+        visited.size
+    }
+
+    val returnTypeQuery: ReturnTypeQuery by lazy { ReturnTypeQuery(this) }
+
+    /**
+     * @return version of the contract which accepts [tuple] too (this contract if it already accepts [tuple])
+     * or `null` if [tuple] has another number of arguments
+     */
+    fun add(tuple: RTuple): PersistentSignatureContract? {
+        if (tuple.argsTypes.size != argsInfo.size) {
+            return null
+        }
+        val newStartNode = insert(startNode, tuple, 0)
+        return if (newStartNode === startNode) this else PersistentSignatureContract(argsInfo, newStartNode)
+    }
+
+    /**
+     * Neither contract is changed or locked.
+     *
+     * @return contract which accepts tuples of both contracts or `null` if [other] has another number of arguments
+     */
+    fun merge(other: SignatureContract): PersistentSignatureContract? {
+        if (other.argsInfo.size != argsInfo.size) {
+            return null
+        }
+        val newStartNode = Merger(other is PersistentSignatureContract).merge(startNode, other.startNode)
+        return if (newStartNode === startNode) this else PersistentSignatureContract(argsInfo, newStartNode)
+    }
+
+    /**
+     * @return minimized mutable copy of the contract
+     */
+    fun toRSignatureContract(): RSignatureContract = RSignatureContract.minimizedCopy(this)
+
+    /**
+     * Merges nodes pairwise. Nodes of the other contract are shared when it is persistent too and copied otherwise
+     */
+    private class Merger(private val canShareOther: Boolean) {
+        private val merged = HashMap<Pair<SignatureNode, SignatureNode>, SignatureNode>()
+        private val copies = HashMap<SignatureNode, SignatureNode>()
+
+        fun merge(node: SignatureNode, other: SignatureNode): SignatureNode {
+            if (node === other || node.transitions.isEmpty()) {
+                return node
+            }
+            val key = node to other
+            merged[key]?.let { return it }
+
+            var transitions: HashMap<ContractTransition, SignatureNode>? = null
+            for ((transition, otherChild) in other.transitions) {
+                val child = node.transitions[transition]
+                val newChild = when {
+                    child != null -> merge(child, otherChild)
+                    canShareOther -> otherChild
+                    else -> copy(otherChild, copies)
+                }
+                if (newChild !== child) {
+                    if (transitions == null) {
+                        transitions = HashMap(node.transitions)
+                    }
+                    transitions[transition] = newChild
+                }
+            }
+            val result = if (transitions == null) node else Node(transitions)
+            merged[key] = result
+            return result
+        }
+    }
+}
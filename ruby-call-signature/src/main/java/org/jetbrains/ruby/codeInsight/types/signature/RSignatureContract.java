@@ -5,6 +5,7 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.jetbrains.annotations.TestOnly;
 import org.jetbrains.ruby.codeInsight.types.signature.contractTransition.ContractTransition;
+import org.jetbrains.ruby.codeInsight.types.signature.contractTransition.TypedContractTransition;
 
 import java.util.*;
 
@@ -20,6 +21,26 @@ public class RSignatureContract implements SignatureContract {
     private final List<List<RSignatureContractNode>> myLevels;
     @NotNull
     private final SignatureNode myTermNode;
+    /**
+     * Levels which got new nodes or whose nodes' transitions were changed since the last {@link #minimize()}
+     */
+    @NotNull
+    private final BitSet myDirtyLevels = new BitSet();
+    /**
+     * Built on demand and dropped by every change of the contract
+     */
+    @Nullable
+    private volatile ReturnTypeQuery myReturnTypeQuery;
+    /**
+     * Applied to tuples added by {@link #addRTuple}
+     */
+    @NotNull
+    private volatile ContractSizePolicy mySizePolicy = ContractSizePolicy.getDefault();
+    /**
+     * Types read by typed transitions of every level but the last one. Kept only while the size policy is bounded
+     */
+    @Nullable
+    private List<Set<String>> myLevelTypes;
 
     public RSignatureContract(@NotNull RTuple tuple) {
         myArgsInfo = tuple.getArgsInfo();
@@ -43,6 +64,7 @@ public class RSignatureContract implements SignatureContract {
         myArgsInfo = argsInfo;
         myLevels = levels;
         myTermNode = termNode;
+        myDirtyLevels.set(0, levels.size());
 
         // TODO recalculate mask
     }
@@ -58,8 +80,7 @@ public class RSignatureContract implements SignatureContract {
         final Queue<SignatureNode> q = new ArrayDeque<>();
 
         final RSignatureContractNode newStartNode = Objects.requireNonNull(createNodeAndAddToLevels(0));
-        myLevels.get(0).add(newStartNode);
-        oldNodesToNewWithLayerNumber.put(newStartNode, new kotlin.Pair<>(newStartNode, 0));
+        oldNodesToNewWithLayerNumber.put(source.getStartNode(), new kotlin.Pair<>(newStartNode, 0));
         q.add(source.getStartNode());
 
         while (!q.isEmpty()) {
@@ -70,7 +91,7 @@ public class RSignatureContract implements SignatureContract {
                 final kotlin.Pair<RSignatureContractNode, Integer> newTargetNodeWithLayer =
                         oldNodesToNewWithLayerNumber.computeIfAbsent(oldTargetNode, old -> {
                             final RSignatureContractNode newNode = createNodeAndAddToLevels(newSourceNodeAndLevel.getSecond() + 1);
-                            q.add(newNode);
+                            q.add(old);
                             return new kotlin.Pair<>(
                                     newNode,
                                     newSourceNodeAndLevel.getSecond() + 1
@@ -128,14 +149,51 @@ public class RSignatureContract implements SignatureContract {
         return new Immutable(newStartNode, oldToNew.size(), myArgsInfo);
     }
 
+    @NotNull
+    public ReturnTypeQuery getReturnTypeQuery() {
+        ReturnTypeQuery query = myReturnTypeQuery;
+        if (query == null) {
+            synchronized (this) {
+                query = myReturnTypeQuery;
+                if (query == null) {
+                    query = new ReturnTypeQuery(this);
+                    myReturnTypeQuery = query;
+                }
+            }
+        }
+        return query;
+    }
+
+    @NotNull
+    public ContractSizePolicy getSizePolicy() {
+        return mySizePolicy;
+    }
+
     /**
-     * @return true if succeeded; false otherwise
+     * The policy is applied to tuples added afterwards, the contract isn't changed
+     */
+    public synchronized void setSizePolicy(@NotNull ContractSizePolicy sizePolicy) {
+        mySizePolicy = sizePolicy;
+        myLevelTypes = null;
+    }
+
+    /**
+     * @return true if succeeded; false otherwise, e.g. if the tuple was dropped by the size policy
      */
     public synchronized boolean addRTuple(@NotNull RTuple tuple) {
-        final List<String> argsTypes = tuple.getArgsTypes();
-        if (argsTypes.size() != myArgsInfo.size()) {
+        if (tuple.getArgsTypes().size() != myArgsInfo.size()) {
             return false;
         }
+        if (!mySizePolicy.isUnbounded()) {
+            final RTuple boundedTuple = applySizePolicy(tuple);
+            if (boundedTuple == null) {
+                return false;
+            }
+            tuple = boundedTuple;
+        }
+        myReturnTypeQuery = null;
+
+        final List<String> argsTypes = tuple.getArgsTypes();
 
         String returnType = tuple.getReturnTypeName();
 
@@ -152,6 +210,7 @@ public class RSignatureContract implements SignatureContract {
                 }
 
                 currNode.addLink(transition, newNode);
+                myDirtyLevels.set(argIndex);
 
                 currNode = newNode;
             } else {
@@ -163,59 +222,141 @@ public class RSignatureContract implements SignatureContract {
         final ContractTransition transition = calculateTransition(tuple.getArgsTypes(), tuple.getArgsTypes().size(), returnType);
 
         currNode.addLink(transition, myTermNode);
+        myDirtyLevels.set(argsTypes.size());
         return true;
     }
 
-    synchronized void minimize() {
-        int numberOfLevels = myLevels.size();
-
-        for (int i = numberOfLevels - 1; i > 0; i--) {
-            List<RSignatureContractNode> level = myLevels.get(i);
+    /**
+     * Widens types of {@code tuple} which exceed caps of {@link #mySizePolicy}
+     *
+     * @return tuple to add or {@code null} if it is dropped
+     */
+    @Nullable
+    private RTuple applySizePolicy(@NotNull RTuple tuple) {
+        final ContractSizePolicy policy = mySizePolicy;
+        final List<Set<String>> levelTypes = getLevelTypes();
+        final List<String> argsTypes = tuple.getArgsTypes();
+        final int argsCount = argsTypes.size();
 
-            HashMap<SignatureNode, SignatureNode> representatives = new HashMap<>();
-            Set<SignatureNode> uselessVertices = new HashSet<>();
+        final List<String> types = new ArrayList<>(argsCount + 1);
+        for (int position = 0; position <= argsCount; position++) {
+            final String type = position < argsCount ? argsTypes.get(position) : tuple.getReturnTypeName();
+            // types equal to previous arguments are read by reference transitions
+            types.add(types.contains(type) ? type : policy.widen(tuple.getMethodInfo(), position, type, levelTypes.get(position)));
+        }
 
-            for (SignatureNode node : level) {
-                representatives.put(node, node);
+        if (!fitsNodeCaps(tuple, types)) {
+            minimize();
+            if (!fitsNodeCaps(tuple, types)) {
+                policy.reportDropped(tuple);
+                return null;
             }
+        }
 
-            for (int v1 = 0; v1 < level.size(); v1++) {
-                for (int v2 = v1 + 1; v2 < level.size(); v2++) {
-                    SignatureNode vertex1 = level.get(v1);
-                    SignatureNode vertex2 = level.get(v2);
-
-                    boolean isSame = vertex1.getTransitions().size() == vertex2.getTransitions().size();
-
-                    for (ContractTransition transition : vertex1.getTransitions().keySet()) {
+        for (int position = 0; position <= argsCount; position++) {
+            final ContractTransition transition = calculateTransition(types, position, types.get(position));
+            if (transition instanceof TypedContractTransition) {
+                levelTypes.get(position).add(types.get(position));
+            }
+        }
+        return new RTuple(tuple.getMethodInfo(), tuple.getArgsInfo(), types.subList(0, argsCount), types.get(argsCount));
+    }
 
-                        if (!vertex2.getTransitions().containsKey(transition) || vertex1.getTransitions().get(transition) != vertex2.getTransitions().get(transition)) {
-                            isSame = false;
-                        }
+    /**
+     * Walks the path of {@code types} (args types followed by the return type) and checks that levels where
+     * new nodes are needed have room for them. Types at full levels are collapsed to
+     * {@link ContractSizePolicy#ANY_TYPE} if there is such a transition
+     */
+    private boolean fitsNodeCaps(@NotNull RTuple tuple, @NotNull List<String> types) {
+        final int maxNodesPerLevel = mySizePolicy.getMaxNodesPerLevel();
+        final int argsCount = types.size() - 1;
+        SignatureNode currNode = myStartContractNode;
+        for (int argIndex = 0; argIndex < argsCount; argIndex++) {
+            final SignatureNode next = currNode.getTransitions().get(calculateTransition(types, argIndex, types.get(argIndex)));
+            if (next != null) {
+                currNode = next;
+                continue;
+            }
+            if (myLevels.get(argIndex + 1).size() < maxNodesPerLevel) {
+                // the rest of the path is new
+                for (int level = argIndex + 2; level <= argsCount; level++) {
+                    if (myLevels.get(level).size() >= maxNodesPerLevel) {
+                        return false;
                     }
+                }
+                return true;
+            }
+            final SignatureNode anyNode = currNode.getTransitions().get(ContractSizePolicy.ANY_TRANSITION);
+            if (anyNode == null) {
+                return false;
+            }
+            mySizePolicy.reportWidening(tuple.getMethodInfo(), argIndex, types.get(argIndex), ContractSizePolicy.ANY_TYPE);
+            types.set(argIndex, ContractSizePolicy.ANY_TYPE);
+            currNode = anyNode;
+        }
+        return true;
+    }
 
-                    if (isSame) {
-                        SignatureNode vertex1presenter = representatives.get(vertex1);
-                        representatives.put(vertex2, vertex1presenter);
-                        uselessVertices.add(vertex2);
+    @NotNull
+    private List<Set<String>> getLevelTypes() {
+        List<Set<String>> levelTypes = myLevelTypes;
+        if (levelTypes == null) {
+            levelTypes = new ArrayList<>(myLevels.size() - 1);
+            for (int i = 0; i < myLevels.size() - 1; i++) {
+                final Set<String> types = new HashSet<>();
+                for (RSignatureContractNode node : myLevels.get(i)) {
+                    for (ContractTransition transition : node.getTransitions().keySet()) {
+                        if (transition instanceof TypedContractTransition) {
+                            types.add(((TypedContractTransition) transition).getType());
+                        }
                     }
                 }
+                levelTypes.add(types);
             }
+            myLevelTypes = levelTypes;
+        }
+        return levelTypes;
+    }
 
-            List<RSignatureContractNode> prevLevel = myLevels.get(i - 1);
+    /**
+     * Merges nodes with equal transitions bottom-up. Children of nodes being compared are already merged, so
+     * nodes are equal iff their transition maps are equal and they can be bucketed by these maps in linear time.
+     * Only levels changed since the previous call (see {@link #myDirtyLevels}) and levels above merged nodes
+     * are processed: other levels can't get equal nodes.
+     */
+    public synchronized void minimize() {
+        myReturnTypeQuery = null;
+        boolean childrenMerged = false;
 
+        for (int i = myLevels.size() - 1; i > 0; i--) {
+            if (!childrenMerged && !myDirtyLevels.get(i)) {
+                continue;
+            }
 
-            if (!uselessVertices.isEmpty()) {
-                for (RSignatureContractNode node : prevLevel) {
-                    for (ContractTransition transition : node.getTransitions().keySet()) {
-                        RSignatureContractNode child = ((RSignatureContractNode) node.getTransitions().get(transition));
-                        node.addLink(transition, representatives.get(child));
-                    }
+            List<RSignatureContractNode> level = myLevels.get(i);
+            Map<Map<ContractTransition, SignatureNode>, RSignatureContractNode> nodesByTransitions = new HashMap<>();
+            Map<SignatureNode, SignatureNode> representatives = new HashMap<>();
+            List<RSignatureContractNode> uniqueNodes = new ArrayList<>(level.size());
+
+            for (RSignatureContractNode node : level) {
+                RSignatureContractNode representative = nodesByTransitions.putIfAbsent(node.getTransitions(), node);
+                if (representative == null) {
+                    uniqueNodes.add(node);
+                } else {
+                    representatives.put(node, representative);
                 }
             }
 
-            //noinspection SuspiciousMethodCalls
-            level.removeAll(uselessVertices);
+            childrenMerged = !representatives.isEmpty();
+            if (childrenMerged) {
+                for (RSignatureContractNode node : myLevels.get(i - 1)) {
+                    node.getTransitions().replaceAll((transition, child) -> representatives.getOrDefault(child, child));
+                }
+                level.clear();
+                level.addAll(uniqueNodes);
+            }
         }
+        myDirtyLevels.clear();
     }
 
     @TestOnly
@@ -238,6 +379,8 @@ public class RSignatureContract implements SignatureContract {
      */
     public synchronized boolean mergeWith(@NotNull SignatureContract additive) {
         // TODO synchronize on additive (can't do this plainly due to the possible deadlock)???
+        myReturnTypeQuery = null;
+        myLevelTypes = null;
         Set<PairOfNodes> used = new HashSet<>();
         Queue<Pair<PairOfNodes, Integer>> bfsQueue = new LinkedList<>();
         PairOfNodes startPairOfNodes = new PairOfNodes(getStartNode(), additive.getStartNode());
@@ -288,6 +431,7 @@ public class RSignatureContract implements SignatureContract {
                     }
                 }
                 oldNode.getTransitions().put(transition, node);
+                myDirtyLevels.set(level);
 
                 AddToBfsQueueAndUse(node, newNode.getTransitions().get(transition), bfsQueue, used, level + 1);
             }
@@ -315,9 +459,20 @@ public class RSignatureContract implements SignatureContract {
         RSignatureContractNode newNode = new RSignatureContractNode();
 
         myLevels.get(index).add(newNode);
+        myDirtyLevels.set(index);
         return newNode;
     }
 
+    /**
+     * @return mutable minimized copy of {@code source}
+     */
+    @NotNull
+    public static RSignatureContract minimizedCopy(@NotNull SignatureContract source) {
+        RSignatureContract copy = new RSignatureContract(source);
+        copy.minimize();
+        return copy;
+    }
+
     @Nullable
     public static RSignatureContract mergeMutably(@NotNull SignatureContract first, @NotNull SignatureContract second) {
         if (first instanceof RSignatureContract) {
@@ -1,9 +1,16 @@
 package org.jetbrains.ruby.codeInsight.types.signature
 
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Contracts of many methods built from [RTuple]s. Thread safe: contracts are [PersistentSignatureContract]s
+ * whose new versions are published by CAS, so tuples of any methods are added in parallel and readers
+ * never wait for writers.
+ */
 class RSignatureContractContainer {
 
-    private val myContracts: MutableMap<MethodInfo, RSignatureContract> = HashMap()
-    private val myNumberOfCalls: MutableMap<MethodInfo, Int> = HashMap()
+    private val myContracts = ConcurrentHashMap<MethodInfo, PersistentSignatureContract>()
+    private val myNumberOfCalls = ConcurrentHashMap<MethodInfo, Int>()
 
     fun acceptTuple(tuple: RTuple): Boolean {
         val currInfo = tuple.methodInfo
@@ -15,24 +22,36 @@ class RSignatureContractContainer {
     fun addTuple(tuple: RTuple) {
         val currInfo = tuple.methodInfo
 
-        if (myContracts.containsKey(currInfo)) {
+        while (true) {
             val contract = myContracts[currInfo]
+            if (contract == null) {
+                if (myContracts.putIfAbsent(currInfo, PersistentSignatureContract.of(tuple)) == null) {
+                    return
+                }
+                continue
+            }
 
-            if (tuple.argsInfo.size == contract?.argsInfo?.size) {
-                contract.addRTuple(tuple)
-                myNumberOfCalls.compute(currInfo) { _, oldNumber -> (oldNumber ?: 0) + 1 }
+            val newContract = contract.add(tuple) ?: return
+            if (newContract === contract || myContracts.replace(currInfo, contract, newContract)) {
+                myNumberOfCalls.merge(currInfo, 1, Int::plus)
+                return
             }
-        } else {
-            val contract = RSignatureContract(tuple)
-            myContracts.put(currInfo, contract)
         }
     }
 
     val registeredMethods: Set<MethodInfo>
         get() = myContracts.keys
 
+    /**
+     * @return the latest version of the contract, it is never changed afterwards
+     */
+    fun getContract(info: MethodInfo): PersistentSignatureContract? = myContracts[info]
+
+    /**
+     * @return minimized copy of the latest version of the contract
+     */
     fun getSignature(info: MethodInfo): RSignatureContract? {
-        return myContracts[info]?.apply { minimize() }
+        return myContracts[info]?.toRSignatureContract()
     }
 
     fun clear() {
@@ -41,4 +60,4 @@ class RSignatureContractContainer {
 
     val size: Int
         get() = myContracts.size
-}
\ No newline at end of file
+}
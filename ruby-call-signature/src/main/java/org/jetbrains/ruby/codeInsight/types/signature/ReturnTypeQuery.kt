@@ -0,0 +1,122 @@
+package org.jetbrains.ruby.codeInsight.types.signature
+
+import org.jetbrains.ruby.codeInsight.types.signature.contractTransition.ReferenceContractTransition
+import org.jetbrains.ruby.codeInsight.types.signature.contractTransition.TransitionHelper
+import org.jetbrains.ruby.codeInsight.types.signature.contractTransition.TypedContractTransition
+
+/**
+ * Return types of a [SignatureContract] precomputed for every node, so queries don't traverse the automaton.
+ *
+ * For a node on level `k` its return types are the types read by the last transition of all paths
+ * from the node to the finish node. Such a type is either known by itself or is a reference to the type
+ * of one of the first `k` arguments, which is resolved by the query: arguments after `k` are already
+ * substituted during the precomputation. Reference to arguments with equal types is resolved to the lowest
+ * of them, as it is read by [TypedContractTransition] (see [TransitionHelper.calculateTransition]).
+ *
+ * Nodes are processed once from the finish node up, so the construction is linear in the contract size
+ * times the number of return types. The query is immutable and should be rebuilt after the contract is changed,
+ * use [SignatureContract.Companion.getReturnTypeQuery] to get the cached one.
+ */
+class ReturnTypeQuery(private val contract: SignatureContract) {
+    private val returnTypes: Map<SignatureNode, NodeReturnTypes>
+
+    init {
+        val nodes = ArrayList<SignatureNode>()
+        val levels = HashMap<SignatureNode, Int>()
+        levels[contract.startNode] = 0
+        nodes.add(contract.startNode)
+        var i = 0
+        while (i < nodes.size) {
+            val node = nodes[i++]
+            val childLevel = levels[node]!! + 1
+            for (child in node.transitions.values) {
+                if (!levels.containsKey(child)) {
+                    levels[child] = childLevel
+                    nodes.add(child)
+                }
+            }
+        }
+
+        // paths to the finish node have the same length, so children are always met after their parents
+        returnTypes = HashMap(nodes.size)
+        for (node in nodes.asReversed()) {
+            returnTypes[node] = collectReturnTypes(node, levels[node]!!)
+        }
+    }
+
+    /**
+     * All return types the contract can produce
+     */
+    val allReturnTypes: Set<String>
+        get() = returnTypes[contract.startNode]!!.types
+
+    /**
+     * @param argsTypes types of the first arguments, at most all of them
+     * @return return types of calls starting with [argsTypes] or empty set if the contract doesn't accept such calls
+     */
+    fun getReturnTypes(argsTypes: List<String>): Set<String> {
+        var node = contract.startNode
+        for (argIndex in argsTypes.indices) {
+            val transition = TransitionHelper.calculateTransition(argsTypes, argIndex, argsTypes[argIndex])
+            node = node.transitions[transition] ?: node.transitions[ContractSizePolicy.ANY_TRANSITION] ?: return emptySet()
+        }
+        val nodeReturnTypes = returnTypes[node] ?: return emptySet()
+        if (nodeReturnTypes.referencedArgs == 0) {
+            return nodeReturnTypes.types
+        }
+        val result = HashSet(nodeReturnTypes.types)
+        forEachBit(nodeReturnTypes.referencedArgs) { result.add(argsTypes[it]) }
+        return result
+    }
+
+    private fun collectReturnTypes(node: SignatureNode, level: Int): NodeReturnTypes {
+        val transitions = node.transitions
+        if (transitions.isEmpty()) {
+            return NodeReturnTypes.NONE
+        }
+        val types = HashSet<String>()
+        var referencedArgs = 0
+        for ((transition, child) in transitions) {
+            if (child.transitions.isEmpty()) {
+                // the transition reads the return type itself
+                when (transition) {
+                    is TypedContractTransition -> types.add(transition.type)
+                    is ReferenceContractTransition -> referencedArgs = referencedArgs or Integer.lowestOneBit(transition.mask)
+                    else -> throw IllegalStateException("ContractTransition should be sealed in these classes")
+                }
+                continue
+            }
+
+            val childReturnTypes = returnTypes[child]!!
+            types.addAll(childReturnTypes.types)
+            val levelBit = 1 shl level
+            referencedArgs = referencedArgs or (childReturnTypes.referencedArgs and levelBit.inv())
+            if (childReturnTypes.referencedArgs and levelBit != 0) {
+                // return type equals to the argument read by this transition
+                when (transition) {
+                    is TypedContractTransition -> types.add(transition.type)
+                    is ReferenceContractTransition -> referencedArgs = referencedArgs or Integer.lowestOneBit(transition.mask)
+                    else -> throw IllegalStateException("ContractTransition should be sealed in these classes")
+                }
+            }
+        }
+        return NodeReturnTypes(types, referencedArgs)
+    }
+
+    private inline fun forEachBit(bits: Int, action: (Int) -> Unit) {
+        var rest = bits
+        while (rest != 0) {
+            action(Integer.numberOfTrailingZeros(rest))
+            rest = rest and (rest - 1)
+        }
+    }
+
+    /**
+     * @param referencedArgs bit `i` is set if the return type may be equal to the type of argument `i`
+     */
+    private class NodeReturnTypes(val types: Set<String>, val referencedArgs: Int) {
+        companion object {
+            val NONE = NodeReturnTypes(emptySet(), 0)
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package org.jetbrains.ruby.codeInsight.types.signature
+
+import org.jetbrains.ruby.codeInsight.types.signature.contractTransition.TypedContractTransition
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Assigns dense int ids to type names, so [PackedSignatureContract]s which share the dictionary
+ * keep every type name once. Ids are never reused.
+ *
+ * [SHARED] dictionary is the process wide type name table: [TypedContractTransition]s are compared by its ids
+ * and type names of [CallInfo]s are interned in it. Its ids are valid only within the process,
+ * serialized contracts carry their own type names section.
+ *
+ * Thread safe, lookups are lock free
+ */
+class TypeNameDictionary {
+    companion object {
+        @JvmField
+        val SHARED = TypeNameDictionary()
+    }
+
+    private val ids = ConcurrentHashMap<String, Int>()
+    @Volatile
+    private var names = arrayOfNulls<String>(64)
+    private var size = 0
+
+    val typeNamesCount: Int
+        get() = ids.size
+
+    fun getOrCreateId(name: String): Int {
+        ids[name]?.let { return it }
+        synchronized(this) {
+            ids[name]?.let { return it }
+            if (size == names.size) {
+                names = names.copyOf(size * 2)
+            }
+            names[size] = name
+            // id is published after the name is stored, see [getName]
+            ids[name] = size
+            return size++
+        }
+    }
+
+    /**
+     * @return the instance of [name] kept by the dictionary
+     */
+    fun intern(name: String): String = getName(getOrCreateId(name))
+
+    /**
+     * @return id of [name] or -1 if the name is unknown
+     */
+    fun getId(name: String): Int = ids[name] ?: -1
+
+    /**
+     * @param id obtained from this dictionary
+     */
+    fun getName(id: Int): String = names[id] ?: throw IllegalArgumentException("Unknown type name id: $id")
+}
@@ -1,6 +1,7 @@
 package org.jetbrains.ruby.codeInsight.types.signature.contractTransition;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.ruby.codeInsight.types.signature.ContractSizePolicy;
 
 import java.util.List;
 
@@ -8,9 +9,12 @@ public class TransitionHelper {
     private TransitionHelper() {
     }
 
+    /**
+     * {@link ContractSizePolicy#ANY_TYPE} is always read by typed transition: collapsed types aren't equal
+     */
     @NotNull
     public static ContractTransition calculateTransition(@NotNull List<String> argTypes, int argIndex, @NotNull String type) {
-        final int mask = getNewMask(argTypes, argIndex, type);
+        final int mask = type.equals(ContractSizePolicy.ANY_TYPE) ? 0 : getNewMask(argTypes, argIndex, type);
 
         if (mask > 0)
             return new ReferenceContractTransition(mask);
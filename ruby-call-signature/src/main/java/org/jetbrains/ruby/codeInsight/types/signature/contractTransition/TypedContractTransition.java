@@ -1,6 +1,7 @@
 package org.jetbrains.ruby.codeInsight.types.signature.contractTransition;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.ruby.codeInsight.types.signature.TypeNameDictionary;
 
 import java.util.Collections;
 import java.util.List;
@@ -8,22 +9,28 @@ import java.util.Set;
 
 public class TypedContractTransition implements ContractTransition {
 
-    @NotNull
-    private final String myType;
+    /**
+     * Id in {@link TypeNameDictionary#SHARED}, so equal transitions are compared without comparing strings
+     */
+    private final int myTypeId;
 
     public TypedContractTransition(@NotNull String type) {
-        this.myType = type;
+        myTypeId = TypeNameDictionary.SHARED.getOrCreateId(type);
     }
 
     @NotNull
     @Override
     public Set<String> getValue(@NotNull List<Set<String>> readTypes) {
-        return Collections.singleton(myType);
+        return Collections.singleton(getType());
     }
 
     @NotNull
     public String getType() {
-        return myType;
+        return TypeNameDictionary.SHARED.getName(myTypeId);
+    }
+
+    public int getTypeId() {
+        return myTypeId;
     }
 
     @Override
@@ -33,11 +40,13 @@ public class TypedContractTransition implements ContractTransition {
 
         TypedContractTransition that = (TypedContractTransition) o;
 
-        return myType.equals(that.myType);
+        return myTypeId == that.myTypeId;
     }
 
     @Override
     public int hashCode() {
-        return myType.hashCode();
+        // ids depend on the order types were met in, so the hash of the name is used to keep iteration
+        // order of transitions (and hence serialized contracts) stable. String caches its hash
+        return getType().hashCode();
     }
-}
\ No newline at end of file
+}
@@ -2,8 +2,10 @@ package org.jetbrains.ruby.codeInsight.types.signature.serialization
 
 import org.jetbrains.ruby.codeInsight.types.signature.*
 import java.io.DataInput
+import java.io.DataInputStream
 import java.io.DataOutput
 import java.io.IOException
+import java.nio.ByteBuffer
 
 fun MethodInfo.serialize(stream: DataOutput) {
     classInfo.serialize(stream)
@@ -62,7 +64,12 @@ fun Location(stream: DataInput): Location {
 
 object SignatureInfoSerialization {
 
-    private val PROTOCOL_VERSION = 1
+    /**
+     * Version 2 contracts start with type names section. Contract readers tell the formats apart,
+     * so version 1 is still accepted
+     */
+    private val PROTOCOL_VERSION = 2
+    private val OLDEST_SUPPORTED_PROTOCOL_VERSION = 1
 
     fun serialize(signatureInfos: List<SignatureInfo>, stream: DataOutput) {
         writeProtocolVersion(stream)
@@ -78,7 +85,22 @@ object SignatureInfoSerialization {
 
         val id2GemInfo = deserializeGemInfo(stream)
         val id2ClassInfo = deserializeClassInfo(stream, id2GemInfo)
-        return deserializeSignatureInfos(stream, id2ClassInfo)
+        return deserializeSignatureInfos(stream, id2ClassInfo) { SignatureContract(stream) }
+    }
+
+    /**
+     * Same as [deserialize], but contracts are mapped from [buffer] without parsing their nodes
+     * (see [MappedSignatureContract]), so [buffer] may be e.g. a memory-mapped file.
+     * The bytes must not change while the contracts are used
+     */
+    fun deserialize(buffer: ByteBuffer): List<SignatureInfo> {
+        val data = buffer.duplicate()
+        val stream = DataInputStream(ByteBufferInputStream(data))
+        checkProtocolVersion(stream)
+
+        val id2GemInfo = deserializeGemInfo(stream)
+        val id2ClassInfo = deserializeClassInfo(stream, id2GemInfo)
+        return deserializeSignatureInfos(stream, id2ClassInfo) { SignatureContract(data) }
     }
 
     private fun writeProtocolVersion(stream: DataOutput) {
@@ -88,9 +110,9 @@ object SignatureInfoSerialization {
 
     private fun checkProtocolVersion(stream: DataInput) {
         val version = stream.readInt()
-        if (version != PROTOCOL_VERSION) {
+        if (version !in OLDEST_SUPPORTED_PROTOCOL_VERSION..PROTOCOL_VERSION) {
             throw IOException("Cannot deserialize SignatureInfos: protocol version mismatch. Expected:" +
-                    " $PROTOCOL_VERSION but got: $version")
+                    " $OLDEST_SUPPORTED_PROTOCOL_VERSION..$PROTOCOL_VERSION but got: $version")
         }
     }
 
@@ -166,7 +188,8 @@ object SignatureInfoSerialization {
     }
 
     private fun deserializeSignatureInfos(stream: DataInput,
-                                          id2ClassInfo: LinkedHashMap<Int, ClassInfo>) : List<SignatureInfo> {
+                                          id2ClassInfo: LinkedHashMap<Int, ClassInfo>,
+                                          readContract: () -> SignatureContract) : List<SignatureInfo> {
         val result = ArrayList<SignatureInfo>()
         val signatureInfoSize = stream.readInt()
         for (i in 1..signatureInfoSize) {
@@ -176,7 +199,7 @@ object SignatureInfoSerialization {
             val location = if (isLocationPresent) Location(stream) else null
             val classInfo = id2ClassInfo.getValue(stream.readInt())
             val methodInfo = MethodInfo.Impl(classInfo, name, visibility, location)
-            val contract = SignatureContract(stream)
+            val contract = readContract()
             result.add(SignatureInfo(methodInfo, contract))
         }
         return result
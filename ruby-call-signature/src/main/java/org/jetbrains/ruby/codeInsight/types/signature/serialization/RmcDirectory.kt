@@ -3,6 +3,7 @@ package org.jetbrains.ruby.codeInsight.types.signature.serialization
 import org.jetbrains.ruby.codeInsight.types.signature.GemInfo
 import org.jetbrains.ruby.codeInsight.types.signature.SignatureInfo
 import java.io.*
+import java.nio.ByteBuffer
 import java.util.zip.GZIPInputStream
 import java.util.zip.GZIPOutputStream
 
@@ -24,13 +25,9 @@ class RmcDirectoryImpl(private val directory: File) : RmcDirectory {
 
     override fun load(gemInfo: GemInfo): List<SignatureInfo> {
         val inputFile = File(directory, gemInfo2Filename(gemInfo))
-        FileInputStream(inputFile).use {
-            GZIPInputStream(it).use {
-                DataInputStream(it).use {
-                    return SignatureInfoSerialization.deserialize(it)
-                }
-            }
-        }
+        // contracts are mapped from the unpacked bytes and parsed only when queried
+        val bytes = FileInputStream(inputFile).use { GZIPInputStream(it).use { it.readBytes() } }
+        return SignatureInfoSerialization.deserialize(ByteBuffer.wrap(bytes))
     }
 
     override fun save(gemInfo: GemInfo, signatures: List<SignatureInfo>) {
@@ -5,7 +5,10 @@ import org.jetbrains.ruby.codeInsight.types.signature.contractTransition.Contrac
 import org.jetbrains.ruby.codeInsight.types.signature.contractTransition.ReferenceContractTransition
 import org.jetbrains.ruby.codeInsight.types.signature.contractTransition.TypedContractTransition
 import java.io.DataInput
+import java.io.DataInputStream
 import java.io.DataOutput
+import java.io.InputStream
+import java.nio.ByteBuffer
 import java.util.*
 import kotlin.collections.ArrayList
 import kotlin.collections.HashMap
@@ -36,38 +39,92 @@ fun ParameterInfo(stream: DataInput): ParameterInfo {
     return ParameterInfo(stream.readUTF(), ParameterInfo.Type.values()[stream.readByte().toInt()])
 }
 
-fun SignatureContract.serialize(stream: DataOutput) {
-    stream.writeInt(argsInfo.size)
-    argsInfo.forEach { it.serialize(stream) }
-
-    stream.writeInt(nodeCount)
+/**
+ * Written instead of args count by contracts which start with type names section. Contracts written
+ * before the section was introduced start with non negative args count
+ */
+internal const val TYPE_NAMES_SECTION_MARKER = -1
 
+/**
+ * Every type name is written once in the type names section, transitions refer to it by index
+ */
+fun SignatureContract.serialize(stream: DataOutput) {
+    val nodes = ArrayList<SignatureNode>()
     val visited = HashMap<SignatureNode, Int>()
-    val q = ArrayDeque<SignatureNode>()
-
     visited[startNode] = 0
-    q.push(startNode)
-
-    while (q.isNotEmpty()) {
-        val v = q.poll()
-        for (it in v.transitions.values) {
-            if (!visited.containsKey(it)) {
-                visited[it] = visited.size
-                q.add(it)
+    nodes.add(startNode)
+
+    val typeNames = LinkedHashMap<String, Int>()
+    var i = 0
+    while (i < nodes.size) {
+        nodes[i++].transitions.forEach { transition, target ->
+            if (transition is TypedContractTransition) {
+                typeNames.putIfAbsent(transition.type, typeNames.size)
             }
+            visited.getOrPut(target) { nodes.add(target); nodes.size - 1 }
         }
+    }
+
+    stream.writeInt(TYPE_NAMES_SECTION_MARKER)
+    stream.writeInt(typeNames.size)
+    typeNames.keys.forEach { stream.writeUTF(it) }
 
+    stream.writeInt(argsInfo.size)
+    argsInfo.forEach { it.serialize(stream) }
+
+    stream.writeInt(nodeCount)
+
+    nodes.forEach { v ->
         stream.writeInt(v.transitions.size)
         v.transitions.forEach { transition, u ->
             stream.writeInt(visited[u]!!)
-            transition.serialize(stream)
+            stream.writeBoolean(transition is ReferenceContractTransition)
+            when (transition) {
+                is ReferenceContractTransition -> stream.writeInt(transition.mask)
+                is TypedContractTransition -> stream.writeInt(typeNames.getValue(transition.type))
+                else -> throw IllegalStateException("ContractTransition should be sealed in these classes")
+            }
+        }
+    }
+}
+
+/**
+ * Beginning of serialized contract up to the nodes count
+ */
+internal class SignatureContractHeader(stream: DataInput) {
+    /**
+     * `null` for contracts written without type names section, their transitions contain type names themselves
+     */
+    val typeNames: List<String>?
+    val argsInfo: List<ParameterInfo>
+
+    init {
+        val first = stream.readInt()
+        val argsSize = if (first == TYPE_NAMES_SECTION_MARKER) {
+            typeNames = List(stream.readInt()) { TypeNameDictionary.SHARED.intern(stream.readUTF()) }
+            stream.readInt()
+        } else {
+            typeNames = null
+            first
+        }
+        argsInfo = List(argsSize) { ParameterInfo(stream) }
+    }
+
+    fun readTransition(stream: DataInput): ContractTransition {
+        if (typeNames == null) {
+            return ContractTransition(stream)
+        }
+        return when (stream.readBoolean()) {
+            true -> ReferenceContractTransition(stream.readInt())
+            false -> TypedContractTransition(typeNames[stream.readInt()])
         }
     }
 }
 
 fun SignatureContract(stream: DataInput): SignatureContract {
-    val argsSize = stream.readInt()
-    val argsInfo = List(argsSize) { ParameterInfo(stream) }
+    val header = SignatureContractHeader(stream)
+    val argsInfo = header.argsInfo
+    val argsSize = argsInfo.size
 
     val nodesSize = stream.readInt()
 
@@ -81,7 +138,7 @@ fun SignatureContract(stream: DataInput): SignatureContract {
         repeat(transitionsN) {
             val toIndex = stream.readInt()
             distance[toIndex] = distance[currentNodeIndex] + 1
-            val transition = ContractTransition(stream)
+            val transition = header.readTransition(stream)
             // todo replace with constructor (iterate from the end)
             nodes[currentNodeIndex].addLink(transition, nodes[toIndex])
         }
@@ -95,3 +152,38 @@ fun SignatureContract(stream: DataInput): SignatureContract {
     return RSignatureContract(argsInfo, nodes.first(), nodes.last(), levels)
 
 }
+
+/**
+ * Reads contract at the position of [buffer] and moves the position past it. Contracts written with type names
+ * section are mapped without copying (see [MappedSignatureContract]), older ones are read into [PackedSignatureContract]
+ */
+fun SignatureContract(buffer: ByteBuffer): SignatureContract {
+    if (!MappedSignatureContract.isMappable(buffer)) {
+        return PackedSignatureContract.read(DataInputStream(ByteBufferInputStream(buffer)))
+    }
+    val contract = MappedSignatureContract.wrap(buffer)
+    buffer.position(buffer.position() + contract.serializedLength)
+    return contract
+}
+
+/**
+ * Reads [buffer] from its position and moves the position. [DataInputStream] doesn't read ahead, so the position
+ * of [buffer] is always right after the last value read from the stream
+ */
+internal class ByteBufferInputStream(private val buffer: ByteBuffer) : InputStream() {
+    override fun read(): Int = if (buffer.hasRemaining()) buffer.get().toInt() and 0xFF else -1
+
+    override fun read(b: ByteArray, off: Int, len: Int): Int {
+        if (len == 0) {
+            return 0
+        }
+        if (!buffer.hasRemaining()) {
+            return -1
+        }
+        val count = Math.min(len, buffer.remaining())
+        buffer.get(b, off, count)
+        return count
+    }
+
+    override fun available(): Int = buffer.remaining()
+}
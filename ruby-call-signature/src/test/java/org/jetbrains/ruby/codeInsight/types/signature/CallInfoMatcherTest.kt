@@ -0,0 +1,72 @@
+package org.jetbrains.ruby.codeInsight.types.signature
+
+import junit.framework.TestCase
+import org.junit.Test
+import java.util.*
+
+class CallInfoMatcherTest : TestCase() {
+    private val method = MethodInfo(ClassInfo("A"), "foo", RVisibility.PUBLIC)
+
+    private val implicit = ArgumentNameAndType.IMPLICITLY_PASSED_ARGUMENT_TYPE
+
+    private fun callInfo(returnType: String, unnamedArgsTypes: List<String>, namedArgsTypes: List<String> = emptyList()) =
+            CallInfoImpl(method,
+                    namedArgsTypes.mapIndexed { i, type -> ArgumentNameAndType("key$i", type) },
+                    unnamedArgsTypes.mapIndexed { i, type -> ArgumentNameAndType("arg$i", type) }, returnType)
+
+    /**
+     * Linear matching the matcher replaces
+     */
+    private fun argumentsMatch(oneOfExpected: CallInfo, actualUnnamedArgs: List<String?>, actualNamedArgs: List<ArgumentNameAndType?>): Boolean {
+        if (oneOfExpected.unnamedArguments.size != actualUnnamedArgs.size || oneOfExpected.namedArguments.size != actualNamedArgs.size) {
+            return false
+        }
+        if (oneOfExpected.unnamedArguments.zip(actualUnnamedArgs).any {
+                    it.first.type != implicit && it.second != null && it.first.type != it.second
+                }) {
+            return false
+        }
+        return oneOfExpected.namedArguments.zip(actualNamedArgs).none {
+            it.second != null && it.first.type != implicit && it.second!!.type != implicit && it.first.type != it.second!!.type
+        }
+    }
+
+    @Test
+    fun testWildcards() {
+        val matcher = CallInfoMatcher(listOf(
+                callInfo("R0", listOf("String", "Integer")),
+                callInfo("R1", listOf("String", implicit)),
+                callInfo("R2", listOf("Symbol", "Integer")),
+                callInfo("R3", listOf("String"), listOf("Hash"))))
+
+        assertEquals(listOf("R0", "R1"), matcher.findMatchingReturnTypes(listOf("String", "Integer"), emptyList()))
+        assertEquals(listOf("R1"), matcher.findMatchingReturnTypes(listOf("String", "Float"), emptyList()))
+        assertEquals(listOf("R0", "R1", "R2"), matcher.findMatchingReturnTypes(listOf(null, "Integer"), emptyList()))
+        assertEquals(emptyList<String>(), matcher.findMatchingReturnTypes(listOf("String"), emptyList()))
+        assertEquals(listOf("R3"), matcher.findMatchingReturnTypes(listOf("String"), listOf(ArgumentNameAndType("key0", implicit))))
+        assertEquals(listOf("R3"), matcher.findMatchingReturnTypes(listOf("String"), listOf(null)))
+        assertEquals(listOf("R0", "R1", "R2", "R3"), matcher.returnTypes)
+    }
+
+    @Test
+    fun testSameAsLinearMatching() {
+        val random = Random(42)
+        val types = listOf("String", "Integer", "Symbol", implicit)
+        fun randomTypes(count: Int) = (0 until count).map { types[random.nextInt(types.size)] }
+
+        repeat(50) {
+            val callInfos = (0 until 20).map {
+                callInfo("R$it", randomTypes(random.nextInt(3)), randomTypes(random.nextInt(2)))
+            }
+            val matcher = CallInfoMatcher(callInfos)
+            repeat(50) {
+                val unnamed = randomTypes(random.nextInt(3)).map { type -> type.takeIf { random.nextInt(5) != 0 } }
+                val named = randomTypes(random.nextInt(2)).map { type ->
+                    ArgumentNameAndType("key", type).takeIf { random.nextInt(5) != 0 }
+                }
+                val expected = callInfos.filter { argumentsMatch(it, unnamed, named) }.map { it.returnType }
+                assertEquals(expected, matcher.findMatchingReturnTypes(unnamed, named))
+            }
+        }
+    }
+}
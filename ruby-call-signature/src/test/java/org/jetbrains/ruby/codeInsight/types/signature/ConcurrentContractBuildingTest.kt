@@ -0,0 +1,111 @@
+package org.jetbrains.ruby.codeInsight.types.signature
+
+import org.jetbrains.ruby.codeInsight.types.signature.contractTransition.TypedContractTransition
+import org.junit.Test
+import java.util.Collections
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicReference
+
+class ConcurrentContractBuildingTest : SignatureContractTestBase() {
+    private val methods = (0 until 3).map { MethodInfo(ClassInfo("A"), "m$it", RVisibility.PUBLIC) }
+    private val params = (0 until 3).map { ParameterInfo("a$it", ParameterInfo.Type.REQ) }
+
+    /**
+     * Types differ on every position, so all transitions are typed
+     */
+    private fun tuple(method: MethodInfo, a: Int, b: Int, c: Int, r: Int) =
+            RTuple(method, params, listOf("A$a", "B$b", "C$c"), "R$r")
+
+    private fun allTuples(method: MethodInfo) =
+            (0 until 7).flatMap { a -> (0 until 5).flatMap { b -> (0 until 3).flatMap { c -> (0 until 4).map { r -> tuple(method, a, b, c, r) } } } }
+
+    private fun language(contract: SignatureContract): Set<List<String>> {
+        val result = HashSet<List<String>>()
+        fun visit(node: SignatureNode, prefix: List<String>) {
+            if (node.transitions.isEmpty()) {
+                result.add(prefix)
+            }
+            node.transitions.forEach { transition, child -> visit(child, prefix + (transition as TypedContractTransition).type) }
+        }
+        visit(contract.startNode, emptyList())
+        return result
+    }
+
+    @Test
+    fun testConcurrentAddIsLinearizable() {
+        val container = RSignatureContractContainer()
+        val writersCount = 8
+        // RTuple.equals ignores return type
+        val added = Collections.synchronizedSet(HashSet<Pair<MethodInfo, List<String>>>())
+        val failure = AtomicReference<Throwable>()
+        val writersDone = AtomicBoolean(false)
+        val start = CountDownLatch(1)
+
+        val writers = (0 until writersCount).map { writer ->
+            Thread {
+                try {
+                    start.await()
+                    for (i in 0 until 300) {
+                        val tuple = tuple(methods[(i + writer) % methods.size], (i * 3 + writer) % 7, (i + writer) % 5, i % 3, (i / 7 + writer) % 4)
+                        container.addTuple(tuple)
+                        added.add(tuple.methodInfo to tuple.argsTypes + tuple.returnTypeName)
+                        // a completed add is visible to the same thread at once
+                        assertTrue(container.acceptTuple(tuple))
+                    }
+                } catch (e: Throwable) {
+                    failure.compareAndSet(null, e)
+                }
+            }
+        }
+        val reader = Thread {
+            try {
+                start.await()
+                val candidates = methods.flatMap { allTuples(it) }
+                val accepted = ArrayList<RTuple>()
+                while (!writersDone.get()) {
+                    // every next version accepts everything the previous ones did
+                    accepted.forEach { assertTrue(container.acceptTuple(it)) }
+                    accepted.clear()
+                    candidates.filterTo(accepted) { container.acceptTuple(it) }
+                }
+            } catch (e: Throwable) {
+                failure.compareAndSet(null, e)
+            }
+        }
+
+        (writers + reader).forEach { it.start() }
+        start.countDown()
+        writers.forEach { it.join(TimeUnit.MINUTES.toMillis(1)) }
+        writersDone.set(true)
+        reader.join(TimeUnit.MINUTES.toMillis(1))
+        failure.get()?.let { throw it }
+
+        for (method in methods) {
+            val expected = added.filter { it.first == method }.map { it.second }.toSet()
+            val contract = container.getContract(method)!!
+            assertEquals(expected, language(contract))
+
+            val minimized = container.getSignature(method)!!
+            assertEquals(expected, language(minimized))
+            assertTrue(minimized.nodeCount <= contract.nodeCount)
+        }
+    }
+
+    @Test
+    fun testMergeDoesNotChangeOperands() {
+        val first = PersistentSignatureContract.of(generateSimpleContract())
+        val firstLanguage = language(first)
+        val second = generateComplicatedContract()
+        val other = RSignatureContract(generateRTuple(listOf("Date1", "Int2", "Int3"), "String4"))
+
+        assertNull(first.merge(second))
+
+        val merged = first.merge(other)!!
+        assertEquals(firstLanguage + language(other), language(merged))
+        assertEquals(firstLanguage, language(first))
+        assertSame(merged, merged.merge(first))
+        assertSame(merged, merged.add(generateRTuple(listOf("Date1", "Int2", "Int3"), "String4")))
+    }
+}
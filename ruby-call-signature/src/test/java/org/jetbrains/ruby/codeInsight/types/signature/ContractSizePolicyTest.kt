@@ -0,0 +1,90 @@
+package org.jetbrains.ruby.codeInsight.types.signature
+
+import org.junit.Test
+
+class ContractSizePolicyTest : SignatureContractTestBase() {
+    private val superclasses = mapOf(
+            "Integer" to "Numeric", "Float" to "Numeric", "Rational" to "Numeric",
+            "Numeric" to "Object", "String" to "Object", "Symbol" to "Object")
+
+    private val hierarchy = object : ContractSizePolicy.TypeHierarchy {
+        override fun getSuperclass(type: String): String? = superclasses[type]
+    }
+
+    private class RecordingListener : ContractSizePolicy.Listener {
+        val widened = ArrayList<String>()
+        val dropped = ArrayList<RTuple>()
+
+        override fun typeWidened(methodInfo: MethodInfo, position: Int, type: String, widenedType: String) {
+            widened.add("$position:$type->$widenedType")
+        }
+
+        override fun tupleDropped(tuple: RTuple) {
+            dropped.add(tuple)
+        }
+    }
+
+    private fun contract(policy: ContractSizePolicy, first: RTuple) =
+            RSignatureContract(first).apply { setSizePolicy(policy) }
+
+    @Test
+    fun testTypesCollapseToWildcard() {
+        val listener = RecordingListener()
+        val contract = contract(ContractSizePolicy(maxTypesPerPosition = 2, listener = listener),
+                generateRTuple(listOf("A"), "R"))
+        assertTrue(contract.addRTuple(generateRTuple(listOf("B"), "R")))
+        assertTrue(contract.addRTuple(generateRTuple(listOf("C"), "R")))
+        assertTrue(contract.addRTuple(generateRTuple(listOf("D"), "R")))
+
+        assertEquals(listOf("0:C->*", "0:D->*"), listener.widened)
+        assertEquals(3, contract.startNode.transitions.size)
+        assertTrue(SignatureContract.accept(contract, generateRTuple(listOf("A"), "R")))
+        assertTrue(SignatureContract.accept(contract, generateRTuple(listOf("E"), "R")))
+        assertEquals(setOf("R"), SignatureContract.getReturnTypes(contract, listOf("E")))
+    }
+
+    @Test
+    fun testTypesWidenToAncestors() {
+        val listener = RecordingListener()
+        val contract = contract(ContractSizePolicy(2, typeHierarchy = hierarchy, listener = listener),
+                generateRTuple(listOf("Integer"), "String"))
+        contract.addRTuple(generateRTuple(listOf("Float"), "String"))
+        contract.addRTuple(generateRTuple(listOf("Rational"), "String"))
+        contract.addRTuple(generateRTuple(listOf("String"), "String"))
+        contract.addRTuple(generateRTuple(listOf("Symbol"), "String"))
+
+        assertEquals(listOf("0:Rational->Numeric", "0:String->Object", "0:Symbol->Object"), listener.widened)
+        assertTrue(SignatureContract.accept(contract, generateRTuple(listOf("Numeric"), "String")))
+        assertTrue(SignatureContract.accept(contract, generateRTuple(listOf("Object"), "String")))
+        assertFalse(SignatureContract.accept(contract, generateRTuple(listOf("Rational"), "String")))
+    }
+
+    @Test
+    fun testTupleIsDroppedWhenLevelIsFull() {
+        val listener = RecordingListener()
+        val contract = contract(ContractSizePolicy(maxNodesPerLevel = 2, listener = listener),
+                generateRTuple(listOf("A0", "B0"), "R"))
+        assertTrue(contract.addRTuple(generateRTuple(listOf("A1", "B0"), "R")))
+        // equal nodes are merged first, so there is room for the next tuple
+        assertTrue(contract.addRTuple(generateRTuple(listOf("A2", "B2"), "R")))
+        assertFalse(contract.addRTuple(generateRTuple(listOf("A3", "B3"), "R")))
+
+        assertEquals(1, listener.dropped.size)
+        assertFalse(SignatureContract.accept(contract, generateRTuple(listOf("A3", "B3"), "R")))
+        assertTrue(SignatureContract.accept(contract, generateRTuple(listOf("A1", "B0"), "R")))
+        assertTrue(SignatureContract.accept(contract, generateRTuple(listOf("A2", "B2"), "R")))
+    }
+
+    @Test
+    fun testFullLevelFollowsWildcard() {
+        val listener = RecordingListener()
+        val contract = contract(ContractSizePolicy(maxTypesPerPosition = 1, maxNodesPerLevel = 2, listener = listener),
+                generateRTuple(listOf("A0", "B0"), "R"))
+        contract.addRTuple(generateRTuple(listOf("A1", "B1"), "R"))
+        assertTrue(contract.addRTuple(generateRTuple(listOf("A2", "B2"), "R")))
+
+        assertTrue(listener.dropped.isEmpty())
+        assertTrue(SignatureContract.accept(contract, generateRTuple(listOf("A5", "B5"), "R")))
+        contract.levels.forEach { assertTrue(it.size <= 2) }
+    }
+}
@@ -0,0 +1,121 @@
+package org.jetbrains.ruby.codeInsight.types.signature
+
+import org.jetbrains.ruby.codeInsight.types.signature.serialization.*
+import org.junit.Test
+import java.io.ByteArrayOutputStream
+import java.io.DataOutputStream
+import java.nio.ByteBuffer
+
+class MappedSignatureContractTest : SignatureContractTestBase() {
+    private fun toBytes(write: (DataOutputStream) -> Unit): ByteArray {
+        val outputStream = ByteArrayOutputStream()
+        DataOutputStream(outputStream).use(write)
+        return outputStream.toByteArray()
+    }
+
+    private fun serialize(contract: SignatureContract) = StringDataOutput().let {
+        contract.serialize(it)
+        it.result.toString()
+    }
+
+    @Test
+    fun testMappedContractAcceptsSameTuples() {
+        val contract = generateComplicatedContract()
+        val mapped = MappedSignatureContract.wrap(ByteBuffer.wrap(toBytes { contract.serialize(it) }))
+
+        val args = listOf(
+                listOf("a1", "c2", "a3", "a4") to "e5",
+                listOf("a1", "b2", "b3", "d4") to "a5",
+                listOf("a1", "b2", "a3", "d4") to "a5",
+                listOf("a1", "c2", "b3", "d4") to "e5",
+                listOf("x1", "c2", "b3", "d4") to "a5")
+        for ((argsTypes, returnType) in args) {
+            val tuple = generateRTuple(argsTypes, returnType)
+            assertEquals(SignatureContract.accept(contract, tuple), SignatureContract.accept(mapped, tuple))
+        }
+        assertEquals(contract.argsInfo, mapped.argsInfo)
+        assertEquals(contract.nodeCount, mapped.nodeCount)
+        assertEquals(SignatureContract.getAllReturnTypes(contract), SignatureContract.getAllReturnTypes(mapped))
+        assertEquals(serialize(contract), serialize(mapped))
+        assertEquals(serialize(contract), serialize(mapped.toRSignatureContract()))
+    }
+
+    @Test
+    fun testReferenceTransitions() {
+        val contract = RSignatureContract(generateRTuple(listOf("A", "A"), "A"))
+        contract.addRTuple(generateRTuple(listOf("A", "B"), "B"))
+        val mapped = MappedSignatureContract.wrap(ByteBuffer.wrap(toBytes { contract.serialize(it) }))
+
+        for (tuple in listOf(generateRTuple(listOf("A", "A"), "A"), generateRTuple(listOf("A", "B"), "B"),
+                generateRTuple(listOf("A", "B"), "A"), generateRTuple(listOf("A", "C"), "C"))) {
+            assertEquals(SignatureContract.accept(contract, tuple), SignatureContract.accept(mapped, tuple))
+        }
+        assertEquals(setOf("A", "B"), SignatureContract.getAllReturnTypes(mapped))
+    }
+
+    @Test
+    fun testContractsAreSlicedFromBuffer() {
+        val first = generateSimpleContract()
+        val second = generateComplicatedContract()
+        val buffer = ByteBuffer.wrap(toBytes {
+            it.writeInt(42)
+            first.serialize(it)
+            second.serialize(it)
+        })
+        buffer.position(4)
+
+        val mappedFirst = SignatureContract(buffer)
+        val mappedSecond = SignatureContract(buffer)
+        assertFalse(buffer.hasRemaining())
+        assertTrue(mappedFirst is MappedSignatureContract)
+        assertEquals(serialize(first), serialize(mappedFirst))
+        assertEquals(serialize(second), serialize(mappedSecond))
+    }
+
+    @Test
+    fun testLegacyContractIsRead() {
+        val legacy = PackedSignatureContract.read(
+                StringDataInput(SignatureTestData.legacySimpleContract.trim().replace('\n', ' ')), TypeNameDictionary())
+        val buffer = ByteBuffer.wrap(toBytes {
+            it.writeInt(legacy.argsInfo.size)
+            legacy.argsInfo.forEach { info -> info.serialize(it) }
+            it.writeInt(legacy.nodeCount)
+            val nodes = ArrayList<SignatureNode>()
+            nodes.add(legacy.startNode)
+            var i = 0
+            while (i < nodes.size) {
+                val transitions = nodes[i++].transitions
+                it.writeInt(transitions.size)
+                transitions.forEach { transition, target ->
+                    if (target !in nodes) {
+                        nodes.add(target)
+                    }
+                    it.writeInt(nodes.indexOf(target))
+                    transition.serialize(it)
+                }
+            }
+        })
+
+        val contract = SignatureContract(buffer)
+        assertFalse(contract is MappedSignatureContract)
+        assertFalse(buffer.hasRemaining())
+        assertEquals(serialize(legacy), serialize(contract))
+    }
+
+    @Test
+    fun testDeserializeSignaturesFromBuffer() {
+        val methods = (0 until 3).map { MethodInfo(ClassInfo(GemInfo("gem", "1.0"), "A"), "m$it", RVisibility.PUBLIC) }
+        val contracts = listOf(generateSimpleContract(), generateComplicatedContract(), generateAddContract())
+        val signatures = methods.zip(contracts).map { (method, contract) -> SignatureInfo(method, contract) }
+
+        val newSignatures = SignatureInfoSerialization.deserialize(ByteBuffer.wrap(toBytes {
+            SignatureInfoSerialization.serialize(signatures, it)
+        }))
+
+        assertEquals(methods, newSignatures.map { it.methodInfo })
+        for ((signature, newSignature) in signatures.zip(newSignatures)) {
+            assertTrue(newSignature.contract is MappedSignatureContract)
+            assertEquals(serialize(signature.contract), serialize(newSignature.contract))
+        }
+    }
+}
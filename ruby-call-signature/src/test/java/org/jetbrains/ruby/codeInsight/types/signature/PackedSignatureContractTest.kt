@@ -0,0 +1,68 @@
+package org.jetbrains.ruby.codeInsight.types.signature
+
+import org.jetbrains.ruby.codeInsight.types.signature.serialization.StringDataInput
+import org.jetbrains.ruby.codeInsight.types.signature.serialization.StringDataOutput
+import org.jetbrains.ruby.codeInsight.types.signature.serialization.serialize
+import org.junit.Test
+
+class PackedSignatureContractTest : SignatureContractTestBase() {
+    private fun serialize(contract: SignatureContract) = StringDataOutput().let {
+        contract.serialize(it)
+        it.result.toString()
+    }
+
+    @Test
+    fun testPackedContractAcceptsSameTuples() {
+        val contract = generateComplicatedContract()
+        val packed = PackedSignatureContract.pack(contract, TypeNameDictionary())
+
+        val args = listOf(
+                listOf("a1", "c2", "a3", "a4") to "e5",
+                listOf("a1", "b2", "b3", "d4") to "a5",
+                listOf("a1", "b2", "a3", "d4") to "a5",
+                listOf("a1", "c2", "b3", "d4") to "e5",
+                listOf("x1", "c2", "b3", "d4") to "a5")
+        for ((argsTypes, returnType) in args) {
+            val tuple = generateRTuple(argsTypes, returnType)
+            assertEquals(SignatureContract.accept(contract, tuple), SignatureContract.accept(packed, tuple))
+        }
+        assertEquals(contract.nodeCount, packed.nodeCount)
+        assertEquals(SignatureContract.getAllReturnTypes(contract), SignatureContract.getAllReturnTypes(packed))
+    }
+
+    @Test
+    fun testReferenceTransitions() {
+        val contract = RSignatureContract(generateRTuple(listOf("A", "A"), "A"))
+        contract.addRTuple(generateRTuple(listOf("A", "B"), "B"))
+        val packed = PackedSignatureContract.pack(contract, TypeNameDictionary())
+
+        for (tuple in listOf(generateRTuple(listOf("A", "A"), "A"), generateRTuple(listOf("A", "B"), "B"),
+                generateRTuple(listOf("A", "B"), "A"), generateRTuple(listOf("A", "C"), "C"))) {
+            assertEquals(SignatureContract.accept(contract, tuple), SignatureContract.accept(packed, tuple))
+        }
+        assertTrue(SignatureContract.accept(packed, generateRTuple(listOf("A", "B"), "B")))
+        assertEquals(setOf("A", "B"), SignatureContract.getAllReturnTypes(packed))
+    }
+
+    @Test
+    fun testReadFromSerialized() {
+        val serialized = serialize(generateSimpleContract())
+        val dictionary = TypeNameDictionary()
+        val packed = PackedSignatureContract.read(StringDataInput(serialized), dictionary)
+
+        assertEquals(serialize(PackedSignatureContract.pack(generateSimpleContract(), dictionary)), serialize(packed))
+        assertTrue(SignatureContract.accept(packed, generateRTuple(listOf("Int1", "Int2", "Int3"), "String4")))
+        assertEquals(7, dictionary.typeNamesCount)
+    }
+
+    @Test
+    fun testMergeIntoPackedContract() {
+        val packed = PackedSignatureContract.pack(generateSimpleContract(), TypeNameDictionary())
+        val tuple = generateRTuple(listOf("Date1", "Int2", "Int3"), "String4")
+
+        val merged = RSignatureContract.mergeMutably(packed, RSignatureContract(tuple))!!
+        assertTrue(SignatureContract.accept(merged, tuple))
+        assertTrue(SignatureContract.accept(merged, generateRTuple(listOf("Int1", "Int2", "Int3"), "String4")))
+        assertFalse(SignatureContract.accept(packed, tuple))
+    }
+}
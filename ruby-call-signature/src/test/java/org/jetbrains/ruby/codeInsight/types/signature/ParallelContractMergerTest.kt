@@ -0,0 +1,70 @@
+package org.jetbrains.ruby.codeInsight.types.signature
+
+import org.junit.Test
+
+class ParallelContractMergerTest : SignatureContractTestBase() {
+    private val params = (0 until 2).map { ParameterInfo("a$it", ParameterInfo.Type.REQ) }
+
+    private fun method(index: Int) = MethodInfo(ClassInfo("A"), "m$index", RVisibility.PUBLIC)
+
+    private fun tuple(method: MethodInfo, a: Int, b: Int, r: Int) =
+            RTuple(method, params, listOf("A$a", "B$b"), "R$r")
+
+    private fun candidates(method: MethodInfo) =
+            (0 until 4).flatMap { a -> (0 until 4).flatMap { b -> (0 until 4).map { r -> tuple(method, a, b, r) } } }
+
+    @Test
+    fun testMergedContractsAcceptExactlyMergedTuples() {
+        val methods = (0 until 50).map { method(it) }
+        val tuples = (0 until 1000).map { tuple(methods[it % methods.size], it % 4, it / 7 % 4, it / 3 % 4) }
+        val signatures = tuples.map { SignatureInfo(it.methodInfo, RSignatureContract(it)) }
+
+        val result = ParallelContractMerger().merge(signatures)
+        assertEquals(methods.size, result.statistics.methodsCount)
+        assertEquals(signatures.size, result.statistics.signaturesCount)
+        assertEquals(methods, result.signatures.map { it.methodInfo })
+
+        for (merged in result.signatures) {
+            // RTuple.equals ignores return type
+            val expected = tuples.filter { it.methodInfo == merged.methodInfo }
+                    .map { it.argsTypes + it.returnTypeName }
+                    .toSet()
+            for (tuple in candidates(merged.methodInfo)) {
+                assertEquals(tuple.argsTypes + tuple.returnTypeName in expected, SignatureContract.accept(merged.contract, tuple))
+            }
+        }
+    }
+
+    @Test
+    fun testLastNumberOfArgumentsWins() {
+        val method = method(0)
+        val oneArgument = RTuple(method, params.take(1), listOf("A0"), "R0")
+        val signatures = listOf(
+                SignatureInfo(method, RSignatureContract(tuple(method, 0, 0, 0))),
+                SignatureInfo(method, RSignatureContract(oneArgument)),
+                SignatureInfo(method, RSignatureContract(tuple(method, 1, 1, 1))))
+
+        val merged = ParallelContractMerger().merge(signatures).signatures.single().contract
+        assertEquals(2, merged.argsInfo.size)
+        // the signature with one argument replaced the first one, as readPacket does
+        assertFalse(SignatureContract.accept(merged, tuple(method, 0, 0, 0)))
+        assertTrue(SignatureContract.accept(merged, tuple(method, 1, 1, 1)))
+    }
+
+    @Test
+    fun testOnlyTrailingSignaturesWithLastNumberOfArgumentsAreMerged() {
+        val method = method(0)
+        val threeArguments = RTuple(method, params + ParameterInfo("a2", ParameterInfo.Type.REQ), listOf("A0", "B0", "C0"), "R0")
+        val signatures = listOf(
+                SignatureInfo(method, RSignatureContract(tuple(method, 0, 0, 0))),
+                SignatureInfo(method, RSignatureContract(threeArguments)),
+                SignatureInfo(method, RSignatureContract(tuple(method, 1, 1, 1))),
+                SignatureInfo(method, RSignatureContract(tuple(method, 2, 2, 2))))
+
+        val merged = ParallelContractMerger().merge(signatures).signatures.single().contract
+        assertEquals(2, merged.argsInfo.size)
+        assertFalse(SignatureContract.accept(merged, tuple(method, 0, 0, 0)))
+        assertTrue(SignatureContract.accept(merged, tuple(method, 1, 1, 1)))
+        assertTrue(SignatureContract.accept(merged, tuple(method, 2, 2, 2)))
+    }
+}
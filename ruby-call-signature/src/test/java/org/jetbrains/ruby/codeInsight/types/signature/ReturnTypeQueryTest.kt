@@ -0,0 +1,51 @@
+package org.jetbrains.ruby.codeInsight.types.signature
+
+import org.junit.Test
+
+class ReturnTypeQueryTest : SignatureContractTestBase() {
+
+    @Test
+    fun testAllReturnTypes() {
+        assertEquals(setOf("a5", "e5"), SignatureContract.getAllReturnTypes(generateComplicatedContract()))
+        assertEquals(setOf("String4"), SignatureContract.getAllReturnTypes(generateSimpleContract()))
+    }
+
+    @Test
+    fun testReturnTypesByPrefix() {
+        val contract = generateComplicatedContract()
+
+        assertEquals(setOf("a5", "e5"), SignatureContract.getReturnTypes(contract, listOf("a1")))
+        assertEquals(setOf("e5"), SignatureContract.getReturnTypes(contract, listOf("a1", "b2", "a3", "a4")))
+        assertEquals(setOf("a5"), SignatureContract.getReturnTypes(contract, listOf("a1", "c2", "b3", "d4")))
+        assertEquals(emptySet<String>(), SignatureContract.getReturnTypes(contract, listOf("x1")))
+    }
+
+    @Test
+    fun testReferencedReturnTypes() {
+        val contract = RSignatureContract(generateRTuple(listOf("A", "A"), "A"))
+        contract.mergeWith(RSignatureContract(generateRTuple(listOf("A", "B"), "B")))
+        contract.mergeWith(RSignatureContract(generateRTuple(listOf("C", "D"), "C")))
+
+        assertEquals(setOf("A", "B", "C"), SignatureContract.getAllReturnTypes(contract))
+        assertEquals(setOf("A", "B"), SignatureContract.getReturnTypes(contract, listOf("A")))
+        assertEquals(setOf("B"), SignatureContract.getReturnTypes(contract, listOf("A", "B")))
+        assertEquals(setOf("C"), SignatureContract.getReturnTypes(contract, listOf("C")))
+
+        val packed = PackedSignatureContract.pack(contract, TypeNameDictionary())
+        assertEquals(setOf("A", "B", "C"), SignatureContract.getAllReturnTypes(packed))
+        assertEquals(setOf("B"), SignatureContract.getReturnTypes(packed, listOf("A", "B")))
+    }
+
+    @Test
+    fun testQueryIsRebuiltAfterChange() {
+        val contract = generateSimpleContract()
+        val query = SignatureContract.getReturnTypeQuery(contract)
+        assertSame(query, SignatureContract.getReturnTypeQuery(contract))
+
+        contract.addRTuple(generateRTuple(listOf("Int1", "Int2", "Int3"), "Date4"))
+        assertEquals(setOf("String4", "Date4"), SignatureContract.getAllReturnTypes(contract))
+
+        contract.mergeWith(RSignatureContract(generateRTuple(listOf("Int1", "Int2", "Int3"), "Float4")))
+        assertEquals(setOf("String4", "Date4", "Float4"), SignatureContract.getAllReturnTypes(contract))
+    }
+}
@@ -51,6 +51,20 @@ class SignatureContractMergeTest : SignatureContractTestBase() {
 
         checkSerialization(contract, MergeTestData.testAddResult)
     }
+
+    @Test
+    fun testMergeOfManyPolymorphicTuples() {
+        val tuples = (0 until 300).map { generateRTuple(listOf("A$it", "B${it % 3}", "C"), "R${it % 2}") }
+
+        val contract = RSignatureContract(tuples.first())
+        tuples.drop(1).forEach { contract.mergeWith(RSignatureContract(it)) }
+
+        tuples.forEach { assertTrue(SignatureContract.accept(contract, it)) }
+        assertFalse(SignatureContract.accept(contract, generateRTuple(listOf("A0", "B1", "C"), "R0")))
+        // Nodes after A0..A299 are distinguished only by (B, R) pairs which are determined by `it % 6`,
+        // nodes after B and C only by R
+        assertEquals(listOf(1, 6, 2, 2, 1), contract.levels.map { it.size })
+    }
 }
 
 
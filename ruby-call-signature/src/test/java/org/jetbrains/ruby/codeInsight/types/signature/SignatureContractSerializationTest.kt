@@ -60,6 +60,14 @@ class SignatureContractSerializationTest : SignatureContractTestBase() {
         doTest(SignatureTestData.simpleContract)
     }
 
+    fun testLegacyFormat() {
+        val legacyInput = SignatureTestData.legacySimpleContract.trim().replace('\n', ' ')
+        val expected = SignatureTestData.simpleContract.trim().replace('\n', ' ')
+
+        checkSerialization(SignatureContract(StringDataInput(legacyInput)), expected)
+        checkSerialization(PackedSignatureContract.read(StringDataInput(legacyInput), TypeNameDictionary()), expected)
+    }
+
     @Test
     fun testSerializationList() {
         val (contractsTestData, signatures) = generateSignatures()
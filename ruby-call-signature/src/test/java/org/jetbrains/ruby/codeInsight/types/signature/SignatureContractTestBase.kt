@@ -137,6 +137,30 @@ abstract class SignatureContractTestBase : TestCase() {
 
     object SignatureTestData {
         val simpleContract = """
+-1
+4
+a
+b
+c
+d
+1
+arg 0
+4
+3
+1 0 0
+2 0 1
+2 0 2
+1
+3 0 3
+1
+3 1 0
+0
+            """
+
+        /**
+         * [simpleContract] written without type names section
+         */
+        val legacySimpleContract = """
 1 arg 0
 4
 3
@@ -151,10 +175,13 @@ abstract class SignatureContractTestBase : TestCase() {
             """
 
         val trivialContract = """
+-1
+1
+a
 0
 2
 1
-1 0 a
+1 0 0
 0
 """
 
@@ -164,49 +191,77 @@ abstract class SignatureContractTestBase : TestCase() {
 
     object MergeTestData {
         val testAddResult = """
+-1
+6
+String1
+Int2
+Date2
+String2
+String3
+String4
 3
 a0 0
 a1 0
 a2 0
 5
 1
-1 0 String1
+1 0 0
 3
-2 0 Int2
-2 0 Date2
-2 0 String2
+2 0 1
+2 0 2
+2 0 3
 1
-3 0 String3
+3 0 4
 1
-4 0 String4
+4 0 5
 0
             """
         val testSimpleMerge = """
+-1
+7
+Int1
+String1
+Int2
+String2
+Int3
+String3
+String4
 3
 a0 0
 a1 0
 a2 0
 7
 2
-1 0 Int1
-2 0 String1
+1 0 0
+2 0 1
 2
-3 0 Int2
-4 0 String2
+3 0 2
+4 0 3
 2
-4 0 Int2
-4 0 String2
+4 0 2
+4 0 3
 2
-5 0 Int3
-5 0 String3
+5 0 4
+5 0 5
 1
-5 0 String3
+5 0 5
 1
-6 0 String4
+6 0 6
 0
             """
 
         val testComplicatedMerge = """
+-1
+9
+a1
+b2
+c2
+b3
+a3
+d4
+a4
+a5
+e5
 4
 a0 0
 a1 0
@@ -214,34 +269,41 @@ a2 0
 a3 0
 8
 1
-1 0 a1
+1 0 0
 2
-2 0 b2
-2 0 c2
+2 0 1
+2 0 2
 2
-3 0 b3
-4 0 a3
+3 0 3
+4 0 4
 2
-5 0 d4
-6 0 a4
+5 0 5
+6 0 6
 1
-6 0 a4
+6 0 6
 1
-7 0 a5
+7 0 7
 1
-7 0 e5
+7 0 8
 0
             """
         val testMultipleReturnTypeMerge = """
+-1
+4
+a1
+b2
+d2
+c2
 1
 a0 0
 3
 1
-1 0 a1
+1 0 0
 3
-2 0 b2
-2 0 d2
-2 0 c2
-0            """
+2 0 1
+2 0 2
+2 0 3
+0
+            """
     }
 }
@@ -4,8 +4,8 @@ import org.jetbrains.exposed.dao.EntityHook
 import org.jetbrains.exposed.sql.transactions.TransactionManager
 import org.jetbrains.ruby.codeInsight.types.signature.SignatureContract
 import org.jetbrains.ruby.codeInsight.types.storage.server.impl.SignatureContractRow
-import java.io.DataInputStream
 import java.io.DataOutputStream
+import java.nio.ByteBuffer
 import java.sql.Blob
 import java.util.concurrent.CopyOnWriteArrayList
 import kotlin.reflect.KProperty
@@ -30,7 +30,7 @@ class BlobDeserializer {
 
         val blob = signatureContractRow.contractRaw
         try {
-            val result = SignatureContract(DataInputStream(blob.binaryStream))
+            val result = readFromBlob(blob)
             cachedContract = result
             return result
         } finally {
@@ -48,6 +48,11 @@ class BlobDeserializer {
     }
 }
 
+/**
+ * Bytes of [blob] are read at once and the contract is mapped from them, its nodes are parsed only when it is queried
+ */
+fun readFromBlob(blob: Blob): SignatureContract = SignatureContract(ByteBuffer.wrap(blob.getBytes(1, blob.length().toInt())))
+
 object BlobSerializer {
     fun writeToBlob(signatureContract: SignatureContract, blob: Blob): Blob {
         val binaryStream = blob.setBinaryStream(1)
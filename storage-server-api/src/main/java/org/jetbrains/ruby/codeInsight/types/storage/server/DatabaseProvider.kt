@@ -59,7 +59,10 @@ object DatabaseProvider {
     @JvmOverloads
     fun createAllDatabases(db: Database? = null) {
         transaction(db ?: defaultDatabase) {
-            SchemaUtils.create(GemInfoTable, ClassInfoTable, MethodInfoTable, SignatureTable, CallInfoTable)
+            // also adds columns which are missing in databases created by older versions
+            SchemaUtils.createMissingTablesAndColumns(GemInfoTable, ClassInfoTable, MethodInfoTable, SignatureTable, CallInfoTable)
+            ClassInfoTable.fillMissingReversedFqns()
+            GemInfoTable.invalidateRowIdCaches()
         }
     }
 
@@ -67,6 +70,7 @@ object DatabaseProvider {
     fun dropAllDatabases(db: Database? = null) {
         transaction(db ?: defaultDatabase) {
             SchemaUtils.drop(GemInfoTable, ClassInfoTable, MethodInfoTable, SignatureTable, CallInfoTable)
+            GemInfoTable.invalidateRowIdCaches()
         }
     }
 
@@ -4,7 +4,9 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.jetbrains.ruby.codeInsight.types.signature.*;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 
 /**
  * <p>An interface that allows for transparent working with the signatures storage.</p>
@@ -54,4 +56,30 @@ public interface RSignatureProvider {
 
     void putSignature(@NotNull SignatureInfo signatureInfo) throws StorageException;
 
+    /**
+     * Same as {@link #getSignature(MethodInfo)} for every method, implementations may read them at once
+     *
+     * @return signatures of the methods which have them
+     */
+    @NotNull
+    default Collection<SignatureInfo> getSignatures(@NotNull Collection<MethodInfo> methods) throws StorageException {
+        final List<SignatureInfo> result = new ArrayList<>();
+        for (final MethodInfo method : methods) {
+            final SignatureInfo signature = getSignature(method);
+            if (signature != null) {
+                result.add(signature);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Same as {@link #putSignature(SignatureInfo)} for every signature, implementations may write them at once
+     */
+    default void putSignatures(@NotNull Collection<SignatureInfo> signatureInfos) throws StorageException {
+        for (final SignatureInfo signatureInfo : signatureInfos) {
+            putSignature(signatureInfo);
+        }
+    }
+
 }
@@ -4,7 +4,11 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.jetbrains.ruby.codeInsight.types.signature.*;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
 
 public interface RSignatureStorage<T extends RSignatureStorage.Packet> extends RSignatureProvider {
 
@@ -13,16 +17,40 @@ public interface RSignatureStorage<T extends RSignatureStorage.Packet> extends R
             final MethodInfo methodInfo = signatureInfo.getMethodInfo();
             final SignatureInfo oldSignature = getSignature(methodInfo);
 
-            RSignatureContract contract;
+            // contracts are merged into a new one, so neither of them is locked or changed
+            PersistentSignatureContract contract;
             if (oldSignature != null &&
-                    (contract = RSignatureContract.mergeMutably(oldSignature.getContract(), signatureInfo.getContract())) != null) {
-                putSignature(SignatureInfoKt.SignatureInfo(methodInfo, contract));
+                    (contract = PersistentSignatureContract.of(oldSignature.getContract())
+                            .merge(signatureInfo.getContract())) != null) {
+                putSignature(SignatureInfoKt.SignatureInfo(methodInfo, contract.toRSignatureContract()));
             } else {
                 putSignature(signatureInfo);
             }
         }
     }
 
+    /**
+     * Bulk version of {@link #readPacket}: signatures of all packets and the stored signatures of their methods
+     * are merged in parallel by {@link ParallelContractMerger} and written back at once
+     */
+    @NotNull
+    default ParallelContractMerger.Statistics readPackets(@NotNull Collection<T> packets) throws StorageException {
+        final List<SignatureInfo> incoming = new ArrayList<>();
+        final Set<MethodInfo> methods = new LinkedHashSet<>();
+        for (final T packet : packets) {
+            for (final SignatureInfo signatureInfo : packet.getSignatures()) {
+                incoming.add(signatureInfo);
+                methods.add(signatureInfo.getMethodInfo());
+            }
+        }
+
+        final List<SignatureInfo> signatures = new ArrayList<>(getSignatures(methods));
+        signatures.addAll(incoming);
+        final ParallelContractMerger.Result result = new ParallelContractMerger().merge(signatures);
+        putSignatures(result.getSignatures());
+        return result.getStatistics();
+    }
+
     @NotNull
     Collection<T> formPackets(@Nullable ExportDescriptor descriptor) throws StorageException;
 
@@ -0,0 +1,115 @@
+package org.jetbrains.ruby.codeInsight.types.storage.server.impl
+
+import org.jetbrains.exposed.dao.EntityID
+import org.jetbrains.exposed.sql.ResultRow
+import org.jetbrains.exposed.sql.select
+import org.jetbrains.exposed.sql.transactions.transaction
+import org.jetbrains.ruby.codeInsight.types.signature.*
+
+/**
+ * Builds contracts straight from [CallInfoTable] rows. Rows are read by one query ordered by method, so
+ * contract of a method is folded from consecutive rows of the cursor and neither [CallInfoRow] entities nor
+ * [CallInfo]s are created.
+ *
+ * Only rows with id greater than the given high-water mark are read: pass [Result.highWaterMark] of the previous
+ * build to the next one to fold only call infos registered since then (see [RSignatureProviderImpl.updateSignaturesFromCallInfos]).
+ *
+ * Rows don't know modifiers of parameters, so unnamed arguments become [ParameterInfo.Type.REQ] parameters
+ * and named ones become [ParameterInfo.Type.KEY] parameters following the unnamed ones.
+ */
+object CallInfoContractBuilder {
+    /**
+     * @param signatures one signature per method in order of method ids
+     * @param highWaterMark maximal id of the rows read or the initial mark if there were no rows
+     */
+    class Result(val signatures: List<SignatureInfo>, val rowsCount: Int, val highWaterMark: Int)
+
+    /**
+     * **Call this function only inside [transaction] block**
+     */
+    fun build(sinceId: Int = 0): Result {
+        val folder = Folder()
+        var highWaterMark = sinceId
+        var rowsCount = 0
+        CallInfoTable.slice(CallInfoTable.id, CallInfoTable.methodInfoId,
+                CallInfoTable.unnamedArgsTypes, CallInfoTable.namedArgsTypes, CallInfoTable.returnType)
+                .select { CallInfoTable.id greater EntityID(sinceId, CallInfoTable) }
+                .orderBy(CallInfoTable.methodInfoId to true, CallInfoTable.id to true)
+                .forEach { row ->
+                    folder.add(row)
+                    highWaterMark = Math.max(highWaterMark, row[CallInfoTable.id].value)
+                    rowsCount++
+                }
+        return Result(folder.finish(), rowsCount, highWaterMark)
+    }
+
+    private class Folder {
+        private val signatures = ArrayList<SignatureInfo>()
+        private var methodId: EntityID<Int>? = null
+        private var methodInfo: MethodInfo? = null
+        private var contract: RSignatureContract? = null
+
+        // reused for every row, tuples don't keep them
+        private val names = ArrayList<String>()
+        private val types = ArrayList<String>()
+
+        fun add(row: ResultRow) {
+            val rowMethodId = row[CallInfoTable.methodInfoId]
+            if (rowMethodId != methodId) {
+                flush()
+                methodId = rowMethodId
+                methodInfo = MethodInfoRow[rowMethodId].copy()
+            }
+
+            names.clear()
+            types.clear()
+            val unnamedCount = parseArguments(row[CallInfoTable.unnamedArgsTypes])
+            parseArguments(row[CallInfoTable.namedArgsTypes])
+            val returnType = TypeNameDictionary.SHARED.intern(row[CallInfoTable.returnType])
+
+            val currentContract = contract
+            if (currentContract != null && currentContract.argsInfo.size == types.size) {
+                currentContract.addRTuple(RTuple(methodInfo!!, currentContract.argsInfo, ArrayList(types), returnType))
+            } else {
+                // the later call with another number of arguments replaces the earlier ones, as in RSignatureStorage.readPacket
+                val argsInfo = names.mapIndexed { i, name ->
+                    ParameterInfo(name, if (i < unnamedCount) ParameterInfo.Type.REQ else ParameterInfo.Type.KEY)
+                }
+                contract = RSignatureContract(RTuple(methodInfo!!, argsInfo, ArrayList(types), returnType))
+            }
+        }
+
+        fun finish(): List<SignatureInfo> {
+            flush()
+            return signatures
+        }
+
+        private fun flush() {
+            val currentContract = contract ?: return
+            currentContract.minimize()
+            signatures.add(SignatureInfo(methodInfo!!, currentContract))
+            contract = null
+        }
+
+        /**
+         * Appends names and types of arguments in the raw format of [CallInfo.unnamedArgumentsTypesJoinToRawString]
+         * @return number of the arguments
+         */
+        private fun parseArguments(raw: String): Int {
+            if (raw.isEmpty()) {
+                return 0
+            }
+            var count = 0
+            var start = 0
+            while (start <= raw.length) {
+                val end = raw.indexOf(ARGUMENTS_TYPES_SEPARATOR, start).let { if (it < 0) raw.length else it }
+                val separator = raw.indexOf(ArgumentNameAndType.NAME_AND_TYPE_SEPARATOR, start)
+                names.add(raw.substring(start, separator))
+                types.add(TypeNameDictionary.SHARED.intern(raw.substring(separator + 1, end)))
+                count++
+                start = end + 1
+            }
+            return count
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package org.jetbrains.ruby.codeInsight.types.storage.server.impl
+
+import org.jetbrains.exposed.dao.EntityID
+import org.jetbrains.exposed.sql.*
+import org.jetbrains.exposed.sql.transactions.transaction
+import org.jetbrains.ruby.codeInsight.types.signature.*
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * Read-optimized in-memory copy of [CallInfoTable]: class → method name → call infos of the method, so
+ * [getRegisteredCallInfos] never goes to the database. Call infos are kept as raw column values with equal
+ * strings shared and are decoded on demand.
+ *
+ * Rows are read in order of ids, so the index catches up with rows inserted since the previous read (see [update]).
+ * As [CallInfoTable.insertInfosIfNotContains] does, a call info with another number of unnamed arguments replaces
+ * the call infos of the method read before. Other deletions (e.g. [CallInfoTable.deleteAllInfoRelatedTo]) aren't
+ * tracked, a new index must be loaded after them.
+ *
+ * Reading is thread safe and may run concurrently with [update].
+ */
+class CallInfoIndex {
+    companion object {
+        /**
+         * **Call this function only inside [transaction] block**
+         */
+        fun load(): CallInfoIndex = CallInfoIndex().apply { update() }
+
+        private const val NAMESPACE_SEPARATOR = "::"
+    }
+
+    /**
+     * @param rows unnamed arguments, named arguments and return type of every call info as stored in [CallInfoTable]
+     */
+    private class MethodCallInfos(val methodId: Int,
+                                  val methodInfo: MethodInfo,
+                                  val numberOfUnnamedArguments: Int,
+                                  val rows: Array<String>)
+
+    private class IndexedClass(val classInfo: ClassInfo) {
+        val methods = ConcurrentHashMap<String, MethodCallInfos>()
+    }
+
+    /**
+     * Row id in [ClassInfoTable] → class
+     */
+    private val classes = ConcurrentHashMap<Int, IndexedClass>()
+
+    /**
+     * Last part of FQN → classes, for lookups by partially qualified names
+     */
+    private val classesBySimpleName = ConcurrentHashMap<String, MutableSet<IndexedClass>>()
+
+    /**
+     * Shares equal strings of different rows, used only by [update]
+     */
+    private val strings = HashMap<String, String>()
+
+    /**
+     * Maximal id of the rows read
+     */
+    @Volatile
+    var highWaterMark: Int = 0
+        private set
+
+    @Volatile
+    var callInfosCount: Int = 0
+        private set
+
+    /**
+     * Reads rows inserted since the previous call. **Call this function only inside [transaction] block**
+     *
+     * @return number of the rows read
+     */
+    @Synchronized
+    fun update(): Int {
+        var rowsCount = 0
+        (CallInfoTable innerJoin MethodInfoTable innerJoin ClassInfoTable leftJoin GemInfoTable)
+                .slice(CallInfoTable.id, CallInfoTable.methodInfoId, CallInfoTable.numberOfUnnamedArguments,
+                        CallInfoTable.unnamedArgsTypes, CallInfoTable.namedArgsTypes, CallInfoTable.returnType,
+                        MethodInfoTable.name, MethodInfoTable.visibility, MethodInfoTable.locationFile,
+                        MethodInfoTable.locationLineno, MethodInfoTable.classInfo, ClassInfoTable.fqn,
+                        ClassInfoTable.gemInfo, GemInfoTable.name, GemInfoTable.version)
+                .select { CallInfoTable.id greater EntityID(highWaterMark, CallInfoTable) }
+                .orderBy(CallInfoTable.id to true)
+                .forEach { row ->
+                    add(row)
+                    highWaterMark = Math.max(highWaterMark, row[CallInfoTable.id].value)
+                    rowsCount++
+                }
+        return rowsCount
+    }
+
+    /**
+     * Same as [RSignatureProviderImpl.getRegisteredCallInfos]: the class is matched by the end of its FQN
+     * and by the gem if it is given, of several matching methods the first registered one is taken.
+     * Unlike [ClassInfoTable.findRowId], the last part of [methodInfo]'s FQN must be a whole class name
+     */
+    fun getRegisteredCallInfos(methodInfo: MethodInfo): List<CallInfo> {
+        val fqn = methodInfo.classInfo.classFQN
+        val gemInfo = methodInfo.classInfo.gemInfo
+        val callInfos = classesBySimpleName[fqn.substringAfterLast(NAMESPACE_SEPARATOR)].orEmpty()
+                .asSequence()
+                .filter { it.classInfo.classFQN.endsWith(fqn) && (gemInfo == null || it.classInfo.gemInfo?.let {
+                    gem -> gem.name == gemInfo.name && gem.version == gemInfo.version } == true) }
+                .mapNotNull { it.methods[methodInfo.name] }
+                .minBy { it.methodId }
+                ?: return emptyList()
+
+        val rows = callInfos.rows
+        return (0 until rows.size / 3).map {
+            CallInfoImpl(callInfos.methodInfo, parseArguments(rows[3 * it + 1]), parseArguments(rows[3 * it]),
+                    TypeNameDictionary.SHARED.intern(rows[3 * it + 2]))
+        }
+    }
+
+    private fun add(row: ResultRow) {
+        val indexedClass = classes.getOrPut(row[MethodInfoTable.classInfo].value) {
+            val gemInfo = row[ClassInfoTable.gemInfo]?.let { GemInfo(row[GemInfoTable.name], row[GemInfoTable.version]) }
+            val fqn = row[ClassInfoTable.fqn]
+            IndexedClass(ClassInfo(gemInfo, fqn)).also {
+                classesBySimpleName.getOrPut(fqn.substringAfterLast(NAMESPACE_SEPARATOR)) { ConcurrentHashMap.newKeySet() }.add(it)
+            }
+        }
+        val name = row[MethodInfoTable.name]
+        val existing = indexedClass.methods[name]
+        val numberOfUnnamedArguments = row[CallInfoTable.numberOfUnnamedArguments]
+        val keptRows = existing?.takeIf { it.numberOfUnnamedArguments == numberOfUnnamedArguments }?.rows ?: emptyArray()
+        callInfosCount += keptRows.size / 3 + 1 - (existing?.rows?.size ?: 0) / 3
+        indexedClass.methods[name] = MethodCallInfos(row[CallInfoTable.methodInfoId].value,
+                existing?.methodInfo ?: createMethodInfo(indexedClass.classInfo, row), numberOfUnnamedArguments,
+                keptRows + arrayOf(share(row[CallInfoTable.unnamedArgsTypes]), share(row[CallInfoTable.namedArgsTypes]),
+                        share(row[CallInfoTable.returnType])))
+    }
+
+    private fun createMethodInfo(classInfo: ClassInfo, row: ResultRow): MethodInfo {
+        val location = row[MethodInfoTable.locationFile]?.let { Location(it, row[MethodInfoTable.locationLineno]) }
+        return MethodInfo(classInfo, row[MethodInfoTable.name], row[MethodInfoTable.visibility], location)
+    }
+
+    private fun share(string: String): String = strings.getOrPut(string) { string }
+}
+
+/**
+ * @param raw arguments in the format of [CallInfo.unnamedArgumentsTypesJoinToRawString]
+ */
+private fun parseArguments(raw: String): List<ArgumentNameAndType> {
+    if (raw.isEmpty()) {
+        return emptyList()
+    }
+    return raw.split(ARGUMENTS_TYPES_SEPARATOR).map {
+        val (name, type) = it.split(ArgumentNameAndType.NAME_AND_TYPE_SEPARATOR)
+        ArgumentNameAndType(name, TypeNameDictionary.SHARED.intern(type))
+    }
+}
@@ -4,6 +4,7 @@ import org.jetbrains.exposed.dao.EntityID
 import org.jetbrains.exposed.dao.IntEntity
 import org.jetbrains.exposed.dao.IntIdTable
 import org.jetbrains.exposed.sql.*
+import org.jetbrains.exposed.sql.deleteWhere as exposedDeleteWhere
 import org.jetbrains.exposed.sql.statements.InsertStatement
 import org.jetbrains.exposed.sql.statements.UpdateBuilder
 import org.jetbrains.exposed.sql.statements.UpdateStatement
@@ -18,6 +19,26 @@ import org.jetbrains.exposed.sql.transactions.transaction
  */
 abstract class IntIdTableWithPossibleDependency<in T, out F>(
         private val dependency: IntIdTableWithPossibleDependency<F, *>?) : IntIdTable() {
+    /**
+     * Tables which have `this` table as [dependency]
+     */
+    private val dependents = ArrayList<IntIdTableWithPossibleDependency<*, *>>()
+
+    init {
+        dependency?.dependents?.add(this)
+    }
+
+    /**
+     * Cache of [findRowId] results. `null` if this table doesn't cache ids (see [createCacheKey])
+     */
+    open val rowIdCache: RowIdCache? = null
+
+    /**
+     * Search of rows for a whole batch of infos with one query. `null` if this table doesn't support it,
+     * then [insertInfosIfNotContains] searches rows one by one
+     */
+    protected open val batchSearch: BatchSearch<T>? = null
+
     /**
      * Find id of row where [info] is located. **Call this function only inside [transaction] block**
      */
@@ -30,9 +51,38 @@ abstract class IntIdTableWithPossibleDependency<in T, out F>(
             return null
         }
 
-        return traverseDependencies(info).let {
+        val cacheKey = rowIdCache?.let { createCacheKey(info) }
+        if (cacheKey != null) {
+            rowIdCache?.get(cacheKey)?.let { return it }
+        }
+
+        val ret = traverseDependencies(info).let {
             it.joinedWithDependencies.select { it.searchCriteria }
         }.firstOrNull()?.get(id)
+
+        if (cacheKey != null && ret != null) {
+            rowIdCache?.put(cacheKey, ret)
+        }
+        return ret
+    }
+
+    /**
+     * Same as [org.jetbrains.exposed.sql.deleteWhere] but also invalidates [rowIdCache] of this table and of tables
+     * which depend on it, because their rows can be deleted by cascade. **Call this function only inside [transaction] block**
+     */
+    open fun deleteWhere(op: SqlExpressionBuilder.() -> Op<Boolean>): Int {
+        invalidateRowIdCaches()
+        return exposedDeleteWhere(op = op)
+    }
+
+    /**
+     * Invalidates [rowIdCache] of this table and of tables which depend on it.
+     * Must be called after rows of this table are removed or changed bypassing this class.
+     * **Call this function only inside [transaction] block**
+     */
+    fun invalidateRowIdCaches() {
+        rowIdCache?.invalidate()
+        dependents.forEach { it.invalidateRowIdCaches() }
     }
 
     /**
@@ -58,10 +108,124 @@ abstract class IntIdTableWithPossibleDependency<in T, out F>(
                 writeInfoToBuilder(insertStatementBuilder, info, dependencyId)
             }
         }
+        rowIdCache?.let { cache -> createCacheKey(info)?.let { cache.putWritten(it, ret) } }
         removeInvalidInfo(info)
         return ret
     }
 
+    /**
+     * Batch version of [insertInfoIfNotContains]. Result is the same as if [insertInfoIfNotContains] was called for
+     * every info in order, but dependencies of the whole batch are inserted by one [insertInfosIfNotContains] call on
+     * [dependency], existing rows are searched by one query (see [batchSearch]) and new rows are written
+     * with one batch insert. **Call this function only inside [transaction] block**
+     *
+     * @return ids of rows in the same order as [infos]. `null` for infos which weren't written
+     */
+    open fun insertInfosIfNotContains(infos: List<T>): List<EntityID<Int>?> {
+        val ret = arrayOfNulls<EntityID<Int>>(infos.size)
+        val dependencyIds = insertDependencies(infos)
+        val validIndices = infos.indices.filter { validateInfoBeforeWritingToBuilder(infos[it], dependencyIds[it]) }
+        if (validIndices.isEmpty()) {
+            return ret.asList()
+        }
+
+        // rows of infos known to rowIdCache are read by primary key, only the rest is searched
+        val cachedIds = validIndices.map { i -> rowIdCache?.let { cache -> createCacheKey(infos[i])?.let { cache.get(it) } } }
+        val distinctCachedIds = cachedIds.filterNotNull().distinct()
+        val cachedRows: Map<EntityID<Int>, ResultRow> = if (distinctCachedIds.isEmpty()) emptyMap() else select { id inList distinctCachedIds }.associateBy { it[id] }
+        val notCachedIndices = validIndices.filterIndexed { k, _ -> cachedIds[k]?.let { cachedRows[it] } == null }
+        val notCachedRows = findRows(notCachedIndices.map { infos[it] }, notCachedIndices.map { dependencyIds[it] }).iterator()
+        // When several infos refer to the same row the last one wins, as if they were written one by one
+        val rowUpdates = LinkedHashMap<EntityID<Int>, Pair<ResultRow, Int>>()
+        val lastInsertOfKey = LinkedHashMap<Any?, Int>()
+        val indicesOfKey = HashMap<Any?, MutableList<Int>>()
+        validIndices.forEachIndexed { k, i ->
+            val row = cachedIds[k]?.let { cachedRows[it] } ?: notCachedRows.next()
+            if (row != null) {
+                ret[i] = row[id]
+                rowUpdates[row[id]] = Pair(row, i)
+                if (cachedIds[k] == null) {
+                    rowIdCache?.let { cache -> createCacheKey(infos[i])?.let { cache.put(it, row[id]) } }
+                }
+            } else {
+                val key = createBatchKey(infos[i], dependencyIds[i])
+                lastInsertOfKey[key] = i
+                indicesOfKey.getOrPut(key) { ArrayList() }.add(i)
+            }
+        }
+
+        for ((rowId, rowUpdate) in rowUpdates) {
+            val (row, i) = rowUpdate
+            if (!isRowUpToDate(row, infos[i], dependencyIds[i])) {
+                update(where = { id eq rowId }) { updateStatementBuilder: UpdateStatement ->
+                    writeInfoToBuilder(updateStatementBuilder, infos[i], dependencyIds[i])
+                }
+                rowIdCache?.let { cache -> createCacheKey(infos[i])?.let { cache.putWritten(it, rowId) } }
+            }
+        }
+
+        if (lastInsertOfKey.isNotEmpty()) {
+            val keys = lastInsertOfKey.keys.toList()
+            val insertedIds = batchInsert(keys) { key ->
+                val i = lastInsertOfKey.getValue(key)
+                writeInfoToBuilder(this, infos[i], dependencyIds[i])
+            }.map { it[id] }
+            keys.forEachIndexed { k, key ->
+                indicesOfKey.getValue(key).forEach { i ->
+                    ret[i] = insertedIds[k]
+                    rowIdCache?.let { cache -> createCacheKey(infos[i])?.let { cache.put(it, insertedIds[k]) } }
+                }
+            }
+        }
+
+        validIndices.forEach { removeInvalidInfo(infos[it]) }
+        return ret.asList()
+    }
+
+    /**
+     * Inserts dependencies of [infos] by one [insertInfosIfNotContains] call on [dependency]
+     * @return ids of dependency rows in the same order as [infos]
+     */
+    protected fun insertDependencies(infos: List<T>): List<EntityID<Int>?> {
+        val dependency = dependency ?: return infos.map { null }
+        val dependencyInfos = infos.map { convertInfoToDependencyFormant(it) }
+        val distinctDependencyInfos = dependencyInfos.filterNotNull().distinct()
+        val idByDependencyInfo = distinctDependencyInfos.zip(dependency.insertInfosIfNotContains(distinctDependencyInfos)).toMap()
+        return dependencyInfos.map { it?.let { idByDependencyInfo[it] } }
+    }
+
+    /**
+     * Finds rows corresponding to [infos] with one query if table supports it (see [batchSearch]).
+     * Otherwise falls back to one query per info
+     */
+    private fun findRows(infos: List<T>, dependencyIds: List<EntityID<Int>?>): List<ResultRow?> {
+        if (infos.isEmpty()) {
+            return emptyList()
+        }
+        val batchSearch = batchSearch ?: return infos.map { info ->
+            traverseDependencies(info).let { it.joinedWithDependencies.select { it.searchCriteria } }.firstOrNull()
+        }
+        val candidates = select(with(batchSearch) { SqlExpressionBuilder.createCriteria(infos, dependencyIds) }).toList()
+        return infos.mapIndexed { i, info -> candidates.firstOrNull { batchSearch.matchesRow(it, info, dependencyIds[i]) } }
+    }
+
+    /**
+     * @return true if writing [info] into [row] won't change it, so update can be skipped
+     */
+    protected open fun isRowUpToDate(row: ResultRow, info: T, dependencyId: EntityID<Int>?): Boolean = false
+
+    /**
+     * New infos with equal keys are written into one row (the same way as the second [insertInfoIfNotContains]
+     * call would find the row written by the first one)
+     */
+    protected open fun createBatchKey(info: T, dependencyId: EntityID<Int>?): Any? = Pair(info, dependencyId)
+
+    /**
+     * Key for [rowIdCache]. Keys must be equal iff [createSearchCriteriaForInfo] joined with dependencies finds
+     * the same rows for infos
+     */
+    protected open fun createCacheKey(info: T): Any? = null
+
     protected open fun removeInvalidInfo(validInfo: T) { }
     protected open fun validateInfo(info: T): Boolean = true
     protected open fun validateInfoBeforeWritingToBuilder(info: T, dependencyId: EntityID<Int>?) = validateInfo(info)
@@ -85,6 +249,22 @@ abstract class IntIdTableWithPossibleDependency<in T, out F>(
     }
 }
 
+/**
+ * Search of rows corresponding to a batch of infos with one query (see [IntIdTableWithPossibleDependency.batchSearch])
+ */
+interface BatchSearch<in T> {
+    /**
+     * Creates criteria which selects (possibly superset of) rows of the table corresponding to [infos].
+     * Rows are then picked by [matchesRow]
+     */
+    fun SqlExpressionBuilder.createCriteria(infos: List<T>, dependencyIds: List<EntityID<Int>?>): Op<Boolean>
+
+    /**
+     * In memory analogue of [IntIdTableWithPossibleDependency.createSearchCriteriaForInfo] joined with dependencies
+     */
+    fun matchesRow(row: ResultRow, info: T, dependencyId: EntityID<Int>?): Boolean
+}
+
 /**
  * @see IntIdTableWithPossibleDependency
  * @see IntIdTableWithDependency
@@ -1,7 +1,6 @@
 package org.jetbrains.ruby.codeInsight.types.storage.server.impl
 
 import org.jetbrains.exposed.sql.and
-import org.jetbrains.exposed.sql.deleteWhere
 import org.jetbrains.exposed.sql.select
 import org.jetbrains.ruby.codeInsight.types.signature.*
 import org.jetbrains.ruby.codeInsight.types.storage.server.DatabaseProvider
@@ -81,6 +80,41 @@ object RSignatureProviderImpl : RSignatureProvider {
         SignatureTable.insertInfoIfNotContains(signatureInfo)
     }
 
+    override fun getSignatures(methods: Collection<MethodInfo>): Collection<SignatureInfo> {
+        return DatabaseProvider.defaultDatabaseTransaction {
+            val methodIds = methods.mapNotNull { MethodInfoTable.findRowId(it) }.distinct()
+            if (methodIds.isEmpty()) {
+                return@defaultDatabaseTransaction emptyList<SignatureInfo>()
+            }
+            SignatureContractRow.find { SignatureTable.methodInfo inList methodIds }.map { it.copy() }
+        }
+    }
+
+    override fun putSignatures(signatureInfos: Collection<SignatureInfo>) {
+        DatabaseProvider.defaultDatabaseTransaction {
+            SignatureTable.insertInfosIfNotContains(signatureInfos.toList())
+        }
+    }
+
+    /**
+     * Folds call infos registered after [sinceId] into stored contracts of their methods in one transaction.
+     * Stored contracts with another number of arguments are replaced
+     *
+     * @return high-water mark to pass to the next call
+     * @see CallInfoContractBuilder
+     */
+    fun updateSignaturesFromCallInfos(sinceId: Int = 0): Int {
+        return DatabaseProvider.defaultDatabaseTransaction {
+            val built = CallInfoContractBuilder.build(sinceId)
+            if (built.signatures.isNotEmpty()) {
+                val signatures = ArrayList(getSignatures(built.signatures.map { it.methodInfo }))
+                signatures.addAll(built.signatures)
+                putSignatures(ParallelContractMerger().merge(signatures).signatures)
+            }
+            built.highWaterMark
+        }
+    }
+
     override fun getRegisteredCallInfos(methodInfo: MethodInfo): List<CallInfo> {
         return DatabaseProvider.defaultDatabaseTransaction {
             val methodId = MethodInfoTable.findRowId(methodInfo) ?: return@defaultDatabaseTransaction emptyList()
@@ -0,0 +1,125 @@
+package org.jetbrains.ruby.codeInsight.types.storage.server.impl
+
+import org.jetbrains.exposed.dao.EntityID
+import org.jetbrains.exposed.sql.*
+import org.jetbrains.exposed.sql.transactions.transaction
+import org.jetbrains.ruby.codeInsight.types.signature.MethodInfo
+import java.util.concurrent.atomic.AtomicLongArray
+
+/**
+ * Bloom filter of methods having call infos in [CallInfoTable], so lookups of methods which certainly have none
+ * (e.g. of most ancestors of a receiver) can be skipped. Methods are keyed by the last part of class FQN and
+ * method name, as classes are looked up by the end of FQN (see [ClassInfoTable.findRowId]).
+ *
+ * Rows inserted after the filter was built are added by [update]. Removed rows can't be removed from the filter,
+ * they only make it less precise until it is built again.
+ *
+ * Reading is thread safe and may run concurrently with [update]: rows read by [update] are seen by readers
+ * once it has returned, rows read by a running [update] may be seen partially.
+ *
+ * @param capacity number of methods the filter is sized for with [FALSE_POSITIVE_PROBABILITY]
+ */
+class RegisteredMethodsFilter(capacity: Int) {
+    companion object {
+        /**
+         * **Call this function only inside [transaction] block**
+         */
+        fun build(): RegisteredMethodsFilter {
+            // methods without call infos are counted too, the rest leaves room for new methods
+            val methodsCount = MethodInfoTable.selectAll().count()
+            return RegisteredMethodsFilter(Math.max(MIN_CAPACITY, 2 * methodsCount)).apply { update() }
+        }
+
+        private const val FALSE_POSITIVE_PROBABILITY = 0.01
+
+        /**
+         * Optimal for [FALSE_POSITIVE_PROBABILITY]: -log2(p)
+         */
+        private const val HASH_FUNCTIONS_COUNT = 7
+
+        private const val MIN_CAPACITY = 1024
+
+        private const val NAMESPACE_SEPARATOR = "::"
+    }
+
+    private val bitsCount: Int = Math.ceil(-capacity * Math.log(FALSE_POSITIVE_PROBABILITY) / (Math.log(2.0) * Math.log(2.0)))
+            .toInt()
+
+    /**
+     * Atomic, so readers see bits set by [update] without locking and never see a torn word
+     */
+    private val words = AtomicLongArray((bitsCount + 63) / 64)
+
+    /**
+     * Maximal id of [CallInfoTable] rows read
+     */
+    @Volatile
+    var highWaterMark: Int = 0
+        private set
+
+    /**
+     * Reads rows inserted since the previous call. **Call this function only inside [transaction] block**
+     *
+     * @return number of the rows read
+     */
+    @Synchronized
+    fun update(): Int {
+        var rowsCount = 0
+        var maxId = highWaterMark
+        (CallInfoTable innerJoin MethodInfoTable innerJoin ClassInfoTable)
+                .slice(CallInfoTable.id, ClassInfoTable.fqn, MethodInfoTable.name)
+                .select { CallInfoTable.id greater EntityID(highWaterMark, CallInfoTable) }
+                .forEach { row ->
+                    add(row[ClassInfoTable.fqn], row[MethodInfoTable.name])
+                    maxId = Math.max(maxId, row[CallInfoTable.id].value)
+                    rowsCount++
+                }
+        highWaterMark = maxId
+        return rowsCount
+    }
+
+    /**
+     * @return `false` if [methodInfo] certainly has no call infos, i.e. [RSignatureProviderImpl.getRegisteredCallInfos]
+     * would return an empty list. The last part of [methodInfo]'s FQN must be a whole class name
+     */
+    fun mightHaveCallInfos(methodInfo: MethodInfo): Boolean {
+        val hash = hash(methodInfo.classInfo.classFQN, methodInfo.name)
+        val h1 = hash.toInt()
+        val h2 = (hash ushr 32).toInt()
+        for (i in 0 until HASH_FUNCTIONS_COUNT) {
+            val bit = Math.floorMod(h1 + i * h2, bitsCount)
+            if (words.get(bit ushr 6) and (1L shl bit) == 0L) {
+                return false
+            }
+        }
+        return true
+    }
+
+    /**
+     * Only [update] writes [words], so no compare-and-set is needed
+     */
+    private fun add(fqn: String, methodName: String) {
+        val hash = hash(fqn, methodName)
+        val h1 = hash.toInt()
+        val h2 = (hash ushr 32).toInt()
+        for (i in 0 until HASH_FUNCTIONS_COUNT) {
+            val bit = Math.floorMod(h1 + i * h2, bitsCount)
+            words.set(bit ushr 6, words.get(bit ushr 6) or (1L shl bit))
+        }
+    }
+
+    /**
+     * Hash of the last part of [fqn] and [methodName] mixed with the MurmurHash3 finalizer
+     */
+    private fun hash(fqn: String, methodName: String): Long {
+        val separatorIndex = fqn.lastIndexOf(NAMESPACE_SEPARATOR)
+        var classNameHash = 0
+        for (i in (if (separatorIndex < 0) 0 else separatorIndex + NAMESPACE_SEPARATOR.length) until fqn.length) {
+            classNameHash = 31 * classNameHash + fqn[i].toInt()
+        }
+        var hash = (classNameHash.toLong() shl 32) or (methodName.hashCode().toLong() and 0xFFFFFFFFL)
+        hash = (hash xor (hash ushr 33)) * -0xae502812aa7333L
+        hash = (hash xor (hash ushr 33)) * -0x3b314601e57a13adL
+        return hash xor (hash ushr 33)
+    }
+}
@@ -2,8 +2,7 @@ package org.jetbrains.ruby.codeInsight.types.storage.server.impl
 
 import org.jetbrains.exposed.sql.ResultRow
 import org.jetbrains.ruby.codeInsight.types.signature.*
-import org.jetbrains.ruby.codeInsight.types.signature.serialization.SignatureContract
-import java.io.DataInputStream
+import org.jetbrains.ruby.codeInsight.types.signature.serialization.readFromBlob
 
 fun GemInfo(row: ResultRow): GemInfo = GemInfo(row[GemInfoTable.name], row[GemInfoTable.version])
 
@@ -25,7 +24,7 @@ fun MethodInfo(row: ResultRow): MethodInfo = MethodInfo.Impl(
 fun SignatureInfo(row: ResultRow): SignatureInfo {
     val blob = row[SignatureTable.contract]
     try {
-        return SignatureInfo(MethodInfo(row), SignatureContract(DataInputStream(blob.binaryStream)))
+        return SignatureInfo(MethodInfo(row), readFromBlob(blob))
     } finally {
         blob.free()
     }
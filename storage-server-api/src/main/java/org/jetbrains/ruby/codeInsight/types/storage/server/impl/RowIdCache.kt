@@ -0,0 +1,178 @@
+package org.jetbrains.ruby.codeInsight.types.storage.server.impl
+
+import org.jetbrains.exposed.dao.EntityID
+import org.jetbrains.exposed.sql.Database
+import org.jetbrains.exposed.sql.Transaction
+import org.jetbrains.exposed.sql.statements.StatementInterceptor
+import org.jetbrains.exposed.sql.transactions.TransactionManager
+import org.jetbrains.exposed.sql.transactions.transaction
+import java.util.*
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Bounded cache from keys of infos (see [IntIdTableWithPossibleDependency.createCacheKey]) to ids of rows of one table.
+ * Separate entries are kept for every [Database].
+ *
+ * The cache is transaction aware: entries put inside a [transaction] are visible only to this transaction
+ * until it's committed and are dropped if it's rolled back. Invalidation is applied immediately and once more
+ * on commit, so entries cached meanwhile by concurrent transactions don't survive it.
+ * **Call all functions except statistics only inside [transaction] block**
+ */
+class RowIdCache internal constructor(private val maxSize: Int) {
+    private val hitsCounter = AtomicLong(0)
+    private val missesCounter = AtomicLong(0)
+
+    val hits: Long
+        get() = hitsCounter.get()
+
+    val misses: Long
+        get() = missesCounter.get()
+
+    private val committedByDatabase = WeakHashMap<Database, CommittedEntries>()
+
+    fun get(key: Any): EntityID<Int>? {
+        val transaction = TransactionManager.current()
+        val state = TransactionState.of(transaction).forCache(this, transaction.db)
+        val id = state.pending[key] ?: if (state.isInvalidated) null else synchronized(this) {
+            committed(transaction.db).entries[key]?.takeIf { it !in state.writtenIds }
+        }
+        if (id != null) hitsCounter.incrementAndGet() else missesCounter.incrementAndGet()
+        return id
+    }
+
+    /**
+     * Registers [id] found for [key]
+     */
+    fun put(key: Any, id: EntityID<Int>) {
+        val transaction = TransactionManager.current()
+        TransactionState.of(transaction).forCache(this, transaction.db).pending.put(key, id)
+    }
+
+    /**
+     * Registers that [info][key] was written into row [id]. Keys of this row registered before are forgotten,
+     * because row content could be changed
+     */
+    fun putWritten(key: Any, id: EntityID<Int>) {
+        val transaction = TransactionManager.current()
+        val state = TransactionState.of(transaction).forCache(this, transaction.db)
+        state.pending.removeId(id)
+        state.writtenIds.add(id)
+        state.pending.put(key, id)
+    }
+
+    /**
+     * Forgets all entries of current transaction's database
+     */
+    fun invalidate() {
+        val transaction = TransactionManager.current()
+        val state = TransactionState.of(transaction).forCache(this, transaction.db)
+        state.pending.clear()
+        state.isInvalidated = true
+        invalidate(transaction.db)
+    }
+
+    internal fun invalidate(database: Database) {
+        synchronized(this) {
+            committed(database).let {
+                it.entries.clear()
+                it.generation++
+            }
+        }
+    }
+
+    private fun committed(database: Database): CommittedEntries {
+        return committedByDatabase.getOrPut(database) { CommittedEntries(maxSize) }
+    }
+
+    private fun commit(database: Database, state: CacheState) {
+        synchronized(this) {
+            val committed = committed(database)
+            if (state.isInvalidated) {
+                committed.entries.clear()
+                committed.generation++
+                return
+            }
+            // somebody invalidated the cache, so entries found by this transaction could be deleted by now
+            if (committed.generation != state.generation) {
+                return
+            }
+            state.writtenIds.forEach { committed.entries.removeId(it) }
+            state.pending.forEach { key, id -> committed.entries.put(key, id) }
+        }
+    }
+
+    /**
+     * LRU map which can also remove all keys referring to one id
+     */
+    private class Entries(private val maxSize: Int) : LinkedHashMap<Any, EntityID<Int>>(16, 0.75f, true) {
+        private val keysById = HashMap<EntityID<Int>, MutableSet<Any>>()
+
+        override fun put(key: Any, value: EntityID<Int>): EntityID<Int>? {
+            val previous = super.put(key, value)
+            if (previous != null && previous != value) {
+                keysById[previous]?.remove(key)
+            }
+            keysById.getOrPut(value) { HashSet() }.add(key)
+            return previous
+        }
+
+        override fun removeEldestEntry(eldest: MutableMap.MutableEntry<Any, EntityID<Int>>): Boolean {
+            if (size <= maxSize) {
+                return false
+            }
+            keysById[eldest.value]?.let {
+                it.remove(eldest.key)
+                if (it.isEmpty()) keysById.remove(eldest.value)
+            }
+            return true
+        }
+
+        fun removeId(id: EntityID<Int>) {
+            keysById.remove(id)?.forEach { super.remove(it) }
+        }
+
+        override fun clear() {
+            super.clear()
+            keysById.clear()
+        }
+    }
+
+    private class CommittedEntries(maxSize: Int) {
+        val entries = Entries(maxSize)
+        var generation = 0L
+    }
+
+    private class CacheState(val database: Database, maxSize: Int, val generation: Long) {
+        val pending = Entries(maxSize)
+        val writtenIds = HashSet<EntityID<Int>>()
+        var isInvalidated = false
+    }
+
+    /**
+     * State of all caches touched by one [Transaction]. Applied to caches when the transaction is committed
+     */
+    private class TransactionState : StatementInterceptor {
+        companion object {
+            private val states = WeakHashMap<Transaction, TransactionState>()
+
+            fun of(transaction: Transaction): TransactionState = synchronized(states) {
+                states.getOrPut(transaction) { TransactionState().also { transaction.registerInterceptor(it) } }
+            }
+        }
+
+        private val caches = IdentityHashMap<RowIdCache, CacheState>()
+
+        fun forCache(cache: RowIdCache, database: Database): CacheState = caches.getOrPut(cache) {
+            CacheState(database, cache.maxSize, synchronized(cache) { cache.committed(database).generation })
+        }
+
+        override fun afterCommit() {
+            caches.forEach { cache, state -> cache.commit(state.database, state) }
+            caches.clear()
+        }
+
+        override fun afterRollback() {
+            caches.clear()
+        }
+    }
+}
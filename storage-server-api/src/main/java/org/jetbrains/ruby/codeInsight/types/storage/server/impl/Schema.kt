@@ -4,6 +4,7 @@ import org.jetbrains.exposed.dao.EntityID
 import org.jetbrains.exposed.dao.IntEntity
 import org.jetbrains.exposed.dao.IntEntityClass
 import org.jetbrains.exposed.sql.*
+import org.jetbrains.exposed.sql.deleteWhere as exposedDeleteWhere
 import org.jetbrains.exposed.sql.statements.UpdateBuilder
 import org.jetbrains.exposed.sql.transactions.TransactionManager
 import org.jetbrains.exposed.sql.transactions.transaction
@@ -11,16 +12,40 @@ import org.jetbrains.ruby.codeInsight.types.signature.*
 import org.jetbrains.ruby.codeInsight.types.signature.serialization.BlobDeserializer
 import org.jetbrains.ruby.codeInsight.types.signature.serialization.BlobSerializer
 import java.sql.Blob
+import java.util.*
 import kotlin.reflect.KProperty
 
+private const val ROW_ID_CACHE_SIZE = 1 shl 14
+
+private fun GemInfo.cacheKey() = Pair(name, version)
+
+private fun ClassInfo.cacheKey() = Pair(gemInfo?.cacheKey(), classFQN)
+
 object GemInfoTable : IntIdTableWithoutDependency<GemInfo>() {
     val name = varchar("name", GemInfo.LENGTH_OF_GEMNAME).index()
     val version = varchar("version", GemInfo.LENGTH_OF_GEMVERSION)
 
+    override val rowIdCache: RowIdCache? = RowIdCache(ROW_ID_CACHE_SIZE)
+
+    override fun createCacheKey(info: GemInfo): Any? = info.cacheKey()
+
     override fun SqlExpressionBuilder.createSearchCriteriaForInfo(info: GemInfo): Op<Boolean> {
         return (name eq info.name) and (version eq info.version)
     }
 
+    override val batchSearch: BatchSearch<GemInfo>? = object : BatchSearch<GemInfo> {
+        override fun SqlExpressionBuilder.createCriteria(infos: List<GemInfo>, dependencyIds: List<EntityID<Int>?>): Op<Boolean> {
+            return name inList infos.map { it.name }.distinct()
+        }
+
+        override fun matchesRow(row: ResultRow, info: GemInfo, dependencyId: EntityID<Int>?): Boolean {
+            return row[name] == info.name && row[version] == info.version
+        }
+    }
+
+    // search criteria covers all columns
+    override fun isRowUpToDate(row: ResultRow, info: GemInfo, dependencyId: EntityID<Int>?) = true
+
     override fun validateInfo(info: GemInfo): Boolean {
         return info.name.length <= GemInfo.LENGTH_OF_GEMNAME && info.version.length <= GemInfo.LENGTH_OF_GEMVERSION
     }
@@ -44,11 +69,85 @@ object ClassInfoTable : IntIdTableWithNullableDependency<ClassInfo, GemInfo>(Gem
     val gemInfo = reference("gem_info", GemInfoTable, ReferenceOption.CASCADE).nullable()
     val fqn = varchar("fqn", ClassInfo.LENGTH_OF_FQN).index()
 
+    /**
+     * [fqn] written backwards, so suffix search by [fqn] becomes prefix search by this column which can use index.
+     * Rows written before this column was added are filled by [fillMissingReversedFqns]
+     */
+    val reversedFqn = varchar("reversed_fqn", ClassInfo.LENGTH_OF_FQN).default("").index()
+
+    override val rowIdCache: RowIdCache? = RowIdCache(ROW_ID_CACHE_SIZE)
+
+    override fun createCacheKey(info: ClassInfo): Any? = info.cacheKey()
+
     override fun SqlExpressionBuilder.createSearchCriteriaForInfo(info: ClassInfo): Op<Boolean> {
         // HACK: as soon as fqn in RubyMine is not fully qualified (search criteria must be: fqn eq info.classFQN)
-        return fqn like "%${info.classFQN}"
+        return createSuffixCriteria(info.classFQN)
+    }
+
+    /**
+     * The same as `fqn like "%$classFQN"` but the literal part of the pattern is looked up by index range
+     */
+    private fun SqlExpressionBuilder.createSuffixCriteria(classFQN: String): Op<Boolean> {
+        val reversedPattern = classFQN.reversed()
+        val literalPrefix = reversedPattern.takeWhile { it != '%' && it != '_' }
+        val like = reversedFqn like "$reversedPattern%"
+        if (literalPrefix.isEmpty()) {
+            return like
+        }
+        return (reversedFqn greaterEq literalPrefix) and (reversedFqn less literalPrefix + '\uFFFF') and like
+    }
+
+    /**
+     * In-memory counterpart of [createSuffixCriteria]: `%` and `_` in [classFQN] are wildcards as in `LIKE`
+     */
+    private fun matchesSuffix(rowFqn: String, classFQN: String): Boolean {
+        if (classFQN.none { it == '%' || it == '_' }) {
+            return rowFqn.endsWith(classFQN)
+        }
+        val pattern = classFQN.split('%').joinToString(".*") { part ->
+            part.split('_').joinToString(".") { Regex.escape(it) }
+        }
+        return Regex(".*$pattern", RegexOption.DOT_MATCHES_ALL).matches(rowFqn)
+    }
+
+    override val batchSearch: BatchSearch<ClassInfo>? = object : BatchSearch<ClassInfo> {
+        override fun SqlExpressionBuilder.createCriteria(infos: List<ClassInfo>, dependencyIds: List<EntityID<Int>?>): Op<Boolean> {
+            val suffixCriteria = infos.map { it.classFQN }.distinct()
+                    .map { createSuffixCriteria(it) }
+                    .reduce { acc, op -> acc or op }
+            // infos without gem match rows of any gem (the same as in createSearchCriteriaForInfo)
+            if (infos.any { it.gemInfo == null }) {
+                return suffixCriteria
+            }
+            return (gemInfo inList dependencyIds.filterNotNull().distinct()) and suffixCriteria
+        }
+
+        override fun matchesRow(row: ResultRow, info: ClassInfo, dependencyId: EntityID<Int>?): Boolean {
+            if (info.gemInfo != null && (dependencyId == null || row[gemInfo] != dependencyId)) {
+                return false
+            }
+            return matchesSuffix(row[fqn], info.classFQN)
+        }
+    }
+
+    override fun isRowUpToDate(row: ResultRow, info: ClassInfo, dependencyId: EntityID<Int>?): Boolean {
+        return row[fqn] == info.classFQN && row[gemInfo] == dependencyId
+    }
+
+    /**
+     * Migration for databases created before [reversedFqn] was added: the column is created with empty
+     * values by [SchemaUtils.createMissingTablesAndColumns] and filled here.
+     * **Call this function only inside [transaction] block**
+     */
+    fun fillMissingReversedFqns() {
+        val rows = slice(id, fqn).select { (reversedFqn eq "") and (fqn neq "") }.map { Pair(it[id], it[fqn]) }
+        for ((rowId, rowFqn) in rows) {
+            update(where = { id eq rowId }) { it[reversedFqn] = rowFqn.reversed() }
+        }
     }
 
+    override fun createBatchKey(info: ClassInfo, dependencyId: EntityID<Int>?) = Pair(dependencyId, info.classFQN)
+
     override fun convertInfoToDependencyFormant(info: ClassInfo): GemInfo? {
         return info.gemInfo
     }
@@ -59,6 +158,7 @@ object ClassInfoTable : IntIdTableWithNullableDependency<ClassInfo, GemInfo>(Gem
 
     override fun writeInfoToBuilder(builder: UpdateBuilder<*>, info: ClassInfo, dependencyId: EntityID<Int>?) {
         builder[fqn] = info.classFQN
+        builder[reversedFqn] = info.classFQN.reversed()
         builder[gemInfo] = dependencyId
     }
 }
@@ -79,6 +179,16 @@ object MethodInfoTable : IntIdTableWithDependency<MethodInfo, ClassInfo>(ClassIn
     val locationFile = varchar("location_file", MethodInfo.LENGTH_OF_PATH).nullable()
     val locationLineno = integer("location_lineno").default(0)
 
+    /**
+     * Number of rows in [CallInfoTable] referring to this method, maintained by [CallInfoTable].
+     * `null` means unknown (e.g. for rows written before this column was added), then it's counted on demand
+     */
+    val callInfosCount = integer("call_infos_count").nullable()
+
+    override val rowIdCache: RowIdCache? = RowIdCache(ROW_ID_CACHE_SIZE)
+
+    override fun createCacheKey(info: MethodInfo): Any? = Pair(info.classInfo.cacheKey(), info.name)
+
     override fun convertInfoToDependencyFormant(info: MethodInfo): ClassInfo? {
         return info.classInfo
     }
@@ -87,6 +197,24 @@ object MethodInfoTable : IntIdTableWithDependency<MethodInfo, ClassInfo>(ClassIn
         return name eq info.name
     }
 
+    override val batchSearch: BatchSearch<MethodInfo>? = object : BatchSearch<MethodInfo> {
+        override fun SqlExpressionBuilder.createCriteria(infos: List<MethodInfo>, dependencyIds: List<EntityID<Int>?>): Op<Boolean> {
+            return (classInfo inList dependencyIds.filterNotNull().distinct()) and (name inList infos.map { it.name }.distinct())
+        }
+
+        override fun matchesRow(row: ResultRow, info: MethodInfo, dependencyId: EntityID<Int>?): Boolean {
+            return row[classInfo] == dependencyId && row[name] == info.name
+        }
+    }
+
+    override fun isRowUpToDate(row: ResultRow, info: MethodInfo, dependencyId: EntityID<Int>?): Boolean {
+        return row[visibility] == info.visibility &&
+                row[locationFile] == info.location?.path &&
+                row[locationLineno] == (info.location?.lineno ?: 0)
+    }
+
+    override fun createBatchKey(info: MethodInfo, dependencyId: EntityID<Int>?) = Pair(dependencyId, info.name)
+
     override fun validateInfo(info: MethodInfo): Boolean {
         return info.name.length <= MethodInfo.LENGTH_OF_NAME &&
                 info.location?.let { it.path.length <= MethodInfo.LENGTH_OF_PATH } ?: true
@@ -132,7 +260,9 @@ class MethodInfoRow(id: EntityID<Int>) : IntEntity(id), MethodInfo {
 object CallInfoTable : IntIdTableWithDependency<CallInfo, MethodInfo>(MethodInfoTable) {
     private const val ARGS_TYPES_STRING_LENGTH = 300
     private const val RETURN_TYPE_STRING_LENGTH = 50
-    private const val CALL_INFOS_LIMIT_FOR_PARTICULAR_METHOD = 10
+    const val DEFAULT_CALL_INFOS_LIMIT_FOR_PARTICULAR_METHOD = 10
+
+    private val callInfosLimits = WeakHashMap<Database, Int>()
 
     val methodInfoId = reference("method_info_id", MethodInfoTable, ReferenceOption.NO_ACTION).index()
 
@@ -143,7 +273,7 @@ object CallInfoTable : IntIdTableWithDependency<CallInfo, MethodInfo>(MethodInfo
 
     val namedArgsTypes = varchar("named_args_types", ARGS_TYPES_STRING_LENGTH)
 
-    private val numberOfUnnamedArguments = integer("number_of_unnamed_arguments")
+    internal val numberOfUnnamedArguments = integer("number_of_unnamed_arguments")
 
     val returnType = varchar("return_type", RETURN_TYPE_STRING_LENGTH)
 
@@ -153,22 +283,182 @@ object CallInfoTable : IntIdTableWithDependency<CallInfo, MethodInfo>(MethodInfo
      */
     fun deleteAllInfoRelatedTo(methodInfo: MethodInfo) {
         val methodInfoId = MethodInfoTable.findRowId(methodInfo) ?: return
-        CallInfoTable.deleteWhere {
+        exposedDeleteWhere {
             CallInfoTable.methodInfoId eq methodInfoId
         }
+        setCallInfosCount(methodInfoId, 0)
+    }
+
+    /**
+     * Deletes rows matching [op]. Counters of call infos of methods which had such rows are reset and will be
+     * recounted on demand
+     */
+    override fun deleteWhere(op: SqlExpressionBuilder.() -> Op<Boolean>): Int {
+        val affectedMethodInfoIds = slice(methodInfoId).select { op() }.withDistinct().map { it[methodInfoId] }
+        if (affectedMethodInfoIds.isEmpty()) {
+            return 0
+        }
+        return super.deleteWhere(op).also {
+            MethodInfoTable.update(where = { MethodInfoTable.id inList affectedMethodInfoIds }) {
+                it[MethodInfoTable.callInfosCount] = null
+            }
+        }
+    }
+
+    /**
+     * Sets maximum number of call infos stored for one method in [database]. Already stored call infos which
+     * exceed the limit are kept
+     */
+    fun setCallInfosLimitForParticularMethod(database: Database, limit: Int) {
+        require(limit > 0) { "Limit must be positive" }
+        synchronized(callInfosLimits) { callInfosLimits[database] = limit }
+    }
+
+    /**
+     * @see setCallInfosLimitForParticularMethod
+     */
+    fun getCallInfosLimitForParticularMethod(database: Database): Int {
+        return synchronized(callInfosLimits) { callInfosLimits[database] } ?: DEFAULT_CALL_INFOS_LIMIT_FOR_PARTICULAR_METHOD
     }
 
     override fun insertInfoIfNotContains(info: CallInfo): EntityID<Int>? {
-        val count = MethodInfoTable.findRowId(info.methodInfo)?.let {
-            CallInfoTable.select {
-                CallInfoTable.methodInfoId eq it
-            }.count()
-        } ?: 0
-        if (count >= CALL_INFOS_LIMIT_FOR_PARTICULAR_METHOD) {
-            return null
-        } else {
-            return super.insertInfoIfNotContains(info)
+        return insertInfosIfNotContains(listOf(info)).single()
+    }
+
+    /**
+     * @return number of call infos of every method from [methodInfoIds] according to [MethodInfoTable.callInfosCount].
+     * Unknown counters are counted and stored
+     */
+    private fun getCallInfosCounts(methodInfoIds: List<EntityID<Int>>): Map<EntityID<Int>, Int> {
+        val ret = HashMap<EntityID<Int>, Int>()
+        val unknown = ArrayList<EntityID<Int>>()
+        MethodInfoTable.slice(MethodInfoTable.id, MethodInfoTable.callInfosCount).select {
+            MethodInfoTable.id inList methodInfoIds
+        }.forEach { row ->
+            val count = row[MethodInfoTable.callInfosCount]
+            if (count != null) {
+                ret[row[MethodInfoTable.id]] = count
+            } else {
+                unknown.add(row[MethodInfoTable.id])
+            }
+        }
+
+        if (unknown.isNotEmpty()) {
+            val count = id.count()
+            val counted = slice(methodInfoId, count).select { methodInfoId inList unknown }.groupBy(methodInfoId)
+                    .associate { Pair(it[methodInfoId], it[count]) }
+            for (methodInfoId in unknown) {
+                ret[methodInfoId] = counted[methodInfoId] ?: 0
+                setCallInfosCount(methodInfoId, counted[methodInfoId] ?: 0)
+            }
+        }
+        return ret
+    }
+
+    private fun setCallInfosCount(methodInfoId: EntityID<Int>, count: Int) {
+        MethodInfoTable.update(where = { MethodInfoTable.id eq methodInfoId }) { it[MethodInfoTable.callInfosCount] = count }
+    }
+
+    /**
+     * Inserts [infos] in order, keeping at most [getCallInfosLimitForParticularMethod] call infos per method.
+     * When a call info is written, call infos of the same method with different number of unnamed arguments
+     * are removed. Methods which reached the limit are skipped using [MethodInfoTable.callInfosCount]. Call infos
+     * of other affected methods are read with one query, the sequence is replayed in memory and the difference
+     * is written with one delete and one batch insert
+     */
+    override fun insertInfosIfNotContains(infos: List<CallInfo>): List<EntityID<Int>?> {
+        val ret = arrayOfNulls<EntityID<Int>>(infos.size)
+        val methodInfoIds = insertDependencies(infos)
+        val distinctMethodInfoIds = methodInfoIds.filterNotNull().distinct()
+        if (distinctMethodInfoIds.isEmpty()) {
+            return ret.asList()
+        }
+
+        val limit = getCallInfosLimitForParticularMethod(TransactionManager.current().db)
+        val initialCounts = getCallInfosCounts(distinctMethodInfoIds)
+        val notFullMethodInfoIds = distinctMethodInfoIds.filter { (initialCounts[it] ?: 0) < limit }
+        if (notFullMethodInfoIds.isEmpty()) {
+            return ret.asList()
+        }
+
+        val storedByMethod = HashMap<EntityID<Int>, MutableList<StoredCallInfo>>()
+        notFullMethodInfoIds.forEach { storedByMethod[it] = ArrayList() }
+        select { methodInfoId inList notFullMethodInfoIds }.forEach {
+            storedByMethod.getOrPut(it[methodInfoId]) { ArrayList() }.add(StoredCallInfo(
+                    it[id], null, it[numberOfUnnamedArguments], it[unnamedArgsTypes], it[namedArgsTypes], it[returnType]))
+        }
+
+        val toDelete = ArrayList<EntityID<Int>>()
+        val toInsert = ArrayList<StoredCallInfo>()
+        for ((i, info) in infos.withIndex()) {
+            val methodInfoId = methodInfoIds[i] ?: continue
+            if (!validateInfoBeforeWritingToBuilder(info, methodInfoId)) {
+                continue
+            }
+            val stored = storedByMethod[methodInfoId] ?: continue
+            if (stored.size >= limit) {
+                continue
+            }
+
+            val unnamedArgsTypes = info.unnamedArgumentsTypesJoinToRawString()
+            val namedArgsTypes = info.namedArgumentsJoinToRawString()
+            val storedCallInfo = stored.firstOrNull {
+                it.numberOfUnnamedArguments == info.unnamedArguments.size && it.unnamedArgsTypes == unnamedArgsTypes &&
+                        it.namedArgsTypes == namedArgsTypes && it.returnType == info.returnType
+            } ?: StoredCallInfo(null, methodInfoId, info.unnamedArguments.size, unnamedArgsTypes, namedArgsTypes, info.returnType)
+                    .also { stored.add(it); toInsert.add(it) }
+            storedCallInfo.resultIndices.add(i)
+
+            // remove call infos with different number of unnamed arguments
+            stored.removeAll {
+                val invalid = it.numberOfUnnamedArguments != info.unnamedArguments.size
+                if (invalid) {
+                    it.isRemoved = true
+                    it.id?.let { id -> toDelete.add(id) }
+                }
+                invalid
+            }
+        }
+
+        if (toDelete.isNotEmpty()) {
+            exposedDeleteWhere { id inList toDelete }
+        }
+        toInsert.removeAll { it.isRemoved }
+        if (toInsert.isNotEmpty()) {
+            batchInsert(toInsert) {
+                this[methodInfoId] = it.methodInfoId!!
+                this[unnamedArgsTypes] = it.unnamedArgsTypes
+                this[namedArgsTypes] = it.namedArgsTypes
+                this[numberOfUnnamedArguments] = it.numberOfUnnamedArguments
+                this[returnType] = it.returnType
+            }.forEachIndexed { k, row -> toInsert[k].id = row[id] }
+        }
+
+        for ((methodInfoId, stored) in storedByMethod) {
+            for (storedCallInfo in stored) {
+                storedCallInfo.resultIndices.forEach { ret[it] = storedCallInfo.id }
+            }
+            if (stored.size != initialCounts[methodInfoId]) {
+                setCallInfosCount(methodInfoId, stored.size)
+            }
         }
+        return ret.asList()
+    }
+
+    /**
+     * Row of [CallInfoTable] replayed in memory by [insertInfosIfNotContains]
+     *
+     * @param id `null` if the row isn't inserted yet
+     * @param methodInfoId set only for rows which aren't inserted yet
+     */
+    private class StoredCallInfo(var id: EntityID<Int>?,
+                                 val methodInfoId: EntityID<Int>?,
+                                 val numberOfUnnamedArguments: Int,
+                                 val unnamedArgsTypes: String,
+                                 val namedArgsTypes: String,
+                                 val returnType: String) {
+        val resultIndices = ArrayList<Int>()
+        var isRemoved = false
     }
 
     override fun SqlExpressionBuilder.createSearchCriteriaForInfo(info: CallInfo): Op<Boolean> {
@@ -195,12 +485,6 @@ object CallInfoTable : IntIdTableWithDependency<CallInfo, MethodInfo>(MethodInfo
         builder[returnType] = info.returnType
     }
 
-    override fun removeInvalidInfo(validInfo: CallInfo) {
-        val methodInfoId = MethodInfoTable.findRowId(validInfo.methodInfo) ?: return
-        deleteWhere {
-            (CallInfoTable.methodInfoId eq methodInfoId) and (CallInfoTable.numberOfUnnamedArguments neq validInfo.unnamedArguments.size)
-        }
-    }
 }
 
 class CallInfoRow(id: EntityID<Int>) : IntEntity(id), CallInfo {
@@ -213,7 +497,7 @@ class CallInfoRow(id: EntityID<Int>) : IntEntity(id), CallInfo {
     override val namedArguments: List<ArgumentNameAndType> by lazy {
         namedArgsTypesRaw.takeIf { it != "" }?.split(ARGUMENTS_TYPES_SEPARATOR)?.asSequence()?.map {
             val (name, type) = it.split(ArgumentNameAndType.NAME_AND_TYPE_SEPARATOR)
-            return@map ArgumentNameAndType(name, type)
+            return@map ArgumentNameAndType(name, TypeNameDictionary.SHARED.intern(type))
         }?.toList() ?: emptyList()
     }
 
@@ -224,11 +508,14 @@ class CallInfoRow(id: EntityID<Int>) : IntEntity(id), CallInfo {
     override val unnamedArguments: List<ArgumentNameAndType> by lazy {
         requiredArgsTypesRaw.takeIf { it != "" }?.split(ARGUMENTS_TYPES_SEPARATOR)?.map {
             val (name, type) = it.split(ArgumentNameAndType.NAME_AND_TYPE_SEPARATOR)
-            return@map ArgumentNameAndType(name, type)
+            return@map ArgumentNameAndType(name, TypeNameDictionary.SHARED.intern(type))
         } ?: emptyList()
     }
 
-    override val returnType: String by CallInfoTable.returnType
+    private val returnTypeRaw: String by CallInfoTable.returnType
+
+    override val returnType: String
+        get() = TypeNameDictionary.SHARED.intern(returnTypeRaw)
 
     override fun unnamedArgumentsTypesJoinToRawString(): String = requiredArgsTypesRaw
 
@@ -254,13 +541,40 @@ object SignatureTable : IntIdTableWithDependency<SignatureInfo, MethodInfo>(Meth
 
         if (existingContractData != null) {
             existingContractData.contract = info.contract
-        } else {
-            SignatureContractRow.new { this.methodInfo = methodInfoRow; contract = info.contract }
+            return existingContractData.id
         }
 
         return SignatureContractRow.new { this.methodInfo = methodInfoRow; contract = info.contract }.id
     }
 
+    /**
+     * Rows are updated bypassing DAO, so entities of the rows read earlier in the transaction are evicted,
+     * otherwise they would keep returning the old (cached) contracts
+     */
+    override fun insertInfosIfNotContains(infos: List<SignatureInfo>): List<EntityID<Int>?> {
+        val ids = super.insertInfosIfNotContains(infos)
+        val entityCache = TransactionManager.current().entityCache
+        ids.filterNotNull().forEach { id ->
+            entityCache.find(SignatureContractRow, id)?.let { entityCache.remove(SignatureTable, it) }
+        }
+        return ids
+    }
+
+    /**
+     * Every method has one contract, so rows are searched by method only
+     */
+    override val batchSearch: BatchSearch<SignatureInfo>? = object : BatchSearch<SignatureInfo> {
+        override fun SqlExpressionBuilder.createCriteria(infos: List<SignatureInfo>, dependencyIds: List<EntityID<Int>?>): Op<Boolean> {
+            return methodInfo inList dependencyIds.filterNotNull().distinct()
+        }
+
+        override fun matchesRow(row: ResultRow, info: SignatureInfo, dependencyId: EntityID<Int>?): Boolean {
+            return row[methodInfo] == dependencyId
+        }
+    }
+
+    override fun createBatchKey(info: SignatureInfo, dependencyId: EntityID<Int>?): Any? = dependencyId
+
     override fun writeInfoToBuilderNotNullableDependency(builder: UpdateBuilder<*>, info: SignatureInfo, dependencyId: EntityID<Int>) {
         builder[methodInfo] = dependencyId
         builder[contract] = BlobSerializer.writeToBlob(info.contract, TransactionManager.current().connection.createBlob())
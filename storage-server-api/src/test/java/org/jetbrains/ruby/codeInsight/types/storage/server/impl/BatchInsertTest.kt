@@ -0,0 +1,126 @@
+package org.jetbrains.ruby.codeInsight.types.storage.server.impl
+
+import junit.framework.TestCase
+import org.jetbrains.exposed.sql.select
+import org.jetbrains.exposed.sql.selectAll
+import org.jetbrains.exposed.sql.transactions.TransactionManager
+import org.jetbrains.ruby.codeInsight.types.signature.*
+import org.jetbrains.ruby.codeInsight.types.storage.server.DatabaseProvider
+import org.jetbrains.ruby.codeInsight.types.storage.server.testutil.doDBTest
+import org.junit.Test
+
+class BatchInsertTest : TestCase() {
+    init {
+        DatabaseProvider.connectToInMemoryDB(isDefaultDatabase = true)
+    }
+
+    private val gem = GemInfo("test_gem", "0.1")
+    private val foo = MethodInfo(ClassInfo(gem, "A::B"), "foo", RVisibility.PUBLIC, Location("a.rb", 1))
+    private val bar = MethodInfo(ClassInfo(gem, "A::C"), "bar", RVisibility.PUBLIC, Location("a.rb", 5))
+    private val baz = MethodInfo(ClassInfo("Object"), "baz", RVisibility.PRIVATE)
+
+    private fun callInfo(methodInfo: MethodInfo, returnType: String, vararg unnamedArgsTypes: String) =
+            CallInfoImpl(methodInfo, emptyList(),
+                    unnamedArgsTypes.mapIndexed { i, type -> ArgumentNameAndType("arg$i", type) }, returnType)
+
+    private fun dump(): List<String> {
+        return CallInfoRow.all().map {
+            val methodInfo = it.methodInfo
+            "${methodInfo.classInfo.gemInfo?.name} ${methodInfo.classInfo.classFQN} ${methodInfo.name} " +
+                    "${methodInfo.visibility} ${methodInfo.location} ${it.unnamedArgumentsTypesJoinToRawString()} ${it.returnType}"
+        }.sorted()
+    }
+
+    private fun assertSameAsOneByOne(existing: List<CallInfo>, batch: List<CallInfo>) {
+        var expected: List<String> = emptyList()
+        doDBTest {
+            existing.forEach { CallInfoTable.insertInfoIfNotContains(it) }
+            batch.forEach { CallInfoTable.insertInfoIfNotContains(it) }
+            expected = dump()
+        }
+        doDBTest {
+            existing.forEach { CallInfoTable.insertInfoIfNotContains(it) }
+            val ids = CallInfoTable.insertInfosIfNotContains(batch)
+            assertEquals(batch.size, ids.size)
+            assertEquals(expected, dump())
+            assertEquals(1, GemInfoRow.all().count())
+        }
+    }
+
+    @Test
+    fun testNewAndDuplicatedInfos() {
+        assertSameAsOneByOne(emptyList(), listOf(
+                callInfo(foo, "String", "Integer"),
+                callInfo(foo, "String", "Integer"),
+                callInfo(bar, "Symbol"),
+                callInfo(foo, "NilClass", "Integer"),
+                callInfo(baz, "String", "String", "String"),
+                callInfo(bar, "Symbol")
+        ))
+    }
+
+    @Test
+    fun testExistingInfos() {
+        val movedFoo = MethodInfo(foo.classInfo, foo.name, RVisibility.PROTECTED, Location("b.rb", 10))
+        assertSameAsOneByOne(
+                listOf(callInfo(foo, "String", "Integer"), callInfo(bar, "Symbol")),
+                listOf(callInfo(movedFoo, "String", "Integer"), callInfo(bar, "String"), callInfo(foo, "String", "Float"))
+        )
+    }
+
+    @Test
+    fun testInvalidInfosAreRemoved() {
+        assertSameAsOneByOne(
+                listOf(callInfo(foo, "String", "Integer")),
+                listOf(callInfo(foo, "String"), callInfo(foo, "Symbol"), callInfo(foo, "String", "Symbol"))
+        )
+    }
+
+    @Test
+    fun testLimitForParticularMethod() {
+        assertSameAsOneByOne(
+                (0 until 7).map { callInfo(foo, "R$it") },
+                (7 until 15).map { callInfo(foo, "R$it") } + callInfo(bar, "R")
+        )
+    }
+
+    @Test
+    fun testConfigurableLimit() = doDBTest {
+        val database = TransactionManager.current().db
+        CallInfoTable.setCallInfosLimitForParticularMethod(database, 3)
+        try {
+            CallInfoTable.insertInfosIfNotContains((0 until 5).map { callInfo(foo, "R$it") })
+            assertNull(CallInfoTable.insertInfoIfNotContains(callInfo(foo, "R5")))
+            assertEquals(3, CallInfoRow.all().count())
+            assertEquals(3, MethodInfoTable.selectAll().single()[MethodInfoTable.callInfosCount])
+        } finally {
+            CallInfoTable.setCallInfosLimitForParticularMethod(database, CallInfoTable.DEFAULT_CALL_INFOS_LIMIT_FOR_PARTICULAR_METHOD)
+        }
+    }
+
+    @Test
+    fun testCountersFollowDeletes() = doDBTest {
+        CallInfoTable.insertInfosIfNotContains((0 until 12).map { callInfo(foo, "R$it") })
+        assertEquals(10, MethodInfoTable.selectAll().single()[MethodInfoTable.callInfosCount])
+
+        CallInfoTable.deleteAllInfoRelatedTo(foo)
+        assertEquals(0, MethodInfoTable.selectAll().single()[MethodInfoTable.callInfosCount])
+        assertNotNull(CallInfoTable.insertInfoIfNotContains(callInfo(foo, "R")))
+        assertEquals(1, CallInfoRow.all().count())
+    }
+
+    @Test
+    fun testDeleteWhereResetsOnlyAffectedCounters() = doDBTest {
+        CallInfoTable.insertInfosIfNotContains((0 until 3).map { callInfo(foo, "R$it") } + callInfo(bar, "R"))
+        val fooId = MethodInfoTable.findRowId(foo)!!
+        val barId = MethodInfoTable.findRowId(bar)!!
+
+        CallInfoTable.deleteWhere { CallInfoTable.returnType eq "R0" }
+        assertNull(MethodInfoTable.select { MethodInfoTable.id eq fooId }.single()[MethodInfoTable.callInfosCount])
+        assertEquals(1, MethodInfoTable.select { MethodInfoTable.id eq barId }.single()[MethodInfoTable.callInfosCount])
+
+        assertEquals(0, CallInfoTable.deleteWhere { CallInfoTable.returnType eq "R0" })
+        CallInfoTable.insertInfoIfNotContains(callInfo(foo, "R3"))
+        assertEquals(3, MethodInfoTable.select { MethodInfoTable.id eq fooId }.single()[MethodInfoTable.callInfosCount])
+    }
+}
@@ -0,0 +1,69 @@
+package org.jetbrains.ruby.codeInsight.types.storage.server.impl
+
+import junit.framework.TestCase
+import org.jetbrains.ruby.codeInsight.types.signature.*
+import org.jetbrains.ruby.codeInsight.types.storage.server.DatabaseProvider
+import org.jetbrains.ruby.codeInsight.types.storage.server.testutil.doDBTest
+import org.junit.Test
+
+class CallInfoContractBuilderTest : TestCase() {
+    init {
+        DatabaseProvider.connectToInMemoryDB(isDefaultDatabase = true)
+    }
+
+    private val gem = GemInfo("test_gem", "0.1")
+    private val foo = MethodInfo(ClassInfo(gem, "A::B"), "foo", RVisibility.PUBLIC, Location("a.rb", 1))
+    private val bar = MethodInfo(ClassInfo(gem, "A::C"), "bar", RVisibility.PUBLIC, Location("a.rb", 5))
+
+    private fun callInfo(methodInfo: MethodInfo, returnType: String, unnamedArgsTypes: List<String>,
+                         namedArgsTypes: List<String> = emptyList()) =
+            CallInfoImpl(methodInfo,
+                    namedArgsTypes.mapIndexed { i, type -> ArgumentNameAndType("key$i", type) },
+                    unnamedArgsTypes.mapIndexed { i, type -> ArgumentNameAndType("arg$i", type) }, returnType)
+
+    private fun accepts(signature: SignatureInfo, returnType: String, vararg argsTypes: String) =
+            SignatureContract.accept(signature.contract,
+                    RTuple(signature.methodInfo, signature.contract.argsInfo, argsTypes.toList(), returnType))
+
+    @Test
+    fun testContractsOfAllMethods() = doDBTest {
+        CallInfoTable.insertInfosIfNotContains(listOf(
+                callInfo(foo, "String", listOf("Integer")),
+                callInfo(bar, "Symbol", listOf("String"), listOf("Hash")),
+                callInfo(foo, "NilClass", listOf("Float"))))
+
+        val result = CallInfoContractBuilder.build()
+        assertEquals(3, result.rowsCount)
+        assertEquals(listOf(foo, bar), result.signatures.map { it.methodInfo })
+
+        val (fooSignature, barSignature) = result.signatures
+        assertTrue(accepts(fooSignature, "String", "Integer"))
+        assertTrue(accepts(fooSignature, "NilClass", "Float"))
+        assertFalse(accepts(fooSignature, "String", "Float"))
+
+        assertEquals(listOf(ParameterInfo("arg0", ParameterInfo.Type.REQ), ParameterInfo("key0", ParameterInfo.Type.KEY)),
+                barSignature.contract.argsInfo)
+        assertTrue(accepts(barSignature, "Symbol", "String", "Hash"))
+    }
+
+    @Test
+    fun testIncrementalUpdate() = doDBTest {
+        CallInfoTable.insertInfosIfNotContains(listOf(callInfo(foo, "String", listOf("Integer"))))
+        val highWaterMark = RSignatureProviderImpl.updateSignaturesFromCallInfos()
+        assertTrue(accepts(RSignatureProviderImpl.getSignature(foo)!!, "String", "Integer"))
+
+        CallInfoTable.insertInfosIfNotContains(listOf(callInfo(foo, "Symbol", listOf("Float")), callInfo(bar, "String", emptyList())))
+        val result = CallInfoContractBuilder.build(highWaterMark)
+        assertEquals(2, result.rowsCount)
+
+        val nextHighWaterMark = RSignatureProviderImpl.updateSignaturesFromCallInfos(highWaterMark)
+        assertEquals(result.highWaterMark, nextHighWaterMark)
+        val fooSignature = RSignatureProviderImpl.getSignature(foo)!!
+        assertTrue(accepts(fooSignature, "String", "Integer"))
+        assertTrue(accepts(fooSignature, "Symbol", "Float"))
+        assertTrue(accepts(RSignatureProviderImpl.getSignature(bar)!!, "String"))
+
+        assertEquals(0, CallInfoContractBuilder.build(nextHighWaterMark).rowsCount)
+        assertEquals(nextHighWaterMark, RSignatureProviderImpl.updateSignaturesFromCallInfos(nextHighWaterMark))
+    }
+}
@@ -0,0 +1,81 @@
+package org.jetbrains.ruby.codeInsight.types.storage.server.impl
+
+import junit.framework.TestCase
+import org.jetbrains.ruby.codeInsight.types.signature.*
+import org.jetbrains.ruby.codeInsight.types.storage.server.DatabaseProvider
+import org.jetbrains.ruby.codeInsight.types.storage.server.testutil.doDBTest
+import org.junit.Test
+
+class CallInfoIndexTest : TestCase() {
+    init {
+        DatabaseProvider.connectToInMemoryDB(isDefaultDatabase = true)
+    }
+
+    private val gem = GemInfo("test_gem", "0.1")
+    private val foo = MethodInfo(ClassInfo(gem, "A::B"), "foo", RVisibility.PUBLIC, Location("a.rb", 1))
+    private val bar = MethodInfo(ClassInfo(gem, "A::C"), "bar", RVisibility.PRIVATE)
+
+    private fun callInfo(methodInfo: MethodInfo, returnType: String, unnamedArgsTypes: List<String>,
+                         namedArgsTypes: List<String> = emptyList()) =
+            CallInfoImpl(methodInfo,
+                    namedArgsTypes.mapIndexed { i, type -> ArgumentNameAndType("key$i", type) },
+                    unnamedArgsTypes.mapIndexed { i, type -> ArgumentNameAndType("arg$i", type) }, returnType)
+
+    private fun assertSameCallInfos(index: CallInfoIndex, methodInfo: MethodInfo) {
+        val expected = RSignatureProviderImpl.getRegisteredCallInfos(methodInfo)
+        assertEquals(expected, index.getRegisteredCallInfos(methodInfo))
+    }
+
+    @Test
+    fun testLoad() = doDBTest {
+        CallInfoTable.insertInfosIfNotContains(listOf(
+                callInfo(foo, "String", listOf("Integer")),
+                callInfo(bar, "Symbol", listOf("String"), listOf("Hash")),
+                callInfo(foo, "NilClass", listOf("Float"))))
+
+        val index = CallInfoIndex.load()
+        assertEquals(3, index.callInfosCount)
+        assertSameCallInfos(index, foo)
+        assertSameCallInfos(index, bar)
+        assertEquals(foo, index.getRegisteredCallInfos(foo).first().methodInfo)
+        assertEquals(listOf(ArgumentNameAndType("key0", "Hash")), index.getRegisteredCallInfos(bar).single().namedArguments)
+    }
+
+    @Test
+    fun testUpdate() = doDBTest {
+        CallInfoTable.insertInfosIfNotContains(listOf(callInfo(foo, "String", listOf("Integer"))))
+        val index = CallInfoIndex.load()
+        assertEquals(0, index.update())
+
+        CallInfoTable.insertInfosIfNotContains(listOf(callInfo(foo, "Symbol", listOf("Float")), callInfo(bar, "String", emptyList())))
+        assertEquals(2, index.update())
+        assertEquals(3, index.callInfosCount)
+        assertSameCallInfos(index, foo)
+        assertSameCallInfos(index, bar)
+
+        // call infos with another number of arguments replace the previous ones
+        CallInfoTable.insertInfosIfNotContains(listOf(callInfo(foo, "String", listOf("Integer", "Integer"))))
+        assertEquals(1, index.update())
+        assertEquals(2, index.callInfosCount)
+        assertSameCallInfos(index, foo)
+        assertEquals(1, index.getRegisteredCallInfos(foo).size)
+    }
+
+    @Test
+    fun testPartiallyQualifiedLookup() = doDBTest {
+        val otherGemFoo = MethodInfo(ClassInfo(GemInfo("other_gem", "1.0"), "A::B"), "foo", RVisibility.PUBLIC)
+        CallInfoTable.insertInfosIfNotContains(listOf(
+                callInfo(foo, "String", listOf("Integer")),
+                callInfo(otherGemFoo, "Symbol", listOf("Integer"))))
+        val index = CallInfoIndex.load()
+
+        for (fqn in listOf("A::B", "B")) {
+            assertSameCallInfos(index, MethodInfo(ClassInfo(fqn), "foo", RVisibility.PUBLIC))
+            assertSameCallInfos(index, MethodInfo(ClassInfo(gem, fqn), "foo", RVisibility.PUBLIC))
+            assertSameCallInfos(index, MethodInfo(ClassInfo(otherGemFoo.classInfo.gemInfo, fqn), "foo", RVisibility.PUBLIC))
+        }
+        assertEquals("Symbol", index.getRegisteredCallInfos(otherGemFoo).single().returnType)
+        assertTrue(index.getRegisteredCallInfos(MethodInfo(ClassInfo("C::A::B"), "foo", RVisibility.PUBLIC)).isEmpty())
+        assertTrue(index.getRegisteredCallInfos(MethodInfo(ClassInfo("A::B"), "bar", RVisibility.PUBLIC)).isEmpty())
+    }
+}
@@ -0,0 +1,64 @@
+package org.jetbrains.ruby.codeInsight.types.storage.server.impl
+
+import junit.framework.TestCase
+import org.jetbrains.exposed.sql.insertAndGetId
+import org.jetbrains.ruby.codeInsight.types.signature.ClassInfo
+import org.jetbrains.ruby.codeInsight.types.signature.GemInfo
+import org.jetbrains.ruby.codeInsight.types.storage.server.DatabaseProvider
+import org.jetbrains.ruby.codeInsight.types.storage.server.testutil.doDBTest
+import org.junit.Test
+
+class ClassInfoTableTest : TestCase() {
+    init {
+        DatabaseProvider.connectToInMemoryDB(isDefaultDatabase = true)
+    }
+
+    @Test
+    fun testSuffixLookup() = doDBTest {
+        val id = ClassInfoTable.insertInfoIfNotContains(ClassInfo("ActiveRecord::Base"))
+        assertEquals(id, ClassInfoTable.findRowId(ClassInfo("ActiveRecord::Base")))
+        assertEquals(id, ClassInfoTable.findRowId(ClassInfo("Base")))
+        assertEquals(id, ClassInfoTable.findRowId(ClassInfo("Record::Base")))
+        assertEquals(id, ClassInfoTable.findRowId(ClassInfo("Record_:Base")))
+        assertNull(ClassInfoTable.findRowId(ClassInfo("ActiveRecord")))
+        assertNull(ClassInfoTable.findRowId(ClassInfo("Foo::ActiveRecord::Base")))
+    }
+
+    @Test
+    fun testMissingReversedFqnsAreFilled() = doDBTest {
+        // row written before reversed_fqn column was added
+        val id = ClassInfoTable.insertAndGetId { it[fqn] = "ActiveRecord::Base" }
+        assertNull(ClassInfoTable.findRowId(ClassInfo("Base")))
+
+        ClassInfoTable.fillMissingReversedFqns()
+        assertEquals(id, ClassInfoTable.findRowId(ClassInfo("Base")))
+    }
+
+    @Test
+    fun testBatchLookupIsSameAsSuffixLookup() = doDBTest {
+        val gem = GemInfo("test_gem", "0.1")
+        val existingIds = listOf(ClassInfo("ActiveRecord::Base"), ClassInfo(gem, "Foo::Bar"), ClassInfo("Foo::Baz"))
+                .map { ClassInfoTable.insertInfoIfNotContains(it) }
+        val batch = listOf(
+                ClassInfo(gem, "Bar"),
+                ClassInfo(GemInfo("other_gem", "0.1"), "Bar"),
+                ClassInfo("Record_:Base"),
+                ClassInfo("Bar"),
+                ClassInfo(gem, "Baz"),
+                ClassInfo("New")
+        )
+        val expected = batch.map { ClassInfoTable.findRowId(it) }
+        assertEquals(listOf(existingIds[1], null, existingIds[0], existingIds[1], null, null), expected)
+        // rows must be found by batch search, not taken from cache
+        ClassInfoTable.rowIdCache?.invalidate()
+
+        val ids = ClassInfoTable.insertInfosIfNotContains(batch)
+        batch.indices.forEach { i ->
+            if (expected[i] != null) {
+                assertEquals(expected[i], ids[i])
+            } else {
+                assertFalse(ids[i] == null || ids[i] in existingIds)
+            }
+        }
+    }
+}
@@ -24,7 +24,7 @@ class RSignatureProviderTest : TestCase() {
         assertEquals("rails", insertedGem.name)
         assertEquals("5.0.0.beta1", insertedGem.version)
 
-        ClassInfoTable.insert { it[gemInfo] = insertedGem.id; it[fqn] = "ActiveRecord::Base" }
+        ClassInfoTable.insert { it[gemInfo] = insertedGem.id; it[fqn] = "ActiveRecord::Base"; it[reversedFqn] = "ActiveRecord::Base".reversed() }
         val insertedClass = ClassInfoRow.all().first()
         assertEquals("ActiveRecord::Base", insertedClass.classFQN)
         assertEquals("rails", insertedClass.gemInfo?.name)
@@ -65,9 +65,9 @@ class RSignatureProviderTest : TestCase() {
     @Test
     fun testRegisteredClasses() = doDBTest {
         val insertResult = GemInfoTable.insertAndGetId { it[name] = "test_gem"; it[version] = "0.1" }
-        ClassInfoTable.insert { it[fqn] = "Test1"; it[gemInfo] = insertResult }
-        ClassInfoTable.insert { it[fqn] = "Test2"; it[gemInfo] = insertResult }
-        ClassInfoTable.insert { it[fqn] = "Test3" }
+        ClassInfoTable.insert { it[fqn] = "Test1"; it[reversedFqn] = "Test1".reversed(); it[gemInfo] = insertResult }
+        ClassInfoTable.insert { it[fqn] = "Test2"; it[reversedFqn] = "Test2".reversed(); it[gemInfo] = insertResult }
+        ClassInfoTable.insert { it[fqn] = "Test3"; it[reversedFqn] = "Test3".reversed() }
 
         val provider = RSignatureProviderImpl
         val classes = provider.getRegisteredClasses(GemInfo("test_gem", "0.1"))
@@ -78,9 +78,9 @@ class RSignatureProviderTest : TestCase() {
     @Test
     fun testRegisteredMethods() = doDBTest {
         val gem = GemInfoTable.insertAndGetId { it[name] = "test_gem"; it[version] = "1.2.3" }
-        val class1 = ClassInfoTable.insertAndGetId { it[fqn] = "Test::Fqn" }
-        val class2 = ClassInfoTable.insertAndGetId { it[fqn] = "Test2::Fqn" }
-        val class3 = ClassInfoTable.insertAndGetId { it[fqn] = "Test::Fqn"; it[gemInfo] = gem }
+        val class1 = ClassInfoTable.insertAndGetId { it[fqn] = "Test::Fqn"; it[reversedFqn] = "Test::Fqn".reversed() }
+        val class2 = ClassInfoTable.insertAndGetId { it[fqn] = "Test2::Fqn"; it[reversedFqn] = "Test2::Fqn".reversed() }
+        val class3 = ClassInfoTable.insertAndGetId { it[fqn] = "Test::Fqn"; it[reversedFqn] = "Test::Fqn".reversed(); it[gemInfo] = gem }
         MethodInfoTable.insert { it[name] = "met1"; it[visibility] = RVisibility.PUBLIC; it[classInfo] = class1 }
         MethodInfoTable.insert { it[name] = "met2"; it[visibility] = RVisibility.PUBLIC; it[classInfo] = class1 }
         MethodInfoTable.insert { it[name] = "met3"; it[visibility] = RVisibility.PUBLIC; it[classInfo] = class2 }
@@ -99,7 +99,7 @@ class RSignatureProviderTest : TestCase() {
     @Test
     fun testSignatures() = doDBTest {
         val gem = GemInfoTable.insertAndGetId { it[name] = "test_gem"; it[version] = "1.2.3" }
-        val clazz = ClassInfoTable.insertAndGetId { it[fqn] = "Test::Fqn"; it[gemInfo] = gem }
+        val clazz = ClassInfoTable.insertAndGetId { it[fqn] = "Test::Fqn"; it[reversedFqn] = "Test::Fqn".reversed(); it[gemInfo] = gem }
         val method1 = MethodInfoTable.insertAndGetId {
             it[name] = "met1"
             it[visibility] = RVisibility.PUBLIC
@@ -0,0 +1,58 @@
+package org.jetbrains.ruby.codeInsight.types.storage.server.impl
+
+import junit.framework.TestCase
+import org.jetbrains.ruby.codeInsight.types.signature.*
+import org.jetbrains.ruby.codeInsight.types.storage.server.DatabaseProvider
+import org.jetbrains.ruby.codeInsight.types.storage.server.testutil.doDBTest
+import org.junit.Test
+
+class RegisteredMethodsFilterTest : TestCase() {
+    init {
+        DatabaseProvider.connectToInMemoryDB(isDefaultDatabase = true)
+    }
+
+    private val gem = GemInfo("test_gem", "0.1")
+
+    private fun method(fqn: String, name: String) = MethodInfo(ClassInfo(gem, fqn), name, RVisibility.PUBLIC)
+
+    private fun callInfo(methodInfo: MethodInfo) =
+            CallInfoImpl(methodInfo, emptyList(), listOf(ArgumentNameAndType("arg0", "String")), "String")
+
+    @Test
+    fun testNoFalseNegatives() = doDBTest {
+        val methods = (0 until 100).map { method("A::C$it", "foo$it") }
+        CallInfoTable.insertInfosIfNotContains(methods.map { callInfo(it) })
+        // method without call infos
+        MethodInfoTable.insertInfoIfNotContains(method("A::B", "bar"))
+
+        val filter = RegisteredMethodsFilter.build()
+        for (method in methods) {
+            assertTrue(filter.mightHaveCallInfos(method))
+            assertTrue(filter.mightHaveCallInfos(MethodInfo(ClassInfo(method.classInfo.classFQN.removePrefix("A::")),
+                    method.name, RVisibility.PUBLIC)))
+        }
+        assertFalse(filter.mightHaveCallInfos(method("A::B", "bar")))
+    }
+
+    @Test
+    fun testFalsePositiveRate() = doDBTest {
+        CallInfoTable.insertInfosIfNotContains((0 until 1000).map { callInfo(method("A::C$it", "foo")) })
+        val filter = RegisteredMethodsFilter.build()
+
+        val falsePositives = (0 until 10000).count { filter.mightHaveCallInfos(method("A::D$it", "foo")) }
+        assertTrue("$falsePositives false positives", falsePositives < 300)
+    }
+
+    @Test
+    fun testUpdate() = doDBTest {
+        CallInfoTable.insertInfosIfNotContains(listOf(callInfo(method("A::B", "foo"))))
+        val filter = RegisteredMethodsFilter.build()
+        assertEquals(0, filter.update())
+        assertFalse(filter.mightHaveCallInfos(method("A::B", "bar")))
+
+        CallInfoTable.insertInfosIfNotContains(listOf(callInfo(method("A::B", "bar"))))
+        assertEquals(1, filter.update())
+        assertTrue(filter.mightHaveCallInfos(method("A::B", "foo")))
+        assertTrue(filter.mightHaveCallInfos(method("A::B", "bar")))
+    }
+}
@@ -0,0 +1,38 @@
+package org.jetbrains.ruby.codeInsight.types.storage.server.impl
+
+import junit.framework.TestCase
+import org.jetbrains.ruby.codeInsight.types.signature.*
+import org.jetbrains.ruby.codeInsight.types.storage.server.DatabaseProvider
+import org.jetbrains.ruby.codeInsight.types.storage.server.testutil.doDBTest
+import org.junit.Test
+
+class RowIdCacheTest : TestCase() {
+    init {
+        DatabaseProvider.connectToInMemoryDB(isDefaultDatabase = true)
+    }
+
+    private val gem = GemInfo("test_gem", "0.1")
+    private val method = MethodInfo(ClassInfo(gem, "A::B"), "foo", RVisibility.PUBLIC, Location("a.rb", 1))
+
+    @Test
+    fun testRepeatedLookupsAreCached() = doDBTest {
+        val id = MethodInfoTable.insertInfoIfNotContains(method)
+        val cache = MethodInfoTable.rowIdCache!!
+        val hits = cache.hits
+        val misses = cache.misses
+        repeat(3) {
+            assertEquals(id, MethodInfoTable.findRowId(method))
+        }
+        assertEquals(hits + 3, cache.hits)
+        assertEquals(misses, cache.misses)
+    }
+
+    @Test
+    fun testCascadeDeleteInvalidatesCache() = doDBTest {
+        MethodInfoTable.insertInfoIfNotContains(method)
+        assertNotNull(MethodInfoTable.findRowId(method))
+        GemInfoTable.deleteWhere { GemInfoTable.name eq gem.name }
+        assertNull(ClassInfoTable.findRowId(method.classInfo))
+        assertNull(MethodInfoTable.findRowId(method))
+    }
+}